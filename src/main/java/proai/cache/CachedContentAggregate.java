@@ -6,10 +6,12 @@ import proai.Writable;
 import proai.error.ServerException;
 
 import java.io.*;
+import java.util.List;
 
 public class CachedContentAggregate implements Writable {
 
     private File m_listFile;
+    private List<String[]> m_paths;
     private String m_verb;
     private RecordCache m_cache;
 
@@ -30,7 +32,28 @@ public class CachedContentAggregate implements Writable {
         m_cache = cache;
     }
 
+    /**
+     * Expects the complete list, as path [, dateString] pairs, to be given
+     * directly.  No resumptionToken will be written.
+     */
+    public CachedContentAggregate(List<String[]> paths,
+                                  String verb,
+                                  RecordCache cache) {
+        m_paths = paths;
+        m_verb = verb;
+        m_cache = cache;
+    }
+
     public void write(PrintWriter out) throws ServerException {
+        if (m_paths != null) {
+            boolean headersOnly = m_verb.equals("ListIdentifiers");
+            out.println("<" + m_verb + ">");
+            for (String[] pathAndDate : m_paths) {
+                writeContent(out, pathAndDate, headersOnly);
+            }
+            out.println("</" + m_verb + ">");
+            return;
+        }
         BufferedReader lineReader = null;
         try {
             boolean headersOnly = m_verb.equals("ListIdentifiers");
@@ -51,20 +74,7 @@ public class CachedContentAggregate implements Writable {
                     }
                     line = null;
                 } else {
-                    try {
-                        // if it has two parts, we assume the date should be
-                        // translated to the one given, else the content
-                        // is given as-is.
-                        if (parts.length == 2) {
-                            new CachedContent(m_cache.getFile(parts[0]),
-                                    parts[1],
-                                    headersOnly).write(out);
-                        } else {
-                            new CachedContent(m_cache.getFile(parts[0])).write(out);
-                        }
-                    } catch (Exception e) {
-                        // must have moved out of cache -- ignore
-                    }
+                    writeContent(out, parts, headersOnly);
                     line = lineReader.readLine();
                 }
             }
@@ -79,4 +89,23 @@ public class CachedContentAggregate implements Writable {
         }
     }
 
+    private void writeContent(PrintWriter out,
+                              String[] parts,
+                              boolean headersOnly) {
+        try {
+            // if it has a second part, we assume the date should be
+            // translated to the one given, else the content
+            // is given as-is.
+            if (parts.length > 1) {
+                new CachedContent(m_cache.getFile(parts[0]),
+                        parts[1],
+                        headersOnly).write(out);
+            } else {
+                new CachedContent(m_cache.getFile(parts[0])).write(out);
+            }
+        } catch (Exception e) {
+            // must have moved out of cache -- ignore
+        }
+    }
+
 }
\ No newline at end of file
@@ -2,24 +2,39 @@ package proai.cache;
 
 import org.apache.log4j.Logger;
 import proai.error.ServerException;
+import proai.util.DBUtil;
 import proai.util.StreamUtil;
 
 import java.sql.Connection;
 import java.sql.SQLException;
 import java.util.ArrayList;
 import java.util.Date;
+import java.util.HashSet;
+import java.util.LinkedList;
 import java.util.List;
 import java.util.Map;
+import java.util.Random;
+import java.util.Set;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
 
 /**
  * A thread for committing a series of <code>QueueItem</code> updates to the
  * database.
  * <p/>
- * <p>Items are added to a "commit queue" by <code>Worker</code> threads via the
- * synchronized handoff() method.  This can occur before the thread is actually
- * started.  Once the thread is started, the items are removed asynchronously,
- * then committed, until all workers have finished and ( the queue is empty
- * or processing has been aborted ).
+ * <p>Items are added to a bounded "commit queue" by <code>Worker</code> threads
+ * via the handoff() method.  This can occur before the thread is actually
+ * started.  Workers block while the queue is at capacity, and the committer
+ * blocks while it is empty; both are woken by signals rather than polling.
+ * Once the thread is started, the items are removed and committed until all
+ * registered workers have finished and ( the queue is empty or processing
+ * has been aborted ).
+ * <p/>
+ * <p>Several committers may run at once, as long as each is handed a
+ * distinct set of item identifiers (see <code>Updater</code>).  Since every
+ * statement a committer issues is restricted to the items it was given, they
+ * don't contend for the same rows.  A transaction that fails only because it
+ * conflicts with a concurrent one is retried.
  *
  * @author Chris Wilper
  */
@@ -27,48 +42,80 @@ public class Committer extends Thread {
 
     private static Logger _LOG = Logger.getLogger(Committer.class.getName());
 
+    /**
+     * How many times to attempt a transaction that fails only because it
+     * conflicts with a concurrent one.  Databases that detect conflicts per
+     * table rather than per row (like McKoi) will see them often when
+     * several committers are running, so this is generous.
+     */
+    private static final int MAX_CONFLICT_RETRIES = 10;
+
+    /**
+     * Before each retry, wait a random time up to this many milliseconds
+     * times the number of attempts so far, so that conflicting committers
+     * don't keep retrying in lockstep.
+     */
+    private static final int CONFLICT_BACKOFF_MILLIS = 50;
+
+    private static final Random _RANDOM = new Random();
+
     private Updater _updater;
     private RCDatabase _db;
+    private String _nodeId;
+    private RetrySchedule _retrySchedule;
     private int _maxCommitQueueSize;
-    private int _maxRecordsPerTransaction;
+    private volatile int _maxRecordsPerTransaction;
 
     private Map<String, Integer> _formatKeyMap;
 
-    private List<QueueItem> _commitQueue;
-    private int _lastCommitQueueSize;
+    private LinkedList<QueueItem> _commitQueue;
+
+    /**
+     * Guards the commit queue, the running worker count, and the finished
+     * flag.  Workers wait on _notFull, the committer waits on _notEmpty.
+     */
+    private ReentrantLock _lock = new ReentrantLock();
+    private Condition _notFull = _lock.newCondition();
+    private Condition _notEmpty = _lock.newCondition();
 
     /**
-     * This lock is used to ensure threadsafe access to the _lastCommitQueueSize
-     * primitive.  By design, only two threads will ever be contending for it.
+     * The number of workers that have been registered via workerStarted()
+     * and have not yet called workerFinished().
      */
-    private Object _lastCommitQueueSizeLock = new Object();
+    private int _runningWorkers;
 
     /**
      * Only true if the thread has been started and has finished.
      */
     private boolean _finishedRunning;
 
-    private int _transactionCount;
-    private int _processedCount;
-    private long _totalCommitTime;
+    // written only by this thread, but read by the Updater while running
+    private volatile int _transactionCount;
+    private volatile int _processedCount;
+    private volatile long _totalCommitTime;
 
     /**
      * Construct a new committer with the given configuration.
      * <p/>
      * The caller is responsible for actually starting the thread.
      */
-    public Committer(Updater updater,
+    public Committer(String name,
+                     Updater updater,
                      RCDatabase db,
+                     String nodeId,
+                     RetrySchedule retrySchedule,
                      int maxCommitQueueSize,
                      int maxRecordsPerTransaction) throws ServerException {
 
-        super("Committer");
+        super(name);
         _updater = updater;
         _db = db;
+        _nodeId = nodeId;
+        _retrySchedule = retrySchedule;
         _maxCommitQueueSize = maxCommitQueueSize;
         _maxRecordsPerTransaction = maxRecordsPerTransaction;
 
-        _commitQueue = new ArrayList<QueueItem>(_maxCommitQueueSize);
+        _commitQueue = new LinkedList<QueueItem>();
 
         // get this now -- it won't change while the thread is running
         Connection conn = null;
@@ -84,152 +131,210 @@ public class Committer extends Thread {
     }
 
     /**
-     * Attempt to add the list of <code>QueueItems</code> to the commit queue
-     * and return immediately.
+     * Register a worker that will hand off items to this committer.
      * <p/>
-     * This method will block until adding the list would not cause the queue
-     * to exceed its capacity or the thread is finished running.
+     * This must be called before the worker starts, and the worker must
+     * call workerFinished() when it is done.  Workers may be registered
+     * while the committer is running, as long as it hasn't yet finished.
      *
-     * @return whether the handoff was successful.  The handoff will only
-     * fail if the <code>Committer</code> thread has been stopped.
+     * @return whether the worker was registered.  This will only be false
+     * if the committer has already finished.
      */
-    protected synchronized boolean handoff(List<QueueItem> queueItems) {
-
-        int toAddSize = queueItems.size();
-        while (!_finishedRunning &&
-                (getLastCommitQueueSize() + toAddSize) > _maxCommitQueueSize) {
-            _LOG.debug("Commit queue is too big; waiting for it shrink "
-                    + "or for Committer thread to finish");
-            try {
-                Thread.sleep(100);
-            } catch (Exception e) {
-            }
-        }
-        if (!_finishedRunning) {
-            synchronized (_commitQueue) {
-                _commitQueue.addAll(queueItems);
-                setLastCommitQueueSize(_commitQueue.size());
+    protected boolean workerStarted() {
+        _lock.lock();
+        try {
+            if (_finishedRunning) {
+                return false;
             }
+            _runningWorkers++;
             return true;
-        } else {
-            return false;
+        } finally {
+            _lock.unlock();
         }
     }
 
     /**
-     * Get the last known queue size as long as the last known size is not
-     * currently being written.  The caller does not need to have a lock on
-     * the entire queue.
+     * Signal that a previously-registered worker will not hand off any more
+     * items.  When the last worker finishes, the committer is woken so it can
+     * drain the queue and exit.
      */
-    private int getLastCommitQueueSize() {
-        synchronized (_lastCommitQueueSizeLock) {
-            return _lastCommitQueueSize;
+    protected void workerFinished() {
+        _lock.lock();
+        try {
+            _runningWorkers--;
+            if (_runningWorkers == 0) {
+                _notEmpty.signalAll();
+            }
+        } finally {
+            _lock.unlock();
         }
     }
 
     /**
-     * Set the last known queue size as long as the last known size is not
-     * currently being read. The caller should already have a lock on the queue.
+     * Attempt to add the list of <code>QueueItems</code> to the commit queue
+     * and return immediately.
+     * <p/>
+     * This method will block until adding the list would not cause the queue
+     * to exceed its capacity or the thread is finished running.  A list
+     * larger than the capacity is accepted as soon as the queue is empty.
+     *
+     * @return whether the handoff was successful.  The handoff will only
+     * fail if the <code>Committer</code> thread has been stopped.
      */
-    private void setLastCommitQueueSize(int size) {
-        synchronized (_lastCommitQueueSizeLock) {
-            _lastCommitQueueSize = size;
+    protected boolean handoff(List<QueueItem> queueItems) {
+
+        int toAddSize = queueItems.size();
+        _lock.lock();
+        try {
+            while (!_finishedRunning
+                    && _commitQueue.size() > 0
+                    && (_commitQueue.size() + toAddSize) > _maxCommitQueueSize) {
+                _LOG.debug("Commit queue is too big; waiting for it shrink "
+                        + "or for Committer thread to finish");
+                _notFull.awaitUninterruptibly();
+            }
+            if (!_finishedRunning) {
+                _commitQueue.addAll(queueItems);
+                _notEmpty.signal();
+                return true;
+            } else {
+                return false;
+            }
+        } finally {
+            _lock.unlock();
         }
     }
 
     /**
      * Run the thread.
      * <p/>
-     * This works in two phases.  The first phase executes while workers are
-     * running and the second phase commits all remaining items unless
-     * processing is aborted.
+     * While workers are running, every transaction that becomes available
+     * is committed.  Once all workers have finished, remaining items are
+     * committed unless processing has been aborted.
      */
     public void run() {
 
-        _LOG.info("Committer started");
+        _LOG.info(getName() + " started");
 
-        // phase one
-        while (_updater.anyWorkersAreRunning()) {
+        try {
             List<QueueItem> nextItems = getNextTransactionItems();
-            while (nextItems == null && _updater.anyWorkersAreRunning()) {
-                // wait for the queue to have items
-                _LOG.debug("Commit queue is empty; waiting for worker(s)");
-                try {
-                    Thread.sleep(100);
-                } catch (Exception e) {
-                }
+            while (nextItems != null) {
+                commit(nextItems);
                 nextItems = getNextTransactionItems();
             }
-            if (nextItems != null) {
-                commit(nextItems);
+        } finally {
+            _lock.lock();
+            try {
+                _finishedRunning = true;
+                _notFull.signalAll();
+            } finally {
+                _lock.unlock();
             }
+            _LOG.info(getName() + " finished");
         }
-
-        // phase two
-        List<QueueItem> lastItems = getNextTransactionItems();
-        while (!_updater.processingShouldStop() && lastItems != null) {
-            commit(lastItems);
-            lastItems = getNextTransactionItems();
-        }
-
-        _LOG.info("Committer finished");
-        _finishedRunning = true;
-
     }
 
     /**
-     * If any items are currently on the commit queue, take up to
-     * the maximum per-transaction off the queue and return them.
+     * Wait until items are available on the commit queue or all workers
+     * have finished, then take up to the maximum per-transaction off the
+     * queue and return them.
      * <p/>
-     * Otherwise, return <code>null</code>.
+     * Returns <code>null</code> if the queue is empty and no workers are
+     * running, or if all workers have finished and processing should stop.
      */
     private List<QueueItem> getNextTransactionItems() {
 
-        synchronized (_commitQueue) {
-            if (_commitQueue.size() == 0) {
+        _lock.lock();
+        try {
+            while (_commitQueue.size() == 0 && _runningWorkers > 0) {
+                _LOG.debug("Commit queue is empty; waiting for worker(s)");
+                _notEmpty.awaitUninterruptibly();
+            }
+            if (_commitQueue.size() == 0
+                    || (_runningWorkers == 0 && _updater.processingShouldStop())) {
+                // no more workers can be registered after this point
+                _finishedRunning = true;
+                _notFull.signalAll();
                 return null;
-            } else {
-                List<QueueItem> nextItems = new ArrayList<QueueItem>();
-                while ((_commitQueue.size() > 0) &&
-                        (nextItems.size() < _maxRecordsPerTransaction)) {
-                    nextItems.add(_commitQueue.remove(0));
-                }
-                setLastCommitQueueSize(_commitQueue.size());
-                return nextItems;
             }
+            List<QueueItem> nextItems = new ArrayList<QueueItem>();
+            while ((_commitQueue.size() > 0) &&
+                    (nextItems.size() < _maxRecordsPerTransaction)) {
+                nextItems.add(_commitQueue.removeFirst());
+            }
+            _notFull.signalAll();
+            return nextItems;
+        } finally {
+            _lock.unlock();
         }
     }
 
     private void commit(List<QueueItem> items) {
 
+        long commitStartTime = System.currentTimeMillis();
+        int attempt = 1;
+        while (true) {
+            try {
+                tryCommit(items);
+                _updater.itemsCommitted(items);
+                _transactionCount++;
+                _processedCount += items.size();
+                _totalCommitTime += System.currentTimeMillis() - commitStartTime;
+                _LOG.info("Committed " + items.size() + " QueueItems to database");
+                return;
+            } catch (Throwable th) {
+                if (attempt < MAX_CONFLICT_RETRIES && DBUtil.isTransientConflict(th)) {
+                    _LOG.info("Transaction conflicted with another; retrying");
+                    try {
+                        Thread.sleep(_RANDOM.nextInt(CONFLICT_BACKOFF_MILLIS * attempt) + 1);
+                    } catch (InterruptedException e) {
+                    }
+                    attempt++;
+                } else {
+                    // delete uncommitted files
+                    for (QueueItem item : items) {
+                        ParsedRecord pr = item.getParsedRecord();
+                        if (pr != null) pr.deleteFile();
+                    }
+
+                    // ...then signal error to updater
+                    _updater.handleCommitException(th);
+                    return;
+                }
+            }
+        }
+    }
+
+    /**
+     * Commit the given items in a single transaction, rolling back if it
+     * fails.
+     */
+    private void tryCommit(List<QueueItem> items) throws Exception {
+
         Connection conn = null;
         boolean startedTransaction = false;
+        boolean committed = false;
 
-        long commitStartTime = System.currentTimeMillis();
         try {
 
             conn = RecordCache.getConnection();
             conn.setAutoCommit(false);
             startedTransaction = true;
 
-            // update the database for each record, as necessary
-            for (QueueItem item : items) {
-                updateItem(conn, item);
-            }
+            // update the database for all records at once
+            Map<String, Integer> itemKeys = updateItems(conn, items);
 
             // set the estimated commit date for all added/modified records
             // in the transaction.  This obviously can't be exact, so we put
             // it into the future by a few seconds to be on the safe side.
             Date cacheCommitDate = new Date(StreamUtil.nowUTC().getTime() + 5000);
 
-            _db.setUncommittedRecordDates(conn, cacheCommitDate);
+            _db.setUncommittedRecordDates(conn, cacheCommitDate, itemKeys.values());
 
             // finally, commit
             conn.commit();
-            _transactionCount++;
-            _processedCount += items.size();
-            _totalCommitTime += System.currentTimeMillis() - commitStartTime;
-            _LOG.info("Committed " + items.size() + " QueueItems to database");
+            committed = true;
+            _db.cacheItemKeys(itemKeys);
 
             // before returning, check if our cacheCommitDate estimate was ok
             Date now = StreamUtil.nowUTC();
@@ -242,27 +347,16 @@ public class Committer extends Thread {
                         + "have missed these records.");
             }
 
-        } catch (Throwable th) {
+        } finally {
             // roll back uncommitted db updates
-            if (startedTransaction) {
+            if (startedTransaction && !committed) {
                 try {
                     conn.rollback();
                 } catch (Exception e) {
                     _LOG.error("Failed to roll back failed transaction", e);
                 }
             }
-
-            // ...delete uncommitted files
-            for (QueueItem item : items) {
-                ParsedRecord pr = item.getParsedRecord();
-                if (pr != null) pr.deleteFile();
-            }
-
-            // ...then signal error to updater
-            _updater.handleCommitException(th);
-
-        } finally {
-            // release the connection in its original state
+            // ...and release the connection in its original state
             if (conn != null) {
                 try {
                     if (startedTransaction) conn.setAutoCommit(false);
@@ -275,37 +369,82 @@ public class Committer extends Thread {
         }
     }
 
-    private void updateItem(Connection conn,
-                            QueueItem item) throws Exception {
+    private Map<String, Integer> updateItems(Connection conn,
+                                             List<QueueItem> items) throws Exception {
 
-        _db.removeFromQueue(conn, item.getQueueKey());
-        if (item.succeeded()) {
-            _db.putRecord(conn, item.getParsedRecord(), _formatKeyMap);
-            if (item.getQueueSource() == 'F') {
-                _db.removeFailure(conn, item.getIdentifier(), item.getMDPrefix());
+        List<QueueItem> removed = _db.removeQueueItems(conn, items, _nodeId);
+        if (removed.size() < items.size()) {
+            // our lease expired and another node has claimed these items,
+            // so leave them to that node
+            Set<QueueItem> kept = new HashSet<QueueItem>(removed);
+            for (QueueItem item : items) {
+                if (!kept.contains(item)) {
+                    _LOG.warn("Lost lease on queue item " + item.getQueueKey()
+                            + " (" + item.getIdentifier() + "/" + item.getMDPrefix()
+                            + "); skipping it");
+                    ParsedRecord pr = item.getParsedRecord();
+                    if (pr != null) pr.deleteFile();
+                }
             }
-        } else {
-            int oldFailCount = _db.getFailCount(conn,
-                    item.getIdentifier(),
-                    item.getMDPrefix());
-
-            if (oldFailCount == -1) {
-                _db.addFailure(conn,
-                        item.getIdentifier(),
-                        item.getMDPrefix(),
-                        item.getSourceInfo(),
-                        item.getFailDate(),
-                        item.getFailReason());
+        }
+
+        List<ParsedRecord> records = new ArrayList<ParsedRecord>();
+        for (QueueItem item : removed) {
+            if (item.succeeded()) {
+                records.add(item.getParsedRecord());
+                if (item.getQueueSource() == 'F') {
+                    _db.removeFailure(conn, item.getIdentifier(), item.getMDPrefix());
+                }
             } else {
-                _db.updateFailure(conn,
-                        item.getIdentifier(),
-                        item.getMDPrefix(),
-                        item.getSourceInfo(),
-                        oldFailCount + 1,
-                        item.getFailDate(),
-                        item.getFailReason());
+                updateFailure(conn, item);
             }
         }
+        return _db.putRecords(conn, records, _formatKeyMap);
+    }
+
+    private void updateFailure(Connection conn,
+                               QueueItem item) throws Exception {
+
+        int oldFailCount = _db.getFailCount(conn,
+                item.getIdentifier(),
+                item.getMDPrefix());
+        long now = System.currentTimeMillis();
+
+        if (oldFailCount == -1) {
+            _db.addFailure(conn,
+                    item.getIdentifier(),
+                    item.getMDPrefix(),
+                    item.getSourceInfo(),
+                    item.getFailDate(),
+                    item.getFailReason(),
+                    _retrySchedule.getNextAttemptDate(0, now));
+        } else {
+            _db.updateFailure(conn,
+                    item.getIdentifier(),
+                    item.getMDPrefix(),
+                    item.getSourceInfo(),
+                    oldFailCount + 1,
+                    item.getFailDate(),
+                    item.getFailReason(),
+                    _retrySchedule.getNextAttemptDate(oldFailCount + 1, now));
+        }
+    }
+
+    /**
+     * Change the maximum number of items committed per transaction.
+     * This takes effect starting with the next transaction.
+     */
+    protected void setMaxRecordsPerTransaction(int maxRecordsPerTransaction) {
+        _maxRecordsPerTransaction = maxRecordsPerTransaction;
+    }
+
+    protected int getQueueSize() {
+        _lock.lock();
+        try {
+            return _commitQueue.size();
+        } finally {
+            _lock.unlock();
+        }
     }
 
     protected int getTransactionCount() {
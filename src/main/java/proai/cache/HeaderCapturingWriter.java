@@ -0,0 +1,280 @@
+package proai.cache;
+
+import java.io.FilterWriter;
+import java.io.IOException;
+import java.io.Writer;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * A writer that passes everything through to an underlying writer while
+ * watching for the datestamp and setSpec values in an OAI record header.
+ * <p/>
+ * <p>This allows the header values to be known as soon as the record has
+ * been written, without reading the file back.  Scanning stops at the end
+ * of the header, so the rest of the record passes through untouched.
+ * <p/>
+ * <p>The scanner only understands as much XML as is expected before the
+ * end of a header: elements, attributes, comments, CDATA sections,
+ * processing instructions, and character references.  If it sees anything
+ * else, or the header doesn't end within the first
+ * <code>MAX_SCAN_CHARS</code> characters, it gives up, and
+ * <code>isComplete()</code> returns false.  Callers should then fall back
+ * to parsing the file.
+ */
+public class HeaderCapturingWriter extends FilterWriter {
+
+    public static final int MAX_SCAN_CHARS = 64 * 1024;
+
+    private static final int TEXT = 0;
+    private static final int TAG = 1;
+    private static final int COMMENT = 2;
+    private static final int CDATA = 3;
+    private static final int PI = 4;
+
+    private boolean m_scanning = true;
+    private boolean m_complete;
+    private int m_scanned;
+
+    private int m_state = TEXT;
+    private StringBuffer m_tag = new StringBuffer();
+    private char m_quote;
+
+    private StringBuffer m_text;  // non-null while in datestamp or setSpec
+    private boolean m_inDatestamp;
+
+    private String m_datestamp;
+    private List<String> m_setSpecs = new ArrayList<String>();
+
+    public HeaderCapturingWriter(Writer out) {
+        super(out);
+    }
+
+    public void write(int c) throws IOException {
+        if (m_scanning) scan((char) c);
+        out.write(c);
+    }
+
+    public void write(char[] cbuf, int off, int len) throws IOException {
+        for (int i = off; m_scanning && i < off + len; i++) {
+            scan(cbuf[i]);
+        }
+        out.write(cbuf, off, len);
+    }
+
+    public void write(String str, int off, int len) throws IOException {
+        for (int i = off; m_scanning && i < off + len; i++) {
+            scan(str.charAt(i));
+        }
+        out.write(str, off, len);
+    }
+
+    /**
+     * Whether the end of the header was seen and all values in it were
+     * understood.
+     */
+    public boolean isComplete() {
+        return m_complete;
+    }
+
+    /**
+     * Get the captured datestamp, or null if none was seen.
+     */
+    public String getDatestamp() {
+        return m_datestamp;
+    }
+
+    /**
+     * Get the captured setSpecs, in the order seen.
+     */
+    public List<String> getSetSpecs() {
+        return m_setSpecs;
+    }
+
+    private void giveUp() {
+        m_scanning = false;
+        m_complete = false;
+    }
+
+    private void scan(char c) {
+        if (++m_scanned > MAX_SCAN_CHARS) {
+            giveUp();
+            return;
+        }
+        switch (m_state) {
+            case TEXT:
+                if (c == '<') {
+                    m_state = TAG;
+                    m_tag.setLength(0);
+                    m_quote = 0;
+                } else if (m_text != null) {
+                    m_text.append(c);
+                }
+                break;
+            case TAG:
+                if (m_quote != 0) {
+                    if (c == m_quote) m_quote = 0;
+                    m_tag.append(c);
+                } else if (c == '"' || c == '\'') {
+                    m_quote = c;
+                    m_tag.append(c);
+                } else if (c == '>') {
+                    m_state = TEXT;
+                    endTag();
+                } else {
+                    m_tag.append(c);
+                    checkSpecialStart();
+                }
+                break;
+            case COMMENT:
+                m_tag.append(c);
+                if (endsWith("-->")) m_state = TEXT;
+                break;
+            case CDATA:
+                m_tag.append(c);
+                if (endsWith("]]>")) {
+                    if (m_text != null) {
+                        // escaped so it comes through decode() unchanged
+                        String cdata = m_tag.substring(0, m_tag.length() - 3);
+                        m_text.append(cdata.replaceAll("&", "&amp;"));
+                    }
+                    m_state = TEXT;
+                } else if (m_tag.length() > 3 && m_text == null) {
+                    // only the tail is needed to find the end
+                    m_tag.delete(0, m_tag.length() - 3);
+                }
+                break;
+            case PI:
+                m_tag.append(c);
+                if (endsWith("?>")) m_state = TEXT;
+                break;
+        }
+    }
+
+    private boolean endsWith(String suffix) {
+        int len = m_tag.length();
+        return len >= suffix.length()
+                && m_tag.substring(len - suffix.length()).equals(suffix);
+    }
+
+    /**
+     * Switch to comment, CDATA, or PI mode if the tag so far starts one.
+     */
+    private void checkSpecialStart() {
+        int len = m_tag.length();
+        if (len == 1 && m_tag.charAt(0) == '?') {
+            m_state = PI;
+            m_tag.setLength(0);
+        } else if (len == 3 && m_tag.toString().equals("!--")) {
+            m_state = COMMENT;
+            m_tag.setLength(0);
+        } else if (len == 8 && m_tag.toString().equals("![CDATA[")) {
+            m_state = CDATA;
+            m_tag.setLength(0);
+        }
+    }
+
+    private void endTag() {
+        String tag = m_tag.toString();
+        if (tag.startsWith("!")) {
+            // a declaration (e.g. DOCTYPE) -- not expected in a record
+            giveUp();
+            return;
+        }
+        boolean isEnd = tag.startsWith("/");
+        boolean isEmpty = !isEnd && tag.endsWith("/");
+        String name = getName(isEnd ? tag.substring(1) : tag);
+        if (isEnd) {
+            if (name.equals("header")) {
+                m_scanning = false;
+                m_complete = true;
+            } else if (m_text != null
+                    && name.equals(m_inDatestamp ? "datestamp" : "setSpec")) {
+                String value = decode(m_text.toString());
+                if (value == null) {
+                    giveUp();
+                    return;
+                }
+                if (m_inDatestamp) {
+                    m_datestamp = value.trim();
+                } else {
+                    m_setSpecs.add(value.trim());
+                }
+                m_text = null;
+            }
+        } else if (name.equals("datestamp") || name.equals("setSpec")) {
+            if (m_text != null) {
+                // nested; not a well-formed header
+                giveUp();
+            } else if (isEmpty) {
+                if (name.equals("datestamp")) {
+                    m_datestamp = "";
+                } else {
+                    m_setSpecs.add("");
+                }
+            } else {
+                m_inDatestamp = name.equals("datestamp");
+                m_text = new StringBuffer();
+            }
+        }
+    }
+
+    private static String getName(String tag) {
+        int i = 0;
+        while (i < tag.length()) {
+            char c = tag.charAt(i);
+            if (c == '/' || Character.isWhitespace(c)) break;
+            i++;
+        }
+        return tag.substring(0, i);
+    }
+
+    /**
+     * Replace predefined entity and character references, or return null
+     * if there is any other kind of reference.
+     */
+    private static String decode(String s) {
+        if (s.indexOf('&') == -1) return s;
+        StringBuffer out = new StringBuffer();
+        int i = 0;
+        while (i < s.length()) {
+            char c = s.charAt(i);
+            if (c == '&') {
+                int end = s.indexOf(';', i);
+                if (end == -1) return null;
+                String ref = s.substring(i + 1, end);
+                if (ref.equals("lt")) {
+                    out.append('<');
+                } else if (ref.equals("gt")) {
+                    out.append('>');
+                } else if (ref.equals("amp")) {
+                    out.append('&');
+                } else if (ref.equals("quot")) {
+                    out.append('"');
+                } else if (ref.equals("apos")) {
+                    out.append('\'');
+                } else if (ref.startsWith("#")) {
+                    try {
+                        int cp;
+                        if (ref.startsWith("#x")) {
+                            cp = Integer.parseInt(ref.substring(2), 16);
+                        } else {
+                            cp = Integer.parseInt(ref.substring(1));
+                        }
+                        out.append(Character.toChars(cp));
+                    } catch (Exception e) {
+                        return null;
+                    }
+                } else {
+                    return null;
+                }
+                i = end + 1;
+            } else {
+                out.append(c);
+                i++;
+            }
+        }
+        return out.toString();
+    }
+
+}
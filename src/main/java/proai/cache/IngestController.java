@@ -0,0 +1,241 @@
+package proai.cache;
+
+import org.apache.log4j.Logger;
+
+/**
+ * Adjusts worker parallelism and transaction size while the queue is being
+ * processed, based on the fetch and commit timings that the workers and
+ * committer already collect.
+ * <p/>
+ * <p>Worker count follows an additive-increase, multiplicative-decrease
+ * policy: one worker is added per interval while the source keeps up and
+ * throughput isn't falling, and a quarter of the workers are retired when
+ * commits start to lag or fetch latency rises well above the best latency
+ * recently seen.  Transaction size is halved when transactions take longer
+ * than the target commit time, and grown when commits are lagging but each
+ * transaction is cheap.
+ * <p/>
+ * <p>The configured maxWorkers and maxRecordsPerTransaction are used as
+ * upper bounds.  State is kept across rounds so each round starts from
+ * what was learned in the previous one.
+ */
+class IngestController {
+
+    private static Logger _LOG = Logger.getLogger(IngestController.class.getName());
+
+    /**
+     * How often the Updater should call adjust() while processing.
+     */
+    public static final long ADJUST_INTERVAL_MILLIS = 5000;
+
+    /**
+     * Transactions taking longer than this on average will be made smaller.
+     */
+    private static final long TARGET_COMMIT_MILLIS = 1000;
+
+    /**
+     * Fetch latency this many times the baseline means the source is slowing.
+     */
+    private static final double SLOWDOWN_FACTOR = 2.0;
+
+    private int _maxWorkers;
+    private int _maxRecordsPerTransaction;
+
+    private int _targetWorkers;
+    private int _transactionSize;
+
+    private int _runningWorkers;
+    private int _pendingRetirements;
+
+    private long _lastTickTime;
+    private long _lastFetchTime;
+    private int _lastAttemptedCount;
+    private long _lastCommitTime;
+    private int _lastTransactionCount;
+    private int _lastProcessedCount;
+    private double _lastThroughput;
+
+    private double _baselineFetchMillis = -1;
+
+    public IngestController(int maxWorkers, int maxRecordsPerTransaction) {
+        _maxWorkers = maxWorkers;
+        _maxRecordsPerTransaction = maxRecordsPerTransaction;
+        _targetWorkers = 0;  // not yet known; set by the first round
+        _transactionSize = maxRecordsPerTransaction;
+    }
+
+    /**
+     * Prepare for a new round of processing with a new set of workers and
+     * a new committer, and return the number of workers to start with.
+     * <p/>
+     * The first round starts with the suggested number of workers.  Later
+     * rounds start with the number learned in the previous round, unless
+     * fewer are suggested.
+     *
+     * @param suggestedWorkers the number of workers the queue size warrants.
+     */
+    public int startRound(int suggestedWorkers) {
+        return startRound(suggestedWorkers, System.currentTimeMillis());
+    }
+
+    synchronized int startRound(int suggestedWorkers, long now) {
+        if (_targetWorkers < 1 || _targetWorkers > suggestedWorkers) {
+            _targetWorkers = suggestedWorkers;
+        }
+        if (_targetWorkers > _maxWorkers) _targetWorkers = _maxWorkers;
+        if (_targetWorkers < 1) _targetWorkers = 1;
+        _runningWorkers = 0;
+        _pendingRetirements = 0;
+        _lastTickTime = now;
+        _lastFetchTime = 0;
+        _lastAttemptedCount = 0;
+        _lastCommitTime = 0;
+        _lastTransactionCount = 0;
+        _lastProcessedCount = 0;
+        _lastThroughput = 0;
+        return _targetWorkers;
+    }
+
+    public synchronized void workerStarted() {
+        _runningWorkers++;
+    }
+
+    /**
+     * @param retired whether the worker was told to retire by
+     *                <code>shouldRetire()</code>.
+     */
+    public synchronized void workerFinished(boolean retired) {
+        _runningWorkers--;
+        if (retired && _pendingRetirements > 0) _pendingRetirements--;
+    }
+
+    /**
+     * Whether the calling worker should stop taking batches because there
+     * are more running than the current target.
+     */
+    public synchronized boolean shouldRetire() {
+        if (_runningWorkers - _pendingRetirements > _targetWorkers) {
+            _pendingRetirements++;
+            return true;
+        } else {
+            return false;
+        }
+    }
+
+    public synchronized int getTargetWorkers() {
+        return _targetWorkers;
+    }
+
+    public synchronized int getRunningWorkers() {
+        return _runningWorkers - _pendingRetirements;
+    }
+
+    public synchronized int getTransactionSize() {
+        return _transactionSize;
+    }
+
+    /**
+     * Re-compute the worker target and transaction size given the latest
+     * cumulative totals for this round.  Commit totals are summed across
+     * all of the round's committers, each of which has a commit queue of
+     * the given maximum size.
+     */
+    public void adjust(long totalFetchTime,
+                       int attemptedCount,
+                       long totalCommitTime,
+                       int transactionCount,
+                       int processedCount,
+                       int commitQueueSize,
+                       int maxCommitQueueSize,
+                       int committers) {
+        adjust(totalFetchTime, attemptedCount, totalCommitTime,
+                transactionCount, processedCount, commitQueueSize,
+                maxCommitQueueSize, committers, System.currentTimeMillis());
+    }
+
+    synchronized void adjust(long totalFetchTime,
+                             int attemptedCount,
+                             long totalCommitTime,
+                             int transactionCount,
+                             int processedCount,
+                             int commitQueueSize,
+                             int maxCommitQueueSize,
+                             int committers,
+                             long now) {
+
+        long elapsed = now - _lastTickTime;
+        if (elapsed <= 0) return;
+
+        long fetchDelta = totalFetchTime - _lastFetchTime;
+        int attemptedDelta = attemptedCount - _lastAttemptedCount;
+        long commitDelta = totalCommitTime - _lastCommitTime;
+        int transactionDelta = transactionCount - _lastTransactionCount;
+        int processedDelta = processedCount - _lastProcessedCount;
+        double throughput = (double) processedDelta * 1000.0 / (double) elapsed;
+
+        // commits are lagging if the queues are backing up or the
+        // committers were busy for nearly the whole interval
+        boolean commitLagging = commitQueueSize > (maxCommitQueueSize * committers) / 2
+                || commitDelta > (elapsed * 9 * committers) / 10;
+
+        // the source is slowing if latency is well above the baseline,
+        // which tracks the best recent latency but drifts up slowly
+        boolean sourceSlowing = false;
+        double fetchMillis = 0;
+        if (attemptedDelta > 0) {
+            fetchMillis = (double) fetchDelta / (double) attemptedDelta;
+            if (_baselineFetchMillis < 0 || fetchMillis < _baselineFetchMillis) {
+                _baselineFetchMillis = fetchMillis;
+            } else {
+                sourceSlowing = fetchMillis > _baselineFetchMillis * SLOWDOWN_FACTOR
+                        && fetchMillis - _baselineFetchMillis > 50;
+                _baselineFetchMillis = _baselineFetchMillis * 0.9 + fetchMillis * 0.1;
+            }
+        }
+
+        int oldTarget = _targetWorkers;
+        if (commitLagging || sourceSlowing) {
+            int decrease = _targetWorkers / 4;
+            if (decrease < 1) decrease = 1;
+            _targetWorkers -= decrease;
+            if (_targetWorkers < 1) _targetWorkers = 1;
+        } else if (attemptedDelta > 0 && throughput >= _lastThroughput * 0.95) {
+            if (_targetWorkers < _maxWorkers) _targetWorkers++;
+        }
+
+        int oldSize = _transactionSize;
+        if (transactionDelta > 0) {
+            long commitMillis = commitDelta / transactionDelta;
+            if (commitMillis > TARGET_COMMIT_MILLIS) {
+                _transactionSize = _transactionSize / 2;
+                if (_transactionSize < 1) _transactionSize = 1;
+            } else if (commitLagging && commitMillis < TARGET_COMMIT_MILLIS / 2) {
+                int increase = _transactionSize / 4;
+                if (increase < 1) increase = 1;
+                _transactionSize += increase;
+                if (_transactionSize > _maxRecordsPerTransaction) {
+                    _transactionSize = _maxRecordsPerTransaction;
+                }
+            }
+        }
+
+        if (_targetWorkers != oldTarget || _transactionSize != oldSize) {
+            _LOG.info("Adjusted ingest concurrency: workers " + oldTarget
+                    + " -> " + _targetWorkers + ", recs/transaction "
+                    + oldSize + " -> " + _transactionSize + " (fetch="
+                    + Math.round(fetchMillis) + "ms, rate="
+                    + Math.round(throughput) + "/sec, commitQueue="
+                    + commitQueueSize + ", commitLagging=" + commitLagging
+                    + ", sourceSlowing=" + sourceSlowing + ")");
+        }
+
+        _lastTickTime = now;
+        _lastFetchTime = totalFetchTime;
+        _lastAttemptedCount = attemptedCount;
+        _lastCommitTime = totalCommitTime;
+        _lastTransactionCount = transactionCount;
+        _lastProcessedCount = processedCount;
+        _lastThroughput = throughput;
+    }
+
+}
@@ -0,0 +1,102 @@
+package proai.cache;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * A bounded, thread-safe cache of database keys by name, such as itemKey
+ * by identifier.
+ * <p/>
+ * <p>When full, the least recently used entry is evicted.  Entries may
+ * also be given a maximum age, after which they are looked up again; this
+ * bounds how long a change made by another node can go unseen.
+ * <p/>
+ * <p>To avoid caching a value that was read before an invalidation but
+ * added after it, callers get the current generation before reading from
+ * the database, and pass it to <code>put()</code>.  Values read in an
+ * earlier generation are ignored.
+ */
+public class KeyCache {
+
+    private final int _maxSize;
+    private final long _maxAgeMillis;
+
+    private final LinkedHashMap<String, CachedKey> _map;
+    private long _generation;
+
+    /**
+     * @param maxSize      the most entries to keep.
+     * @param maxAgeMillis how long to keep each entry, or 0 for no limit.
+     */
+    public KeyCache(int maxSize, long maxAgeMillis) {
+        _maxSize = maxSize;
+        _maxAgeMillis = maxAgeMillis;
+        _map = new LinkedHashMap<String, CachedKey>(16, 0.75f, true) {
+            static final long serialVersionUID = 1;
+
+            protected boolean removeEldestEntry(Map.Entry<String, CachedKey> eldest) {
+                return size() > _maxSize;
+            }
+        };
+    }
+
+    /**
+     * Get the key for the given name, or null if it isn't cached.
+     */
+    public synchronized Integer get(String name) {
+        CachedKey entry = _map.get(name);
+        if (entry != null && _maxAgeMillis > 0
+                && System.currentTimeMillis() - entry.time > _maxAgeMillis) {
+            _map.remove(name);
+            entry = null;
+        }
+        return entry == null ? null : entry.key;
+    }
+
+    /**
+     * Get the current generation, which changes with each invalidation.
+     */
+    public synchronized long getGeneration() {
+        return _generation;
+    }
+
+    /**
+     * Cache the given key, unless the cache has been invalidated since the
+     * given generation.
+     */
+    public synchronized void put(String name, Integer key, long generation) {
+        if (generation == _generation && _maxSize > 0) {
+            _map.put(name, new CachedKey(key));
+        }
+    }
+
+    /**
+     * Cache all of the given keys, unless the cache has been invalidated
+     * since the given generation.
+     */
+    public synchronized void putAll(Map<String, Integer> keys, long generation) {
+        for (Map.Entry<String, Integer> e : keys.entrySet()) {
+            put(e.getKey(), e.getValue(), generation);
+        }
+    }
+
+    /**
+     * Remove all entries, and ignore any values read before now.
+     */
+    public synchronized void invalidate() {
+        _map.clear();
+        _generation++;
+    }
+
+    private static class CachedKey {
+
+        final Integer key;
+        final long time;
+
+        CachedKey(Integer key) {
+            this.key = key;
+            this.time = System.currentTimeMillis();
+        }
+    }
+
+}
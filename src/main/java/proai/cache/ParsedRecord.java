@@ -12,11 +12,19 @@ import javax.xml.parsers.SAXParser;
 import javax.xml.parsers.SAXParserFactory;
 import java.io.File;
 import java.io.FileInputStream;
+import java.io.InputStream;
 import java.text.SimpleDateFormat;
 import java.util.ArrayList;
 import java.util.Date;
 import java.util.List;
 
+/**
+ * The header values of a record that has been written to the disk cache.
+ * <p/>
+ * <p>These normally come from the values a <code>HeaderCapturingWriter</code>
+ * saw while the record was being written.  If those aren't available, the
+ * file is parsed instead.
+ */
 public class ParsedRecord extends DefaultHandler implements Record {
 
     private static final Logger _LOG =
@@ -38,10 +46,46 @@ public class ParsedRecord extends DefaultHandler implements Record {
     private boolean m_finishedParsing;
     private StringBuffer m_buf = null;
 
+    /**
+     * Construct from header values that were captured while the record
+     * was written, without reading the file.
+     *
+     * @param datestamp the datestamp, or null if the header had none.
+     */
+    public ParsedRecord(String itemID,
+                        String prefix,
+                        String sourceInfo,
+                        File file,
+                        String datestamp,
+                        List<String> setSpecs) throws ServerException {
+        this(itemID, prefix, sourceInfo, file, false);
+        try {
+            if (datestamp != null) {
+                setDate(datestamp);
+            }
+        } catch (Exception e) {
+            throw new ServerException("Error parsing record xml", e);
+        }
+        for (String setSpec : setSpecs) {
+            addSetSpec(setSpec);
+        }
+    }
+
+    /**
+     * Construct by parsing the header of the record in the given file.
+     */
     public ParsedRecord(String itemID,
                         String prefix,
                         String sourceInfo,
                         File file) throws ServerException {
+        this(itemID, prefix, sourceInfo, file, true);
+    }
+
+    private ParsedRecord(String itemID,
+                         String prefix,
+                         String sourceInfo,
+                         File file,
+                         boolean parse) throws ServerException {
         m_itemID = itemID;
         m_prefix = prefix;
         m_sourceInfo = sourceInfo;
@@ -56,11 +100,15 @@ public class ParsedRecord extends DefaultHandler implements Record {
         m_inSetSpec = false;
         m_finishedParsing = false;
 
+        if (!parse) return;
+
+        InputStream in = null;
         try {
             SAXParserFactory spf = SAXParserFactory.newInstance();
             spf.setNamespaceAware(false);
             SAXParser parser = spf.newSAXParser();
-            parser.parse(new FileInputStream(file), this);
+            in = new FileInputStream(file);
+            parser.parse(in, this);
         } catch (Exception e) {
             if (_LOG.isDebugEnabled() && file.exists()) {
                 try {
@@ -70,6 +118,37 @@ public class ParsedRecord extends DefaultHandler implements Record {
                 }
             }
             throw new ServerException("Error parsing record xml", e);
+        } finally {
+            if (in != null) try {
+                in.close();
+            } catch (Exception e) {
+            }
+        }
+    }
+
+    private void setDate(String s) throws Exception {
+        try {
+            m_date = m_formatter1.parse(s);
+        } catch (Exception e) {
+            try {
+                m_date = m_formatter2.parse(s);
+            } catch (Exception e2) {
+                throw new Exception("Record datestamp is unparsable: " + s);
+            }
+        }
+    }
+
+    private void addSetSpec(String s) {
+        // Infer memberships based on setSpec:syntax:stuff
+        String[] h = s.split(":");
+        if (h.length > 1) {
+            StringBuffer b4 = new StringBuffer();
+            for (int i = 0; i < h.length; i++) {
+                m_setSpecs.add(b4.toString() + h[i]);
+                b4.append(h[i] + ":");
+            }
+        } else {
+            m_setSpecs.add(s);
         }
     }
 
@@ -93,30 +172,14 @@ public class ParsedRecord extends DefaultHandler implements Record {
             if (qName.equals("header")) {
                 m_finishedParsing = true;
             } else if (qName.equals("datestamp")) {
-                String s = m_buf.toString().trim();
                 try {
-                    try {
-                        m_date = m_formatter1.parse(s);
-                    } catch (Exception e) {
-                        m_date = m_formatter2.parse(s);
-                    }
+                    setDate(m_buf.toString().trim());
                 } catch (Exception e) {
-                    throw new SAXException("Record datestamp is unparsable: " + s);
+                    throw new SAXException(e.getMessage());
                 }
                 m_inDatestamp = false;
             } else if (qName.equals("setSpec")) {
-                String s = m_buf.toString().trim();
-                // Infer memberships based on setSpec:syntax:stuff
-                String[] h = s.split(":");
-                if (h.length > 1) {
-                    StringBuffer b4 = new StringBuffer();
-                    for (int i = 0; i < h.length; i++) {
-                        m_setSpecs.add(b4.toString() + h[i]);
-                        b4.append(h[i] + ":");
-                    }
-                } else {
-                    m_setSpecs.add(m_buf.toString().trim());
-                }
+                addSetSpec(m_buf.toString().trim());
                 m_inSetSpec = false;
             }
         }
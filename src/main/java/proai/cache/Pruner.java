@@ -0,0 +1,231 @@
+package proai.cache;
+
+import org.apache.log4j.Logger;
+import proai.error.ServerException;
+import proai.util.DBUtil;
+import proai.util.ThreadUtil;
+
+import java.io.File;
+import java.sql.Connection;
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.SortedMap;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Deletes superseded files from the disk cache in the background.
+ * <p/>
+ * <p>A pruning pass pages through rcPrunable by key, deletes each page's
+ * files on a pool of threads, then removes the page's keys from the
+ * database.  Files that can't be deleted keep their rcPrunable rows, so
+ * they are tried again on the next pass.
+ * <p/>
+ * <p>Passes run on their own thread, so they may overlap with queue
+ * processing.  This is safe because a path is only made prunable once
+ * nothing refers to it, and new files always get new paths.  Requests
+ * made while a pass is running result in one more pass afterward.
+ */
+public class Pruner {
+
+    private static Logger _LOG = Logger.getLogger(Pruner.class.getName());
+
+    private RCDatabase _db;
+    private RCDisk _disk;
+    private int _threads;
+    private int _batchSize;
+
+    private ExecutorService _passExecutor;
+    private ExecutorService _deleteExecutor;
+
+    private boolean _running;
+    private boolean _rerunRequested;
+    private volatile boolean _shutdownRequested;
+
+    public Pruner(RCDatabase db,
+                  RCDisk disk,
+                  int threads,
+                  int batchSize) {
+        _db = db;
+        _disk = disk;
+        _threads = threads;
+        _batchSize = batchSize;
+        _passExecutor = ThreadUtil.newFixedThreadPool("Pruner", 1);
+        _deleteExecutor = ThreadUtil.newFixedThreadPool("PruneDeleter", threads);
+    }
+
+    /**
+     * Start a pruning pass in the background, or if one is already running,
+     * start another when it finishes.  This returns immediately.
+     */
+    public synchronized void requestPrune() {
+        if (_shutdownRequested) return;
+        if (_running) {
+            _rerunRequested = true;
+            return;
+        }
+        _running = true;
+        try {
+            _passExecutor.execute(new Runnable() {
+                public void run() {
+                    runPasses();
+                }
+            });
+        } catch (RejectedExecutionException e) {
+            _running = false;  // shut down concurrently
+        }
+    }
+
+    /**
+     * Stop any pass in progress and release the threads.  Files already
+     * deleted by an interrupted pass will simply be found missing next time.
+     */
+    public void shutdown() {
+        _shutdownRequested = true;
+        _passExecutor.shutdownNow();
+        _deleteExecutor.shutdownNow();
+        try {
+            _passExecutor.awaitTermination(10, TimeUnit.SECONDS);
+        } catch (InterruptedException e) {
+        }
+    }
+
+    private void runPasses() {
+        boolean again = true;
+        while (again) {
+            try {
+                prune();
+            } catch (Throwable th) {
+                if (!_shutdownRequested) {
+                    _LOG.error("Pruning failed", th);
+                }
+            }
+            synchronized (this) {
+                again = _rerunRequested && !_shutdownRequested;
+                _rerunRequested = false;
+                if (!again) _running = false;
+            }
+        }
+    }
+
+    private void prune() throws Exception {
+
+        long startTime = System.currentTimeMillis();
+        int afterKey = -1;
+        int prunedCount = 0;
+        int failedCount = 0;
+
+        while (!_shutdownRequested) {
+
+            SortedMap<Integer, String> page;
+            Connection conn = getConnection();
+            try {
+                page = _db.getPrunablePage(conn, afterKey, _batchSize);
+            } finally {
+                releaseConnection(conn);
+            }
+            if (page.size() == 0) break;
+            if (afterKey == -1) {
+                _LOG.info("Pruning old files from cache");
+            }
+            afterKey = page.lastKey().intValue();
+
+            List<Integer> done = deleteFiles(page);
+            failedCount += page.size() - done.size();
+            if (done.size() > 0) {
+                conn = getConnection();
+                try {
+                    _db.deletePrunables(conn, done);
+                } catch (ServerException e) {
+                    if (!DBUtil.isTransientConflict(e)) throw e;
+                    // e.g. another node pruning at the same time; the
+                    // files are gone, so the next pass will remove the rows
+                    _LOG.info("Removal of pruned keys conflicted with "
+                            + "another transaction; will retry next pass");
+                    done.clear();
+                } finally {
+                    releaseConnection(conn);
+                }
+            }
+            prunedCount += done.size();
+            _LOG.debug("Pruned " + prunedCount + " old files so far");
+
+            if (page.size() < _batchSize) break;
+        }
+
+        if (afterKey == -1) {
+            _LOG.debug("Pruning is not needed.");
+        } else {
+            long sec = (System.currentTimeMillis() - startTime) / 1000;
+            _LOG.info("Pruned " + prunedCount + " old files from cache in "
+                    + sec + "sec.");
+            if (failedCount > 0) {
+                _LOG.warn("Unable to delete " + failedCount + " old cache "
+                        + "files (will try again later)");
+            }
+        }
+    }
+
+    Connection getConnection() throws SQLException {
+        return RecordCache.getConnection();
+    }
+
+    void releaseConnection(Connection conn) {
+        RecordCache.releaseConnection(conn);
+    }
+
+    /**
+     * Delete the files in the given page on the delete threads, and return
+     * the keys of those that no longer exist.
+     */
+    private List<Integer> deleteFiles(SortedMap<Integer, String> page)
+            throws Exception {
+
+        // split the page into one slice per thread
+        int sliceSize = (page.size() + _threads - 1) / _threads;
+        List<Callable<List<Integer>>> tasks = new ArrayList<Callable<List<Integer>>>();
+        Iterator<Map.Entry<Integer, String>> iter = page.entrySet().iterator();
+        while (iter.hasNext()) {
+            final List<Map.Entry<Integer, String>> slice = new ArrayList<Map.Entry<Integer, String>>();
+            while (iter.hasNext() && slice.size() < sliceSize) {
+                slice.add(iter.next());
+            }
+            tasks.add(new Callable<List<Integer>>() {
+                public List<Integer> call() {
+                    return deleteFiles(slice);
+                }
+            });
+        }
+
+        List<Integer> done = new ArrayList<Integer>();
+        for (Future<List<Integer>> future : _deleteExecutor.invokeAll(tasks)) {
+            done.addAll(future.get());
+        }
+        return done;
+    }
+
+    private List<Integer> deleteFiles(List<Map.Entry<Integer, String>> slice) {
+        List<Integer> done = new ArrayList<Integer>();
+        for (Map.Entry<Integer, String> entry : slice) {
+            if (_shutdownRequested) break;
+            File file = _disk.getFile(entry.getValue());
+            if (file.delete()) {
+                _LOG.debug("Deleted old cache file: " + entry.getValue());
+                done.add(entry.getKey());
+            } else if (!file.exists()) {
+                _LOG.debug("No need to delete non-existing old cache file: " + entry.getValue());
+                done.add(entry.getKey());
+            } else {
+                _LOG.warn("Unable to delete old cache file (will try again later): " + entry.getValue());
+            }
+        }
+        return done;
+    }
+
+}
@@ -1,6 +1,26 @@
 package proai.cache;
 
-public class QueueItem {
+import proai.Record;
+
+import java.util.ArrayList;
+import java.util.List;
+
+public class QueueItem implements Record {
+
+    /**
+     * Priority lane for records that someone is waiting on, such as
+     * administrative or on-demand refreshes.
+     */
+    public static final int PRIORITY_URGENT = 0;
+
+    /** Priority lane for retries of failed records. */
+    public static final int PRIORITY_RETRY = 1;
+
+    /** Priority lane for records found by polling the driver. */
+    public static final int PRIORITY_BULK = 2;
+
+    /** The number of priority lanes. */
+    public static final int PRIORITY_LANES = 3;
 
     private int _queueKey;
     private String _identifier;
@@ -8,6 +28,10 @@ public class QueueItem {
     private String _sourceInfo;
     private char _queueSource;
 
+    // other queue rows for the same record, folded into this one
+    private List<Integer> _supersededKeys;
+    private int _latestKey;
+
     private boolean _succeeded;
     private String _failReason;
     private String _failDate;
@@ -23,6 +47,39 @@ public class QueueItem {
         _mdPrefix = mdPrefix;
         _sourceInfo = sourceInfo;
         _queueSource = queueSource;
+        _latestKey = queueKey;
+    }
+
+    /**
+     * Fold another queue row for the same identifier and prefix into this
+     * item, so that only one fetch is done for both.
+     * <p/>
+     * The sourceInfo of whichever row was queued last is kept.  If either
+     * row is a retry of a failure, so is the result.
+     */
+    public void absorb(int queueKey, String sourceInfo, char queueSource) {
+        if (_supersededKeys == null) {
+            _supersededKeys = new ArrayList<Integer>();
+        }
+        _supersededKeys.add(new Integer(queueKey));
+        if (queueKey > _latestKey) {
+            _latestKey = queueKey;
+            _sourceInfo = sourceInfo;
+        }
+        if (queueSource == 'F') {
+            _queueSource = 'F';
+        }
+    }
+
+    /**
+     * Get the keys of the queue rows that have been folded into this item.
+     * These should be removed from the queue along with this one.
+     */
+    public List<Integer> getSupersededKeys() {
+        if (_supersededKeys == null) {
+            return new ArrayList<Integer>();
+        }
+        return _supersededKeys;
     }
 
     public int getQueueKey() {
@@ -37,6 +94,17 @@ public class QueueItem {
         return _mdPrefix;
     }
 
+    // From Record interface
+    public String getItemID() {
+        return _identifier;
+    }
+
+    // From Record interface
+    public String getPrefix() {
+        return _mdPrefix;
+    }
+
+    // From Record interface
     public String getSourceInfo() {
         return _sourceInfo;
     }
@@ -1,80 +1,160 @@
 package proai.cache;
 
-import java.io.*;
+import proai.error.ServerException;
 
+import java.sql.Connection;
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+
+/**
+ * Iterates over the rcQueue, interleaving its priority lanes by weight and
+ * reading each lane from the database one page at a time.
+ * <p/>
+ * <p>Within a lane, items are returned in queueKey order.  Across lanes,
+ * items are chosen by smooth weighted round-robin: while every lane has
+ * items, a lane with weight 8 gets eight turns for every one taken by a lane
+ * with weight 1, and the turns are spread evenly rather than taken in runs.
+ * Lanes with no items don't take turns, so a lone lane gets all of them.
+ * <p/>
+ * <p>Each page is read with its own connection, which is released
+ * before the page is returned, so no connection is held while the items are
+ * being processed.  Pages are keyed on the last queueKey seen, so memory
+ * use is constant regardless of the size of the queue.  A lane that has
+ * run out is read again (for items queued since) at most once every
+ * <code>RECHECK_MILLIS</code>, so urgent items queued while a large
+ * backlog is being processed don't have to wait for it to finish.
+ * <p/>
+ * <p>Only items that the given node could claim at the time each page is
+ * read are returned.  Callers must still claim them before processing.
+ */
 public class QueueIterator {
 
-    private File _tempFile;
-    private BufferedReader _reader;
+    public static final int DEFAULT_PAGE_SIZE = 1000;
+
+    public static final int RECHECK_MILLIS = 1000;
+
+    private RCDatabase _db;
+    private int _pageSize;
+    private String _leaseOwner;
+    private int[] _weights;
 
-    private QueueItem _next;
+    private int[] _lastKey;
+    private List<Iterator<QueueItem>> _page;
+    private boolean[] _exhausted;
+    private long[] _lastReadTime;
+    private int[] _currentWeight;
+    private boolean _closed;
 
-    public QueueIterator(File tempFile) throws IOException {
-        _tempFile = tempFile;
-        _reader = new BufferedReader(
-                new InputStreamReader(
-                        new FileInputStream(_tempFile), "UTF-8"));
-        _next = getNext();
+    /**
+     * @param weights the relative weight of each priority lane, indexed by
+     *                priority.  Each must be at least 1.
+     */
+    public QueueIterator(RCDatabase db,
+                         int pageSize,
+                         String leaseOwner,
+                         int[] weights) {
+        _db = db;
+        _pageSize = pageSize;
+        _leaseOwner = leaseOwner;
+        _weights = weights;
+        _lastKey = new int[weights.length];
+        _page = new ArrayList<Iterator<QueueItem>>(weights.length);
+        _exhausted = new boolean[weights.length];
+        _lastReadTime = new long[weights.length];
+        _currentWeight = new int[weights.length];
+        for (int i = 0; i < weights.length; i++) {
+            _lastKey[i] = -1;
+            _page.add(null);
+        }
     }
 
-    private static QueueItem parseLine(String line) throws IOException {
-        String[] parts = line.split(" ");
-        if (parts.length > 4) {
-            try {
-                StringBuffer sourceInfo = new StringBuffer();
-                for (int i = 4; i < parts.length; i++) {
-                    if (i > 4) sourceInfo.append(' ');
-                    sourceInfo.append(parts[i]);
+    public boolean hasNext() throws ServerException {
+        if (_closed) return false;
+        // every lane must be checked, so that each one with items has a
+        // page loaded and takes its turns in next()
+        boolean hasNext = false;
+        for (int lane = 0; lane < _weights.length; lane++) {
+            if (laneHasNext(lane)) hasNext = true;
+        }
+        return hasNext;
+    }
+
+    public QueueItem next() throws ServerException {
+        if (!hasNext()) return null;
+
+        // smooth weighted round-robin over the lanes that have items
+        int chosen = -1;
+        int totalWeight = 0;
+        for (int lane = 0; lane < _weights.length; lane++) {
+            if (pageHasNext(lane)) {
+                _currentWeight[lane] += _weights[lane];
+                totalWeight += _weights[lane];
+                if (chosen == -1 || _currentWeight[lane] > _currentWeight[chosen]) {
+                    chosen = lane;
                 }
-                return new QueueItem(Integer.parseInt(parts[0]),
-                        parts[1],
-                        parts[2],
-                        sourceInfo.toString(),
-                        parts[3].charAt(0));
-            } catch (Throwable th) {
-                throw new IOException("Error parsing next line: " + th.getClass().getName());
             }
-        } else {
-            throw new IOException("Error parsing next line: expected at least "
-                    + "5 values, but got " + parts.length);
         }
+        _currentWeight[chosen] -= totalWeight;
+
+        QueueItem item = _page.get(chosen).next();
+        _lastKey[chosen] = item.getQueueKey();
+        return item;
     }
 
-    private QueueItem getNext() throws IOException {
-        if (_reader == null) return null; // if already closed
-        String line = _reader.readLine();
-        if (line == null) { // was last line
-            close();
-            return null;
-        } else {
-            if (line.length() == 0) { // skip empty lines
-                return getNext();
-            } else {
-                return parseLine(line);
-            }
+    public void close() {
+        _closed = true;
+        for (int lane = 0; lane < _weights.length; lane++) {
+            _page.set(lane, null);
+        }
+    }
+
+    private boolean laneHasNext(int lane) throws ServerException {
+        if (pageHasNext(lane)) return true;
+        if (_exhausted[lane]) {
+            long sinceRead = System.currentTimeMillis() - _lastReadTime[lane];
+            if (sinceRead < RECHECK_MILLIS) return false;
+        }
+        readNextPage(lane);
+        if (!pageHasNext(lane)) {
+            // start afresh when it has items again
+            _currentWeight[lane] = 0;
+            return false;
         }
+        return true;
     }
 
-    public boolean hasNext() {
-        return (_next != null);
+    private boolean pageHasNext(int lane) {
+        Iterator<QueueItem> page = _page.get(lane);
+        return page != null && page.hasNext();
     }
 
-    public QueueItem next() throws IOException {
-        if (_next == null) return null;
-        QueueItem prev = _next;
-        _next = getNext();
-        return prev;
+    private void readNextPage(int lane) throws ServerException {
+        List<QueueItem> items = getQueuePage(lane, _lastKey[lane], _pageSize);
+        _exhausted[lane] = items.size() < _pageSize;
+        _lastReadTime[lane] = System.currentTimeMillis();
+        _page.set(lane, items.iterator());
     }
 
-    public void close() {
-        if (_reader != null) {
-            try {
-                _reader.close();
-            } catch (Exception e) {
-            }
-            _tempFile.delete();
-            _reader = null;
+    /**
+     * Read the next page of claimable items in the given lane, after the
+     * given queueKey.
+     */
+    List<QueueItem> getQueuePage(int lane,
+                                 int afterKey,
+                                 int pageSize) throws ServerException {
+        Connection conn = null;
+        try {
+            conn = RecordCache.getConnection();
+            return _db.getQueuePage(conn, lane, afterKey,
+                    pageSize, _leaseOwner, System.currentTimeMillis());
+        } catch (SQLException e) {
+            throw new ServerException("Error getting connection to read "
+                    + "next page of queue", e);
+        } finally {
+            RecordCache.releaseConnection(conn);
         }
     }
 
-}
\ No newline at end of file
+}
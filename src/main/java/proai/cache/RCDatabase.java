@@ -12,7 +12,6 @@ import proai.util.DDLConverter;
 import proai.util.TableSpec;
 
 import java.io.InputStream;
-import java.io.PrintWriter;
 import java.sql.Connection;
 import java.sql.ResultSet;
 import java.sql.SQLException;
@@ -26,10 +25,24 @@ import java.util.*;
 public class RCDatabase {
 
     public static final String RCADMIN_TABLE_IS_EMPTY = "rcAdmin table is empty";
+
+    // the most keys to put in a single IN (...) list
+    private static final int MAX_IN_LIST_SIZE = 1000;
+
+    // how long to trust cached set and format keys, in case another node
+    // has changed them
+    private static final long SET_AND_FORMAT_KEY_MAX_AGE = 60000;
+
     private static final Logger logger =
             Logger.getLogger(RCDatabase.class.getName());
     private boolean m_backslashIsEscape;
     private boolean m_mySQLTrickling;
+    private int m_queueBatchSize;
+    private boolean m_supportsBatchUpdates;
+
+    private KeyCache m_itemKeys;
+    private KeyCache m_setKeys;
+    private KeyCache m_formatKeys;
     private RCDisk m_rcDisk;
 
     public RCDatabase(Connection conn,
@@ -37,9 +50,20 @@ public class RCDatabase {
                       boolean mySQLTrickling,
                       boolean backslashIsEscape,
                       boolean pollingEnabled,
+                      int queueBatchSize,
+                      int keyCacheSize,
                       RCDisk rcDisk) throws ServerException {
         m_mySQLTrickling = mySQLTrickling;
         m_backslashIsEscape = backslashIsEscape;
+        m_queueBatchSize = queueBatchSize;
+        m_itemKeys = new KeyCache(keyCacheSize, 0);
+        m_setKeys = new KeyCache(keyCacheSize, SET_AND_FORMAT_KEY_MAX_AGE);
+        m_formatKeys = new KeyCache(keyCacheSize, SET_AND_FORMAT_KEY_MAX_AGE);
+        try {
+            m_supportsBatchUpdates = conn.getMetaData().supportsBatchUpdates();
+        } catch (SQLException e) {
+            throw new ServerException("Error reading database metadata", e);
+        }
         m_rcDisk = rcDisk;
         if (!tablesExist(conn)) {
             createTables(conn, ddlc);
@@ -322,6 +346,7 @@ public class RCDatabase {
                 }
             } else {
                 logger.info("Format " + newprefix + " is new.  Adding to db.");
+                m_formatKeys.invalidate();
                 sql = "INSERT INTO rcFormat (mdPrefix, "
                         + "namespaceURI, "
                         + "schemaLocation) "
@@ -403,6 +428,10 @@ public class RCDatabase {
         }
     }
 
+    /**
+     * Set the last poll date of the given format, and clear its poll
+     * checkpoint, if any.
+     */
     public void setLastPollDate(Connection conn,
                                 String mdPrefix,
                                 long lastPollDate) throws ServerException {
@@ -412,7 +441,9 @@ public class RCDatabase {
         try {
             stmt = getStatement(conn, false);
             executeUpdate(stmt, "UPDATE rcFormat "
-                    + "SET lastPollDate = " + lastPollDate + " "
+                    + "SET lastPollDate = " + lastPollDate + ", "
+                    + "pollUntilDate = NULL, "
+                    + "pollCheckpoint = NULL "
                     + "WHERE mdPrefix = " + qs(mdPrefix));
         } catch (SQLException e) {
             throw new ServerException("Error setting last poll date", e);
@@ -432,6 +463,78 @@ public class RCDatabase {
      * Get a map of prefix (String) to formatKey (Integer) for all formats
      * in the database.
      */
+    /**
+     * Get the checkpoint of an unfinished poll for records in the given
+     * format, or null if there is none.
+     *
+     * @return a two-element array: the until date of the poll in epoch-ms,
+     *         and the resumption point (possibly null) of the listing.
+     */
+    public String[] getPollCheckpoint(Connection conn,
+                                      String mdPrefix) throws ServerException {
+        Statement stmt = null;
+        ResultSet rs = null;
+        try {
+            stmt = getStatement(conn, false);
+            rs = executeQuery(stmt, "SELECT pollUntilDate, pollCheckpoint "
+                    + "FROM rcFormat "
+                    + "WHERE mdPrefix = " + qs(mdPrefix));
+            if (rs.next()) {
+                long untilDate = rs.getLong(1);
+                if (rs.wasNull()) return null;
+                String resumptionPoint = null;
+                if (rs.getObject(2) != null) {
+                    resumptionPoint = DBUtil.getLongString(rs, 2);
+                }
+                return new String[]{Long.toString(untilDate), resumptionPoint};
+            } else {
+                return null;
+            }
+        } catch (SQLException e) {
+            throw new ServerException("Error getting poll checkpoint", e);
+        } finally {
+            if (rs != null) try {
+                rs.close();
+            } catch (Exception e) {
+            }
+            if (stmt != null) try {
+                stmt.close();
+            } catch (Exception e) {
+            }
+        }
+    }
+
+    /**
+     * Record how far an unfinished poll for records in the given format
+     * has got.
+     *
+     * @param untilDate      the until date of the poll, in epoch-ms.
+     * @param resumptionPoint where the listing should continue, or null if
+     *                       it can't be resumed.
+     */
+    public void setPollCheckpoint(Connection conn,
+                                  String mdPrefix,
+                                  long untilDate,
+                                  String resumptionPoint) throws ServerException {
+        Statement stmt = null;
+        try {
+            stmt = getStatement(conn, false);
+            String point = "NULL";
+            if (resumptionPoint != null) point = qs(resumptionPoint);
+            executeUpdate(stmt, "UPDATE rcFormat "
+                    + "SET pollUntilDate = " + untilDate + ", "
+                    + "pollCheckpoint = " + point + " "
+                    + "WHERE mdPrefix = " + qs(mdPrefix));
+        } catch (SQLException e) {
+            throw new ServerException("Error setting poll checkpoint", e);
+        } finally {
+            if (stmt != null) try {
+                stmt.close();
+            } catch (Exception e) {
+            }
+        }
+    }
+
     public Map<String, Integer> getFormatKeyMap(Connection conn) throws ServerException {
 
         Map<String, Integer> map = new HashMap<String, Integer>();
@@ -495,6 +598,7 @@ public class RCDatabase {
             if (rs.next()) {
                 int formatKey = rs.getInt(1);
                 executeUpdate(stmt, "DELETE FROM rcFormat WHERE formatKey = " + formatKey);
+                m_formatKeys.invalidate();
                 rs.close();
                 // first mark xmlPaths of records in this format as prunable
                 // and delete set membership for relevant records
@@ -546,6 +650,7 @@ public class RCDatabase {
                 addPrunable(stmt, xmlPathToPrune);
             } else {
                 logger.info("Set " + setSpec + " is new. Adding to db.");
+                m_setKeys.invalidate();
                 executeUpdate(stmt, "INSERT INTO rcSet (setSpec, xmlPath) "
                         + "VALUES (" + qsc(setSpec) + qs(xmlPath) + ")");
             }
@@ -636,6 +741,7 @@ public class RCDatabase {
 
                 // delete all refs to the set and mark the xmlPath as prunable
                 executeUpdate(stmt, "DELETE from rcSet WHERE setKey = " + setKey);
+                m_setKeys.invalidate();
                 executeUpdate(stmt, "DELETE from rcMembership WHERE setKey = " + setKey);
                 addPrunable(stmt, xmlPathToPrune);
             } else {
@@ -655,12 +761,64 @@ public class RCDatabase {
         }
     }
 
+    /**
+     * Forget all cached set and format keys.  This should be called after
+     * committing any transaction that adds or deletes sets or formats, so
+     * that keys read by other threads before the commit are not kept.
+     */
+    public void invalidateSetAndFormatKeys() {
+        m_setKeys.invalidate();
+        m_formatKeys.invalidate();
+    }
+
+    /**
+     * Remember the given item keys, as returned by putRecords().  This should
+     * only be called after the transaction that created them is committed.
+     */
+    public void cacheItemKeys(Map<String, Integer> itemKeys) {
+        m_itemKeys.putAll(itemKeys, m_itemKeys.getGeneration());
+    }
+
+    /**
+     * Set the date of all records that have no date, returning the number
+     * of records updated.
+     * <p/>
+     * Committers only date the records of their own transactions, so this
+     * is used to recover any records left undated by other means, such as
+     * a database that failed to roll back an interrupted commit.
+     */
+    public int setUncommittedRecordDates(Connection conn,
+                                         Date newDate) throws ServerException {
+        Statement stmt = null;
+        try {
+            stmt = getStatement(conn, false);
+            return executeUpdate(stmt, "UPDATE rcRecord SET modDate = " + newDate.getTime() + " WHERE modDate IS NULL");
+        } catch (SQLException e) {
+            throw new ServerException("Error setting uncommitted record dates", e);
+        } finally {
+            if (stmt != null) try {
+                stmt.close();
+            } catch (Exception e) {
+            }
+        }
+    }
+
+    /**
+     * Set the date of the given items' records that were added or updated
+     * in this transaction.  Only the given items are touched, so that
+     * committers working on other items at the same time don't contend for
+     * the same rows.
+     */
     public void setUncommittedRecordDates(Connection conn,
-                                          Date newDate) throws ServerException {
+                                          Date newDate,
+                                          Collection<Integer> itemKeys) throws ServerException {
         Statement stmt = null;
         try {
             stmt = getStatement(conn, false);
-            executeUpdate(stmt, "UPDATE rcRecord SET modDate = " + newDate.getTime() + " WHERE modDate IS NULL");
+            for (String keyList : getInLists(itemKeys)) {
+                executeUpdate(stmt, "UPDATE rcRecord SET modDate = " + newDate.getTime()
+                        + " WHERE modDate IS NULL AND itemKey IN (" + keyList + ")");
+            }
         } catch (SQLException e) {
             throw new ServerException("Error setting uncommitted record dates", e);
         } finally {
@@ -683,115 +841,191 @@ public class RCDatabase {
     public void putRecord(Connection conn,
                           ParsedRecord rec,
                           Map<String, Integer> formatKeyMap) throws ServerException {
-        String xmlPath = rec.getSourceInfo();
+        List<ParsedRecord> recs = new ArrayList<ParsedRecord>();
+        recs.add(rec);
+        putRecords(conn, recs, formatKeyMap);
+    }
+
+    /**
+     * Add or update a group of records, using a fixed number of statements
+     * regardless of how many records there are.
+     * <p/>
+     * This will create rcItems for them if they don't exist.  If the same
+     * record is given more than once, the last one wins.
+     * <p/>
+     * NOTE: Records will initially be given a NULL date.  After a group of
+     * records are updated, the date is set together with
+     * setUncommittedRecordDates(..)
+     *
+     * @return the itemKey of each record's identifier, which may be passed to
+     *         cacheItemKeys() once the transaction is committed.
+     */
+    public Map<String, Integer> putRecords(Connection conn,
+                                           List<ParsedRecord> recs,
+                                           Map<String, Integer> formatKeyMap) throws ServerException {
+        // each pass has at most one of each record, so later ones update
+        // the rows inserted by earlier ones
+        Map<String, Integer> itemKeys = new HashMap<String, Integer>();
+        List<ParsedRecord> pending = recs;
+        while (pending.size() > 0) {
+            List<ParsedRecord> distinct = new ArrayList<ParsedRecord>();
+            List<ParsedRecord> later = new ArrayList<ParsedRecord>();
+            Set<String> seen = new HashSet<String>();
+            for (ParsedRecord rec : pending) {
+                if (seen.add(rec.getItemID() + " " + rec.getPrefix())) {
+                    distinct.add(rec);
+                } else {
+                    later.add(rec);
+                }
+            }
+            itemKeys.putAll(putDistinctRecords(conn, distinct, formatKeyMap));
+            pending = later;
+        }
+        return itemKeys;
+    }
+
+    private Map<String, Integer> putDistinctRecords(Connection conn,
+                                                    List<ParsedRecord> recs,
+                                                    Map<String, Integer> formatKeyMap) throws ServerException {
         Statement stmt = null;
         ResultSet rs = null;
         try {
-            logger.info("Putting record: " + rec.getItemID() + " (" + rec.getPrefix() + ")");
             //
-            // To update a record:
-            //    Make sure there's an rcItem for it.
-            //    If it's already in rcRecord:
-            //       Update its row with new values
-            //       If it's already a member of any sets:
-            //          keep the ones it's still in, if any
-            //          add the ones it's not in (throw error if it's in a set not in rcSet)
-            //          delete the ones it's no longer in
-            //       If it's not:
-            //          add the ones it's not in (throw error if it's in a set not in rcSet)
-            //    If it's not:
-            //       For each set its a member of:
-            //           add it to rcMembership
+            // To update a group of records:
+            //    Make sure there's an rcItem for each.
+            //    Find which are already in rcRecord.
+            //    Update those rows and mark their old xmlPaths as prunable,
+            //    and insert rows for the others.
+            //    For records that already existed, find the sets they
+            //    were in, then add and delete memberships to match the
+            //    sets they're now in.  Add all memberships of new records.
             //
-            int itemKey = getItemKey(conn, rec.getItemID());
-            Integer fKey = formatKeyMap.get(rec.getPrefix());
-            if (fKey == null) {
-                throw new ServerException("Error in parsed record; no such format in cache: " + rec.getPrefix());
-            }
-            int formatKey = fKey.intValue();
             stmt = getStatement(conn, false);
-            int[] setKeys = getSetKeys(stmt, rec.getSetSpecs());
-            rs = executeQuery(stmt, "SELECT recordKey, xmlPath "
-                    + "FROM rcRecord "
-                    + "WHERE itemKey = " + itemKey + " "
-                    + "AND formatKey = " + formatKey);
-            if (rs.next()) {
-
-                // we're updating it
-                int recordKey = rs.getInt(1);
-                String xmlPathToPrune = rs.getString(2);
-                rs.close();
 
-                // update the record
-                // and mark the old xmlPath path as prunable
-                executeUpdate(stmt, "UPDATE rcRecord SET modDate = NULL, "
-                        + "xmlPath = " + qss(xmlPath)
-                        + "WHERE recordKey = " + recordKey);
-                addPrunable(stmt, xmlPathToPrune);
-
-                // Modified rcRecord. Now list the ids of the sets it WAS in,
-                // and rectify that with the ones it's NOW in
-
-                List<Integer> priorSetKeys = new ArrayList<Integer>();
-                rs = executeQuery(stmt, "SELECT setKey from rcMembership WHERE recordKey = " + recordKey);
+            Set<String> itemIDs = new HashSet<String>();
+            Set<String> setSpecs = new HashSet<String>();
+            for (ParsedRecord rec : recs) {
+                logger.info("Putting record: " + rec.getItemID() + " (" + rec.getPrefix() + ")");
+                if (formatKeyMap.get(rec.getPrefix()) == null) {
+                    throw new ServerException("Error in parsed record; no such format in cache: " + rec.getPrefix());
+                }
+                itemIDs.add(rec.getItemID());
+                setSpecs.addAll(rec.getSetSpecs());
+            }
+            Map<String, Integer> itemKeys = getItemKeys(stmt, itemIDs);
+            Map<String, Integer> setKeys = getSetKeys(stmt, setSpecs);
+
+            // find the records that already exist
+            Map<String, Integer> recordKeys = new HashMap<String, Integer>();
+            Map<String, String> xmlPaths = new HashMap<String, String>();
+            for (String keyList : getInLists(itemKeys.values())) {
+                rs = executeQuery(stmt, "SELECT itemKey, formatKey, recordKey, xmlPath "
+                        + "FROM rcRecord "
+                        + "WHERE itemKey IN (" + keyList + ")");
                 while (rs.next()) {
-                    priorSetKeys.add(new Integer(rs.getInt(1)));
+                    String key = rs.getInt(1) + " " + rs.getInt(2);
+                    recordKeys.put(key, new Integer(rs.getInt(3)));
+                    xmlPaths.put(key, rs.getString(4));
                 }
                 rs.close();
                 rs = null;
+            }
 
-                // which sets is the record a new member of?
-                for (int i = 0; i < setKeys.length; i++) {
-                    Integer newSetKey = new Integer(setKeys[i]);
-                    if (!priorSetKeys.contains(newSetKey)) {
-                        int nsk = newSetKey.intValue();
-                        executeUpdate(stmt, "INSERT INTO rcMembership (setKey, recordKey) "
-                                + "VALUES (" + nsk + ", " + recordKey + ")");
-                    }
+            // update or insert them
+            List<String> batch = new ArrayList<String>();
+            Map<Integer, Set<Integer>> updatedSets = new HashMap<Integer, Set<Integer>>();
+            List<ParsedRecord> created = new ArrayList<ParsedRecord>();
+            for (ParsedRecord rec : recs) {
+                int itemKey = itemKeys.get(rec.getItemID()).intValue();
+                int formatKey = formatKeyMap.get(rec.getPrefix()).intValue();
+                String key = itemKey + " " + formatKey;
+                Integer recordKey = recordKeys.get(key);
+                if (recordKey != null) {
+                    batch.add("UPDATE rcRecord SET modDate = NULL, "
+                            + "xmlPath = " + qss(rec.getSourceInfo())
+                            + "WHERE recordKey = " + recordKey);
+                    batch.add("INSERT INTO rcPrunable (xmlPath) VALUES ("
+                            + qs(xmlPaths.get(key)) + ")");
+                    updatedSets.put(recordKey, getKeys(rec.getSetSpecs(), setKeys));
+                } else {
+                    batch.add("INSERT INTO rcRecord (itemKey, formatKey, modDate, xmlPath) "
+                            + "VALUES (" + itemKey + ", " + formatKey + ", NULL, "
+                            + qs(rec.getSourceInfo()) + ")");
+                    created.add(rec);
                 }
+            }
+            executeBatch(stmt, batch);
 
-                // which sets is the record no longer a member of?
-                Iterator<Integer> liter = priorSetKeys.iterator();
-                while (liter.hasNext()) {
-                    Integer priorSetKey = liter.next();
-                    int psk = priorSetKey.intValue();
-                    boolean noLongerInSet = true;
-                    for (int i = 0; i < setKeys.length; i++) {
-                        if (setKeys[i] == psk) noLongerInSet = false;
+            // get the keys of the new records and add all their memberships
+            if (created.size() > 0) {
+                Set<Integer> createdItemKeys = new HashSet<Integer>();
+                for (ParsedRecord rec : created) {
+                    createdItemKeys.add(itemKeys.get(rec.getItemID()));
+                }
+                for (String keyList : getInLists(createdItemKeys)) {
+                    rs = executeQuery(stmt, "SELECT itemKey, formatKey, recordKey "
+                            + "FROM rcRecord "
+                            + "WHERE itemKey IN (" + keyList + ")");
+                    while (rs.next()) {
+                        recordKeys.put(rs.getInt(1) + " " + rs.getInt(2),
+                                new Integer(rs.getInt(3)));
                     }
-                    if (noLongerInSet) {
-                        // FIXME: Could make this more efficient with
-                        //        "AND ( setKey = x  OR setKey = y [...] )"
-                        executeUpdate(stmt, "DELETE FROM rcMembership "
-                                + "WHERE recordKey = " + recordKey + " "
-                                + "AND setKey = " + psk);
+                    rs.close();
+                    rs = null;
+                }
+                for (ParsedRecord rec : created) {
+                    int itemKey = itemKeys.get(rec.getItemID()).intValue();
+                    int formatKey = formatKeyMap.get(rec.getPrefix()).intValue();
+                    Integer recordKey = recordKeys.get(itemKey + " " + formatKey);
+                    if (recordKey == null) {
+                        throw new ServerException("Insert into rcRecord didn't work "
+                                + "(itemkey, formatkey = " + itemKey + ", " + formatKey + ")");
+                    }
+                    for (Integer setKey : getKeys(rec.getSetSpecs(), setKeys)) {
+                        batch.add("INSERT INTO rcMembership (setKey, recordKey) "
+                                + "VALUES (" + setKey + ", " + recordKey + ")");
                     }
                 }
+            }
 
-            } else {
-                // we're creating it
-                rs.close();
-                executeUpdate(stmt, "INSERT INTO rcRecord (itemKey, formatKey, modDate, xmlPath) "
-                        + "VALUES (" + itemKey + ", " + formatKey + ", NULL, " + qs(xmlPath) + ")");
-                rs = executeQuery(stmt, "SELECT recordKey from rcRecord "
-                        + "WHERE itemKey = " + itemKey + " "
-                        + "AND formatKey = " + formatKey);
-                if (rs.next()) {
-                    int recordKey = rs.getInt(1);
+            // rectify the memberships of the updated records
+            if (updatedSets.size() > 0) {
+                Map<Integer, Set<Integer>> priorSets = new HashMap<Integer, Set<Integer>>();
+                for (Integer recordKey : updatedSets.keySet()) {
+                    priorSets.put(recordKey, new HashSet<Integer>());
+                }
+                for (String keyList : getInLists(updatedSets.keySet())) {
+                    rs = executeQuery(stmt, "SELECT recordKey, setKey "
+                            + "FROM rcMembership "
+                            + "WHERE recordKey IN (" + keyList + ")");
+                    while (rs.next()) {
+                        priorSets.get(new Integer(rs.getInt(1))).add(new Integer(rs.getInt(2)));
+                    }
                     rs.close();
-                    // Added to rcRecord, now all we have to do is add it to
-                    // the appropriate sets
-                    for (int i = 0; i < setKeys.length; i++) {
-                        executeUpdate(stmt, "INSERT INTO rcMembership (setKey, recordKey) "
-                                + "VALUES (" + setKeys[i] + ", " + recordKey + ")");
+                    rs = null;
+                }
+                for (Integer recordKey : updatedSets.keySet()) {
+                    Set<Integer> sets = updatedSets.get(recordKey);
+                    Set<Integer> prior = priorSets.get(recordKey);
+                    for (Integer setKey : sets) {
+                        if (!prior.contains(setKey)) {
+                            batch.add("INSERT INTO rcMembership (setKey, recordKey) "
+                                    + "VALUES (" + setKey + ", " + recordKey + ")");
+                        }
+                    }
+                    prior.removeAll(sets);
+                    for (String keyList : getInLists(prior)) {
+                        batch.add("DELETE FROM rcMembership "
+                                + "WHERE recordKey = " + recordKey + " "
+                                + "AND setKey IN (" + keyList + ")");
                     }
-                } else {
-                    throw new ServerException("Insert into rcRecord didn't work "
-                            + "(itemkey, formatkey = " + itemKey + ", " + formatKey + ")");
                 }
             }
+            executeBatch(stmt, batch);
+            return itemKeys;
+
         } catch (SQLException e) {
-            throw new ServerException("Error putting record", e);
+            throw new ServerException("Error putting records", e);
         } finally {
             if (rs != null) try {
                 rs.close();
@@ -804,51 +1038,92 @@ public class RCDatabase {
         }
     }
 
-    // get or create an item key
-    private int getItemKey(Connection conn, String itemID) throws ServerException {
-        Statement stmt = null;
-        ResultSet rs = null;
+    // get or create the item keys for the given identifiers
+    private Map<String, Integer> getItemKeys(Statement stmt,
+                                             Set<String> itemIDs) throws ServerException {
         try {
-            stmt = getStatement(conn, false);
-            rs = executeQuery(stmt, "SELECT itemKey from rcItem where identifier = " + qs(itemID));
-            if (rs.next()) {
-                return rs.getInt(1);
-            } else {
-                rs.close();
-                executeUpdate(stmt, "INSERT INTO rcItem (identifier) VALUES (" + qs(itemID) + ")");
-                rs = executeQuery(stmt, "SELECT itemKey from rcItem where identifier = " + qs(itemID));
-                if (rs.next()) {
-                    return rs.getInt(1);
+            Map<String, Integer> keys = new HashMap<String, Integer>();
+            Set<String> uncached = new HashSet<String>();
+            for (String itemID : itemIDs) {
+                Integer key = m_itemKeys.get(itemID);
+                if (key != null) {
+                    keys.put(itemID, key);
                 } else {
-                    throw new ServerException("Insert into rcItem didn't work (identifier = " + itemID + ")");
+                    uncached.add(itemID);
                 }
             }
+            if (uncached.size() > 0) {
+                keys.putAll(selectItemKeys(stmt, uncached));
+            }
+            if (keys.size() < itemIDs.size()) {
+                Set<String> missing = new HashSet<String>(itemIDs);
+                missing.removeAll(keys.keySet());
+                List<String> batch = new ArrayList<String>();
+                for (String itemID : missing) {
+                    batch.add("INSERT INTO rcItem (identifier) VALUES (" + qs(itemID) + ")");
+                }
+                executeBatch(stmt, batch);
+                keys.putAll(selectItemKeys(stmt, missing));
+                if (keys.size() < itemIDs.size()) {
+                    missing.removeAll(keys.keySet());
+                    throw new ServerException("Insert into rcItem didn't work (identifier = "
+                            + missing.iterator().next() + ")");
+                }
+            }
+            return keys;
         } catch (SQLException e) {
-            throw new ServerException("Error getting key for itemID " + itemID, e);
-        } finally {
-            if (rs != null) try {
+            throw new ServerException("Error getting keys for itemIDs", e);
+        }
+    }
+
+    private Map<String, Integer> selectItemKeys(Statement stmt,
+                                                Set<String> itemIDs) throws SQLException {
+        Map<String, Integer> keys = new HashMap<String, Integer>();
+        for (String idList : getQuotedInLists(itemIDs)) {
+            ResultSet rs = executeQuery(stmt, "SELECT identifier, itemKey "
+                    + "FROM rcItem WHERE identifier IN (" + idList + ")");
+            try {
+                while (rs.next()) {
+                    keys.put(rs.getString(1), new Integer(rs.getInt(2)));
+                }
+            } finally {
                 rs.close();
-            } catch (Exception e) {
-            }
-            if (stmt != null) try {
-                stmt.close();
-            } catch (Exception e) {
             }
         }
+        return keys;
     }
 
     //////////////////////////////////////////////////////////////////////////
 
-    private int[] getSetKeys(Statement stmt, List<String> specs) throws ServerException {
+    private Map<String, Integer> getSetKeys(Statement stmt,
+                                            Set<String> specs) throws ServerException {
+        Map<String, Integer> keys = new HashMap<String, Integer>();
+        Set<String> uncached = new HashSet<String>();
+        for (String spec : specs) {
+            Integer key = m_setKeys.get(spec);
+            if (key != null) {
+                keys.put(spec, key);
+            } else {
+                uncached.add(spec);
+            }
+        }
         ResultSet rs = null;
         try {
-            int[] keys = new int[specs.size()];
-            for (int i = 0; i < specs.size(); i++) {
-                rs = executeQuery(stmt, "SELECT setKey from rcSet WHERE setSpec = " + qs(specs.get(i)));
-                if (rs.next()) {
-                    keys[i] = rs.getInt(1);
-                } else {
-                    throw new ServerException("Record contains setSpec not listed sets: " + specs.get(i));
+            long generation = m_setKeys.getGeneration();
+            for (String specList : getQuotedInLists(uncached)) {
+                rs = executeQuery(stmt, "SELECT setSpec, setKey FROM rcSet "
+                        + "WHERE setSpec IN (" + specList + ")");
+                while (rs.next()) {
+                    Integer key = new Integer(rs.getInt(2));
+                    keys.put(rs.getString(1), key);
+                    m_setKeys.put(rs.getString(1), key, generation);
+                }
+                rs.close();
+                rs = null;
+            }
+            for (String spec : specs) {
+                if (!keys.containsKey(spec)) {
+                    throw new ServerException("Record contains setSpec not listed sets: " + spec);
                 }
             }
             return keys;
@@ -862,7 +1137,85 @@ public class RCDatabase {
         }
     }
 
+    private static Set<Integer> getKeys(List<String> specs,
+                                        Map<String, Integer> setKeys) {
+        Set<Integer> keys = new HashSet<Integer>();
+        for (String spec : specs) {
+            keys.add(setKeys.get(spec));
+        }
+        return keys;
+    }
+
+    /**
+     * Send the given statements to the database as a single batch, if the
+     * JDBC driver supports it, or one at a time otherwise.  The list is
+     * cleared afterward.
+     */
+    private void executeBatch(Statement stmt,
+                              List<String> sqls) throws SQLException {
+        if (sqls.size() == 0) return;
+        if (m_supportsBatchUpdates) {
+            for (String sql : sqls) {
+                if (logger.isDebugEnabled()) {
+                    logger.debug("Adding to batch: " + sql);
+                }
+                stmt.addBatch(sql);
+            }
+            stmt.executeBatch();
+            stmt.clearBatch();
+        } else {
+            for (String sql : sqls) {
+                executeUpdate(stmt, sql);
+            }
+        }
+        sqls.clear();
+    }
+
+    /**
+     * Split the given numbers into comma-separated lists for use in
+     * <code>IN (...)</code> clauses, each no longer than the maximum.
+     */
+    private static List<String> getInLists(Collection<Integer> values) {
+        List<String> lists = new ArrayList<String>();
+        StringBuffer list = new StringBuffer();
+        int count = 0;
+        for (Integer value : values) {
+            if (count == MAX_IN_LIST_SIZE) {
+                lists.add(list.toString());
+                list.setLength(0);
+                count = 0;
+            }
+            if (count > 0) list.append(", ");
+            list.append(value);
+            count++;
+        }
+        if (count > 0) lists.add(list.toString());
+        return lists;
+    }
+
+    /**
+     * Like getInLists, but for strings, which are quoted.
+     */
+    private List<String> getQuotedInLists(Collection<String> values) {
+        List<String> lists = new ArrayList<String>();
+        StringBuffer list = new StringBuffer();
+        int count = 0;
+        for (String value : values) {
+            if (count == MAX_IN_LIST_SIZE) {
+                lists.add(list.toString());
+                list.setLength(0);
+                count = 0;
+            }
+            if (count > 0) list.append(", ");
+            list.append(qs(value));
+            count++;
+        }
+        if (count > 0) lists.add(list.toString());
+        return lists;
+    }
+
     public boolean itemExists(Connection conn, String itemID) throws ServerException {
+        if (m_itemKeys.get(itemID) != null) return true;
         Statement stmt = null;
         ResultSet rs = null;
         try {
@@ -923,16 +1276,37 @@ public class RCDatabase {
         }
     }
 
-    // return a closeableiterator of string[] (path, dateString)
-    // NOTE: Unlike other methods of this class, this method has
-    //       the responsibility of releasing the connection in some cases.
-    //       In particular, if this method does NOT return an iterator
-    //       that is attached to a ResultSet, it must release the connection.
+    /**
+     * Get an iterator over the records matching the given query, in
+     * (modDate, recordKey) order.  See <code>RecordInfoIterator</code>.
+     * <p/>
+     * The given connection is only used to look up the format and set keys,
+     * and is released before returning.  The iterator gets a connection
+     * of its own for each page.
+     */
     public CloseableIterator<String[]> findRecordInfo(Connection conn,
                                                       Date from,
                                                       Date until,
                                                       String prefix,
                                                       String set) throws ServerException {
+        return findRecordInfo(conn, from, until, prefix, set, 0, -1,
+                RecordInfoIterator.DEFAULT_PAGE_SIZE);
+    }
+
+    /**
+     * Like findRecordInfo(Connection, Date, Date, String, String), but
+     * starting after the record with the given modDate and recordKey
+     * (unless lastRecordKey is -1), and reading the given number of records
+     * at a time.
+     */
+    public CloseableIterator<String[]> findRecordInfo(Connection conn,
+                                                      Date from,
+                                                      Date until,
+                                                      String prefix,
+                                                      String set,
+                                                      long lastModDate,
+                                                      int lastRecordKey,
+                                                      int pageSize) throws ServerException {
         // since the database is in milliseconds, but the given date is
         // in seconds, we need to check for the case where from == until, and
         // shift until by 999 before doing the query
@@ -941,73 +1315,111 @@ public class RCDatabase {
         }
 
         Statement stmt = null;
-        ResultSet rs = null;
-        boolean releaseConnectionBeforeReturning = true;
         try {
-            stmt = getStatement(conn, true);
+            stmt = getStatement(conn, false);
 
             // DETERMINE THE FORMAT KEY
-            rs = executeQuery(stmt, "SELECT formatKey FROM rcFormat WHERE mdPrefix = " + qs(prefix));
-            if (!rs.next()) {
+            int formatKey = getKey(stmt, m_formatKeys, "rcFormat", "formatKey", "mdPrefix", prefix);
+            if (formatKey == -1) {
                 // no such format -- return an empty iterator
-                try {
-                    rs.close();
-                } catch (Exception e) {
-                }
-                try {
-                    stmt.close();
-                } catch (Exception e) {
-                }
                 return new RemoteIteratorImpl<String[]>(new ArrayList<String[]>().iterator());
             }
-            int formatKey = rs.getInt(1);
-            rs.close();
 
             // DETERMINE THE SET KEY, IF SPECIFIED
             int setKey = -1;
             if (set != null) {
-                rs = executeQuery(stmt, "SELECT setKey FROM rcSet WHERE setSpec = " + qs(set));
-                if (!rs.next()) {
+                setKey = getKey(stmt, m_setKeys, "rcSet", "setKey", "setSpec", set);
+                if (setKey == -1) {
                     // no such set -- return an empty iterator
-                    try {
-                        rs.close();
-                    } catch (Exception e) {
-                    }
-                    try {
-                        stmt.close();
-                    } catch (Exception e) {
-                    }
                     return new RemoteIteratorImpl<String[]>(new ArrayList<String[]>().iterator());
                 }
-                setKey = rs.getInt(1);
-                rs.close();
             }
 
-            StringBuffer query = new StringBuffer();
-            if (set == null) {
-                query.append("SELECT xmlPath, modDate FROM rcRecord WHERE formatKey = " + formatKey);
-            } else {
-                query.append("SELECT rcRecord.xmlPath, rcRecord.modDate FROM rcMembership, rcRecord "
-                        + "WHERE rcMembership.setKey = " + setKey + " "
-                        + "AND rcMembership.recordKey = rcRecord.recordKey "
-                        + "AND rcRecord.formatKey = " + formatKey);
-            }
-            if (from == null) {
-                if (until == null) {
-                    // (no conditions to add to query)
-                } else {
-                    query.append(" AND rcRecord.modDate <= " + until.getTime());
-                }
-            } else if (until == null) {
-                query.append(" AND rcRecord.modDate >= " + from.getTime());
-            } else {
-                query.append(" AND rcRecord.modDate >= " + from.getTime());
-                query.append(" AND rcRecord.modDate <= " + until.getTime());
+            return new RecordInfoIterator(this,
+                    formatKey,
+                    setKey,
+                    from,
+                    until,
+                    lastModDate,
+                    lastRecordKey,
+                    pageSize);
+        } catch (SQLException se) {
+            throw new ServerException("Error finding record paths", se);
+        } finally {
+            if (stmt != null) try {
+                stmt.close();
+            } catch (Exception e) {
             }
+            RecordCache.releaseConnection(conn);
+        }
+    }
+
+    /**
+     * Get the next page of records matching the given query, in
+     * (modDate, recordKey) order, as described in
+     * <code>RecordInfoIterator</code>.
+     *
+     * @param setKey        the set to restrict results to, or -1.
+     * @param lastRecordKey the recordKey of the last record on the previous
+     *                      page, or -1 to get the first page.
+     * @param lastModDate   the modDate of the last record on the previous
+     *                      page, if any.
+     */
+    public List<String[]> getRecordInfoPage(Connection conn,
+                                            int formatKey,
+                                            int setKey,
+                                            Date from,
+                                            Date until,
+                                            long lastModDate,
+                                            int lastRecordKey,
+                                            int pageSize) throws ServerException {
+
+        StringBuffer query = new StringBuffer();
+        if (setKey == -1) {
+            query.append("SELECT rcRecord.xmlPath, rcRecord.modDate, rcRecord.recordKey "
+                    + "FROM rcRecord WHERE rcRecord.formatKey = " + formatKey);
+        } else {
+            query.append("SELECT rcRecord.xmlPath, rcRecord.modDate, rcRecord.recordKey "
+                    + "FROM rcMembership, rcRecord "
+                    + "WHERE rcMembership.setKey = " + setKey + " "
+                    + "AND rcMembership.recordKey = rcRecord.recordKey "
+                    + "AND rcRecord.formatKey = " + formatKey);
+        }
+        if (from != null) {
+            query.append(" AND rcRecord.modDate >= " + from.getTime());
+        }
+        if (until != null) {
+            query.append(" AND rcRecord.modDate <= " + until.getTime());
+        } else {
+            // records still being committed have no date yet
+            query.append(" AND rcRecord.modDate IS NOT NULL");
+        }
+        if (lastRecordKey != -1) {
+            query.append(" AND (rcRecord.modDate > " + lastModDate
+                    + " OR (rcRecord.modDate = " + lastModDate
+                    + " AND rcRecord.recordKey > " + lastRecordKey + "))");
+        }
+        query.append(" ORDER BY rcRecord.modDate ASC, rcRecord.recordKey ASC");
+
+        List<String[]> page = new ArrayList<String[]>();
+        SimpleDateFormat formatter = new SimpleDateFormat("yyyy-MM-dd'T'HH:mm:ss'Z'");
+        Statement stmt = null;
+        ResultSet rs = null;
+        try {
+            stmt = conn.createStatement();
+            stmt.setMaxRows(pageSize);
             rs = executeQuery(stmt, query.toString());
-            releaseConnectionBeforeReturning = false;
-            return new StringResultIterator(conn, stmt, rs);
-        } catch (SQLException se) {
+            while (rs.next() && page.size() < pageSize) {
+                long modDate = rs.getLong(2);
+                page.add(new String[]{rs.getString(1),
+                        formatter.format(new Date(modDate)),
+                        Long.toString(modDate),
+                        Integer.toString(rs.getInt(3))});
+            }
+            return page;
+        } catch (SQLException e) {
+            throw new ServerException("Error reading page of record paths", e);
+        } finally {
             if (rs != null) try {
                 rs.close();
             } catch (Exception e) {
@@ -1016,86 +1428,110 @@ public class RCDatabase {
                 stmt.close();
             } catch (Exception e) {
             }
-            throw new ServerException("Error finding record paths", se);
+        }
+    }
+
+    /**
+     * Get the key of the row with the given name from the given cache, or
+     * failing that, from the given table.  Return -1 if there is no such row.
+     */
+    private int getKey(Statement stmt,
+                       KeyCache cache,
+                       String table,
+                       String keyColumn,
+                       String nameColumn,
+                       String name) throws SQLException {
+        Integer key = cache.get(name);
+        if (key != null) return key.intValue();
+        long generation = cache.getGeneration();
+        ResultSet rs = executeQuery(stmt, "SELECT " + keyColumn + " FROM " + table
+                + " WHERE " + nameColumn + " = " + qs(name));
+        try {
+            if (!rs.next()) return -1;
+            key = new Integer(rs.getInt(1));
         } finally {
-            if (releaseConnectionBeforeReturning) {
-                RecordCache.releaseConnection(conn);
-            }
+            rs.close();
         }
+        cache.put(name, key, generation);
+        return key.intValue();
     }
 
     /**
-     * Copy all qualifying records from rcFailure to rcQueue.
+     * Copy all records from rcFailure to rcQueue that haven't exceeded the
+     * retry limit and are due for another attempt, and return the number
+     * copied.
      * <p/>
      * To avoid unintentional duplicates in the queue, it's important that
      * the caller ensures the queue is processed beforehand.
      */
-    public void queueFailedRecords(Connection conn,
-                                   int maxFailedRetries) throws ServerException {
+    public int queueFailedRecords(Connection conn,
+                                  int maxFailedRetries,
+                                  long now) throws ServerException {
 
         if (maxFailedRetries > 0) {
 
             Statement stmt = null;
-            ResultSet results = null;
-            Connection queueConn = null;
-            if (m_mySQLTrickling) {
-                // use separate connection for update during select
-                try {
-                    queueConn = RecordCache.getConnection();
-                } catch (SQLException se) {
-                    throw new ServerException("Unable to get additional "
-                            + "connection for queueing failed records", se);
-                }
-            }
             try {
-
-                stmt = getStatement(conn, true);
-                results = executeQuery(stmt, "SELECT identifier, mdPrefix, sourceInfo "
+                stmt = conn.createStatement();
+                return executeUpdate(stmt, "INSERT INTO rcQueue "
+                        + "(identifier, mdPrefix, sourceInfo, queueSource, priority) "
+                        + "SELECT identifier, mdPrefix, sourceInfo, 'F', "
+                        + QueueItem.PRIORITY_RETRY + " "
                         + "FROM rcFailure "
-                        + "WHERE failCount <= " + maxFailedRetries);
-                while (results.next()) {
-                    if (queueConn != null) {
-                        queueFailedRecord(queueConn,
-                                results.getString(1),
-                                results.getString(2),
-                                DBUtil.getLongString(results, 3));
-                    } else {
-                        queueFailedRecord(conn,
-                                results.getString(1),
-                                results.getString(2),
-                                DBUtil.getLongString(results, 3));
-                    }
-                }
+                        + "WHERE failCount <= " + maxFailedRetries + " "
+                        + "AND (nextAttemptDate IS NULL "
+                        + "OR nextAttemptDate <= " + now + ")");
             } catch (SQLException e) {
                 throw new ServerException("Failed while attempting to enqueue "
                         + "failed records", e);
             } finally {
-                if (results != null) try {
-                    results.close();
-                } catch (Exception ex) {
-                }
                 if (stmt != null) try {
                     stmt.close();
                 } catch (Exception ex) {
                 }
-                if (queueConn != null) try {
-                    queueConn.close();
-                } catch (Exception ex) {
-                }
             }
+        } else {
+            return 0;
         }
     }
 
-    private void queueFailedRecord(Connection conn,
-                                   String identifier,
-                                   String mdPrefix,
-                                   String sourceInfo) throws SQLException {
+    /**
+     * Get a writer for adding rows to the given priority lane of the queue
+     * in batches, using the given connection.  The caller must close the
+     * writer.
+     */
+    public RCQueueWriter getQueueWriter(Connection conn,
+                                        char queueSource,
+                                        int priority) throws ServerException {
+        return new RCQueueWriter(conn, queueSource, priority,
+                m_queueBatchSize, m_backslashIsEscape);
+    }
+
+    /**
+     * Get the number of queue items that may be claimed by the given node
+     * at the given time.
+     */
+    public int getQueueSize(Connection conn,
+                            String leaseOwner,
+                            long now) throws ServerException {
+
         Statement stmt = null;
+        ResultSet results = null;
         try {
+
             stmt = conn.createStatement();
-            executeUpdate(stmt, getQueueInsertSQL(identifier,
-                    mdPrefix, sourceInfo, 'F'));
+            results = executeQuery(stmt, "SELECT count(*) FROM rcQueue "
+                    + "WHERE " + getClaimableCondition(leaseOwner, now));
+
+            results.next();
+            return results.getInt(1);
+        } catch (SQLException e) {
+            throw new ServerException("Failed to determine queue size", e);
         } finally {
+            if (results != null) try {
+                results.close();
+            } catch (Exception ex) {
+            }
             if (stmt != null) try {
                 stmt.close();
             } catch (Exception ex) {
@@ -1103,37 +1539,46 @@ public class RCDatabase {
         }
     }
 
-    private String getQueueInsertSQL(String identifier, String mdPrefix,
-                                     String sourceInfo, char queueSource) {
-        if ((sourceInfo.indexOf("\n") != -1) || (sourceInfo.indexOf("\r") != -1)) {
-            throw new ServerException("INSERT aborted: bad sourceInfo for "
-                    + identifier + "/" + mdPrefix + " (contains "
-                    + "newline(s))");
-        }
-        return "INSERT INTO rcQueue (identifier, "
-                + "mdPrefix, "
-                + "sourceInfo, "
-                + "queueSource) "
-                + "VALUES (" + qsc(identifier)
-                + qsc(mdPrefix)
-                + qsc(sourceInfo)
-                + "'" + queueSource + "')";
-    }
-
-    public void queueRemoteRecord(Connection conn,
-                                  String identifier,
-                                  String mdPrefix,
-                                  String sourceInfo) throws ServerException {
+    /**
+     * Get up to <code>pageSize</code> items from the given priority lane of
+     * the queue whose queueKey is greater than <code>afterKey</code>, in
+     * queueKey order.
+     * <p/>
+     * Only items that may be claimed by the given node at the given time
+     * are returned.  They still need to be claimed via claimQueueItems()
+     * before being processed.
+     */
+    public List<QueueItem> getQueuePage(Connection conn,
+                                        int priority,
+                                        int afterKey,
+                                        int pageSize,
+                                        String leaseOwner,
+                                        long now) throws ServerException {
+
+        List<QueueItem> items = new ArrayList<QueueItem>();
         Statement stmt = null;
         ResultSet results = null;
         try {
 
             stmt = conn.createStatement();
-            executeUpdate(stmt, getQueueInsertSQL(identifier, mdPrefix,
-                    sourceInfo, 'R'));
+            stmt.setMaxRows(pageSize);
+            results = executeQuery(stmt, "SELECT queueKey, identifier, "
+                    + "mdPrefix, sourceInfo, queueSource "
+                    + "FROM rcQueue "
+                    + "WHERE priority = " + priority + " "
+                    + "AND queueKey > " + afterKey + " "
+                    + "AND " + getClaimableCondition(leaseOwner, now) + " "
+                    + "ORDER BY queueKey ASC");
+            while (results.next() && items.size() < pageSize) {
+                items.add(new QueueItem(results.getInt(1),
+                        results.getString(2),
+                        results.getString(3),
+                        DBUtil.getLongString(results, 4),
+                        results.getString(5).charAt(0)));
+            }
+            return items;
         } catch (SQLException e) {
-            throw new ServerException("Failed while attempting to enqueue "
-                    + "remote record", e);
+            throw new ServerException("Failed to read page of queue", e);
         } finally {
             if (results != null) try {
                 results.close();
@@ -1146,19 +1591,69 @@ public class RCDatabase {
         }
     }
 
-    public int getQueueSize(Connection conn) throws ServerException {
+    /**
+     * Get the SQL condition matching rcQueue rows that are unleased, whose
+     * lease has expired, or that are already leased by the given node.
+     */
+    private String getClaimableCondition(String leaseOwner, long now) {
+        return "(leaseOwner IS NULL OR leaseExpires < " + now
+                + " OR leaseOwner = " + qs(leaseOwner) + ")";
+    }
+
+    /**
+     * Get the SQL condition matching rcQueue rows that are unleased or whose
+     * lease has expired.
+     */
+    private String getUnleasedCondition(long now) {
+        return "(leaseOwner IS NULL OR leaseExpires < " + now + ")";
+    }
+
+    /**
+     * Attempt to lease the given queue items to the given node until the
+     * given expiration date, and return those that were successfully
+     * claimed.
+     * <p/>
+     * Items that have been claimed by another node (or removed from the
+     * queue) since they were read are not returned.
+     */
+    public List<QueueItem> claimQueueItems(Connection conn,
+                                           List<QueueItem> items,
+                                           String leaseOwner,
+                                           long now,
+                                           long leaseExpires) throws ServerException {
+
+        List<QueueItem> claimed = new ArrayList<QueueItem>();
+        if (items.size() == 0) return claimed;
+
+        Map<Integer, QueueItem> byKey = new HashMap<Integer, QueueItem>();
+        StringBuffer keyList = new StringBuffer();
+        for (QueueItem item : items) {
+            if (keyList.length() > 0) keyList.append(", ");
+            keyList.append(item.getQueueKey());
+            byKey.put(new Integer(item.getQueueKey()), item);
+        }
 
         Statement stmt = null;
         ResultSet results = null;
         try {
-
             stmt = conn.createStatement();
-            results = executeQuery(stmt, "SELECT count(*) FROM rcQueue");
-
-            results.next();
-            return results.getInt(1);
+            executeUpdate(stmt, "UPDATE rcQueue "
+                    + "SET leaseOwner = " + qs(leaseOwner) + ", "
+                    + "leaseExpires = " + leaseExpires + " "
+                    + "WHERE queueKey IN (" + keyList + ") "
+                    + "AND " + getClaimableCondition(leaseOwner, now));
+            results = executeQuery(stmt, "SELECT queueKey FROM rcQueue "
+                    + "WHERE queueKey IN (" + keyList + ") "
+                    + "AND leaseOwner = " + qs(leaseOwner) + " "
+                    + "AND leaseExpires = " + leaseExpires + " "
+                    + "ORDER BY queueKey ASC");
+            while (results.next()) {
+                QueueItem item = byKey.get(new Integer(results.getInt(1)));
+                if (item != null) claimed.add(item);
+            }
+            return claimed;
         } catch (SQLException e) {
-            throw new ServerException("Failed to determine queue size", e);
+            throw new ServerException("Failed to claim queue items", e);
         } finally {
             if (results != null) try {
                 results.close();
@@ -1171,45 +1666,191 @@ public class RCDatabase {
         }
     }
 
-    public void dumpQueue(Connection conn,
-                          PrintWriter writer) throws ServerException {
+    /**
+     * Extend the lease on all queue items currently leased by the given node.
+     */
+    public void renewQueueLeases(Connection conn,
+                                 String leaseOwner,
+                                 long leaseExpires) throws ServerException {
+        Statement stmt = null;
+        try {
+            stmt = conn.createStatement();
+            executeUpdate(stmt, "UPDATE rcQueue "
+                    + "SET leaseExpires = " + leaseExpires + " "
+                    + "WHERE leaseOwner = " + qs(leaseOwner));
+        } catch (SQLException e) {
+            throw new ServerException("Failed to renew queue leases", e);
+        } finally {
+            if (stmt != null) try {
+                stmt.close();
+            } catch (Exception ex) {
+            }
+        }
+    }
+
+    /**
+     * Fold queue rows for the same identifier and prefix into the given
+     * items, which must already be claimed by the given node.
+     * <p/>
+     * Duplicates within the given items are folded into the first of them.
+     * Any other rows for the same identifiers and prefixes that are unleased,
+     * or whose lease has expired, are claimed and folded in as well.  Rows
+     * under a live lease are left alone, even if the lease is held by the
+     * given node, since they may be in another batch that is already being
+     * processed.  The keys of folded rows are available from each item's
+     * <code>getSupersededKeys()</code>.
+     *
+     * @return the items that remain, in their original order.
+     */
+    public List<QueueItem> collapseDuplicates(Connection conn,
+                                              List<QueueItem> items,
+                                              String leaseOwner,
+                                              long now,
+                                              long leaseExpires) throws ServerException {
+
+        List<QueueItem> collapsed = new ArrayList<QueueItem>();
+        if (items.size() == 0) return collapsed;
+
+        Map<String, QueueItem> byRecord = new HashMap<String, QueueItem>();
+        Set<String> identifiers = new HashSet<String>();
+        StringBuffer keyList = new StringBuffer();
+        for (QueueItem item : items) {
+            String recordKey = item.getIdentifier() + " " + item.getMDPrefix();
+            QueueItem first = byRecord.get(recordKey);
+            if (first == null) {
+                byRecord.put(recordKey, item);
+                identifiers.add(item.getIdentifier());
+                collapsed.add(item);
+            } else {
+                first.absorb(item.getQueueKey(), item.getSourceInfo(),
+                        item.getQueueSource());
+            }
+            if (keyList.length() > 0) keyList.append(", ");
+            keyList.append(item.getQueueKey());
+        }
 
-        logger.info("Preparing queue for processing...");
+        StringBuffer idList = new StringBuffer();
+        for (String identifier : identifiers) {
+            if (idList.length() > 0) idList.append(", ");
+            idList.append(qs(identifier));
+        }
 
         Statement stmt = null;
         ResultSet results = null;
-        int resultCount = 0;
-
         try {
-
             stmt = conn.createStatement();
+
+            // find other claimable rows for the same records
+            Map<Integer, String[]> duplicates = new HashMap<Integer, String[]>();
+            StringBuffer dupKeyList = new StringBuffer();
             results = executeQuery(stmt, "SELECT queueKey, identifier, "
                     + "mdPrefix, sourceInfo, queueSource "
                     + "FROM rcQueue "
+                    + "WHERE identifier IN (" + idList + ") "
+                    + "AND queueKey NOT IN (" + keyList + ") "
+                    + "AND " + getUnleasedCondition(now));
+            while (results.next()) {
+                String recordKey = results.getString(2) + " " + results.getString(3);
+                if (byRecord.containsKey(recordKey)) {
+                    int key = results.getInt(1);
+                    duplicates.put(new Integer(key), new String[]{recordKey,
+                            DBUtil.getLongString(results, 4),
+                            results.getString(5)});
+                    if (dupKeyList.length() > 0) dupKeyList.append(", ");
+                    dupKeyList.append(key);
+                }
+            }
+            results.close();
+            results = null;
+            if (duplicates.size() == 0) return collapsed;
+
+            // claim them, then fold in the ones that were claimed
+            executeUpdate(stmt, "UPDATE rcQueue "
+                    + "SET leaseOwner = " + qs(leaseOwner) + ", "
+                    + "leaseExpires = " + leaseExpires + " "
+                    + "WHERE queueKey IN (" + dupKeyList + ") "
+                    + "AND " + getUnleasedCondition(now));
+            results = executeQuery(stmt, "SELECT queueKey FROM rcQueue "
+                    + "WHERE queueKey IN (" + dupKeyList + ") "
+                    + "AND leaseOwner = " + qs(leaseOwner) + " "
+                    + "AND leaseExpires = " + leaseExpires + " "
                     + "ORDER BY queueKey ASC");
             while (results.next()) {
-                resultCount++;
-
-                writer.print(results.getInt(1) + " ");
-
-                String identifier = results.getString(2);
-                writer.print(identifier + " ");
-
-                String mdPrefix = results.getString(3);
-                writer.print(mdPrefix + " ");
+                int key = results.getInt(1);
+                String[] dup = duplicates.get(new Integer(key));
+                byRecord.get(dup[0]).absorb(key, dup[1], dup[2].charAt(0));
+            }
+            return collapsed;
+        } catch (SQLException e) {
+            throw new ServerException("Failed to collapse duplicate queue items", e);
+        } finally {
+            if (results != null) try {
+                results.close();
+            } catch (Exception ex) {
+            }
+            if (stmt != null) try {
+                stmt.close();
+            } catch (Exception ex) {
+            }
+        }
+    }
 
-                writer.print(results.getString(5) + " ");
+    /**
+     * Remove the given items, and any queue rows folded into them, from the
+     * queue if they are still leased by the given node (or not leased at
+     * all), and return those that were removed.
+     * <p/>
+     * Items that aren't returned have been claimed by another node since
+     * their lease expired, and should be left to that node.
+     */
+    public List<QueueItem> removeQueueItems(Connection conn,
+                                            List<QueueItem> items,
+                                            String leaseOwner) throws ServerException {
+
+        List<QueueItem> removed = new ArrayList<QueueItem>();
+        Map<Integer, QueueItem> byKey = new HashMap<Integer, QueueItem>();
+        List<Integer> keys = new ArrayList<Integer>();
+        for (QueueItem item : items) {
+            byKey.put(new Integer(item.getQueueKey()), item);
+            keys.add(new Integer(item.getQueueKey()));
+            keys.addAll(item.getSupersededKeys());
+        }
+        if (keys.size() == 0) return removed;
 
-                String sourceInfo = DBUtil.getLongString(results, 4);
-                if ((sourceInfo.indexOf("\n") != -1) || (sourceInfo.indexOf("\r") != -1)) {
-                    throw new ServerException("rcQueue contains bad sourceInfo for "
-                            + identifier + "/" + mdPrefix + " (contains "
-                            + "newline(s)): '" + sourceInfo + "'");
+        Statement stmt = null;
+        ResultSet results = null;
+        try {
+            stmt = conn.createStatement();
+            List<Integer> held = new ArrayList<Integer>();
+            for (String keyList : getInLists(keys)) {
+                // take the rows first, so another node can't claim them
+                // between finding and deleting them
+                executeUpdate(stmt, "UPDATE rcQueue "
+                        + "SET leaseOwner = " + qs(leaseOwner) + " "
+                        + "WHERE queueKey IN (" + keyList + ") "
+                        + "AND (leaseOwner IS NULL OR leaseOwner = " + qs(leaseOwner) + ")");
+                results = executeQuery(stmt, "SELECT queueKey FROM rcQueue "
+                        + "WHERE queueKey IN (" + keyList + ") "
+                        + "AND leaseOwner = " + qs(leaseOwner));
+                while (results.next()) {
+                    held.add(new Integer(results.getInt(1)));
+                }
+                results.close();
+                results = null;
+            }
+            for (String keyList : getInLists(held)) {
+                executeUpdate(stmt, "DELETE FROM rcQueue "
+                        + "WHERE queueKey IN (" + keyList + ")");
+            }
+            Set<Integer> heldKeys = new HashSet<Integer>(held);
+            for (QueueItem item : items) {
+                if (heldKeys.contains(new Integer(item.getQueueKey()))) {
+                    removed.add(item);
                 }
-                writer.println(sourceInfo);
             }
+            return removed;
         } catch (SQLException e) {
-            throw new ServerException("Failed to dump queue", e);
+            throw new ServerException("Failed to remove records from queue", e);
         } finally {
             if (results != null) try {
                 results.close();
@@ -1219,25 +1860,53 @@ public class RCDatabase {
                 stmt.close();
             } catch (Exception ex) {
             }
+        }
+    }
 
-            if (resultCount > 0) {
-                // JDBC driver may be using a lot of heap space at this point,
-                // so try to convince the VM to clean up after it
-                results = null;
-                stmt = null;
-                System.gc();
+    /**
+     * Attempt to acquire (or renew) the polling lease for the given node.
+     * <p/>
+     * Only one node sharing the database may poll the driver at a time.
+     *
+     * @return whether the lease was acquired.
+     */
+    public boolean claimPollLease(Connection conn,
+                                  String leaseOwner,
+                                  long now,
+                                  long leaseExpires) throws ServerException {
+        Statement stmt = null;
+        try {
+            stmt = conn.createStatement();
+            int count = executeUpdate(stmt, "UPDATE rcAdmin "
+                    + "SET pollLeaseOwner = " + qs(leaseOwner) + ", "
+                    + "pollLeaseExpires = " + leaseExpires + " "
+                    + "WHERE pollLeaseOwner IS NULL "
+                    + "OR pollLeaseExpires < " + now + " "
+                    + "OR pollLeaseOwner = " + qs(leaseOwner));
+            return count > 0;
+        } catch (SQLException e) {
+            throw new ServerException("Failed to claim polling lease", e);
+        } finally {
+            if (stmt != null) try {
+                stmt.close();
+            } catch (Exception ex) {
             }
         }
     }
 
-    public void removeFromQueue(Connection conn,
-                                int queueKey) throws ServerException {
+    /**
+     * Release the polling lease if it is held by the given node.
+     */
+    public void releasePollLease(Connection conn,
+                                 String leaseOwner) throws ServerException {
         Statement stmt = null;
         try {
             stmt = conn.createStatement();
-            executeUpdate(stmt, "DELETE FROM rcQueue WHERE queueKey = " + queueKey);
+            executeUpdate(stmt, "UPDATE rcAdmin "
+                    + "SET pollLeaseOwner = NULL, pollLeaseExpires = NULL "
+                    + "WHERE pollLeaseOwner = " + qs(leaseOwner));
         } catch (SQLException e) {
-            throw new ServerException("Failed to remove record from queue", e);
+            throw new ServerException("Failed to release polling lease", e);
         } finally {
             if (stmt != null) try {
                 stmt.close();
@@ -1304,7 +1973,8 @@ public class RCDatabase {
                            String mdPrefix,
                            String sourceInfo,
                            String failDate,
-                           String failReason) throws ServerException {
+                           String failReason,
+                           long nextAttemptDate) throws ServerException {
         Statement stmt = null;
         try {
             stmt = conn.createStatement();
@@ -1315,14 +1985,16 @@ public class RCDatabase {
                     + "failCount, "
                     + "firstFailDate, "
                     + "lastFailDate, "
-                    + "lastFailReason) "
+                    + "lastFailReason, "
+                    + "nextAttemptDate) "
                     + "VALUES (" + qsc(identifier)
                     + qsc(mdPrefix)
                     + qsc(sourceInfo)
                     + "0, "
                     + qsc(failDate)
                     + qsc(failDate)
-                    + qs(failReason) + ")");
+                    + qsc(failReason)
+                    + nextAttemptDate + ")");
         } catch (SQLException e) {
             throw new ServerException("Failed to add row to rcFailure", e);
         } finally {
@@ -1339,7 +2011,8 @@ public class RCDatabase {
                               String sourceInfo,
                               int newFailCount,
                               String failDate,
-                              String failReason) throws ServerException {
+                              String failReason,
+                              long nextAttemptDate) throws ServerException {
         Statement stmt = null;
         try {
             stmt = conn.createStatement();
@@ -1347,7 +2020,8 @@ public class RCDatabase {
                     + "SET sourceInfo = " + qs(sourceInfo) + ", "
                     + "failCount = " + newFailCount + ", "
                     + "lastFailDate = " + qsc(failDate)
-                    + "lastFailReason = " + qss(failReason)
+                    + "lastFailReason = " + qs(failReason) + ", "
+                    + "nextAttemptDate = " + nextAttemptDate + " "
                     + "WHERE identifier = " + qss(identifier)
                     + "AND mdPrefix = " + qs(mdPrefix));
         } catch (SQLException e) {
@@ -1386,25 +2060,27 @@ public class RCDatabase {
     }
 
     /**
-     * Delete one or more items from the prunable list, by database key.
+     * Delete the given items from the prunable list, by database key.
      */
     public void deletePrunables(Connection conn,
-                                int[] keys,
-                                int num) throws SQLException {
-
-        StringBuffer sql = new StringBuffer();
-        sql.append("DELETE FROM rcPrunable WHERE pruneKey IN (");
-        for (int i = 0; i < num; i++) {
-            if (i > 0) sql.append(", ");
-            sql.append(keys[i]);
-        }
-        sql.append(")");
+                                List<Integer> keys) throws ServerException {
 
         Statement stmt = null;
-
         try {
             stmt = conn.createStatement();
-            executeUpdate(stmt, sql.toString());
+            for (int start = 0; start < keys.size(); start += MAX_IN_LIST_SIZE) {
+                int end = Math.min(start + MAX_IN_LIST_SIZE, keys.size());
+                StringBuffer sql = new StringBuffer();
+                sql.append("DELETE FROM rcPrunable WHERE pruneKey IN (");
+                for (int i = start; i < end; i++) {
+                    if (i > start) sql.append(", ");
+                    sql.append(keys.get(i));
+                }
+                sql.append(")");
+                executeUpdate(stmt, sql.toString());
+            }
+        } catch (SQLException e) {
+            throw new ServerException("Failed to delete prunables", e);
         } finally {
             if (stmt != null) try {
                 stmt.close();
@@ -1413,28 +2089,31 @@ public class RCDatabase {
         }
     }
 
-    public int dumpPrunables(Connection conn,
-                             PrintWriter writer) throws ServerException {
-
-        logger.info("Preparing list of prunable files in cache");
+    /**
+     * Get up to <code>pageSize</code> items from the prunable list whose
+     * pruneKey is greater than <code>afterKey</code>, as a map of pruneKey
+     * to xmlPath.
+     */
+    public SortedMap<Integer, String> getPrunablePage(Connection conn,
+                                                      int afterKey,
+                                                      int pageSize) throws ServerException {
 
+        SortedMap<Integer, String> page = new TreeMap<Integer, String>();
         Statement stmt = null;
         ResultSet results = null;
-        int resultCount = 0;
-
         try {
             stmt = conn.createStatement();
+            stmt.setMaxRows(pageSize);
             results = executeQuery(stmt, "SELECT pruneKey, xmlPath "
-                    + "FROM rcPrunable");
-            while (results.next()) {
-                resultCount++;
-                writer.println(results.getInt(1) + " " + results.getString(2));
+                    + "FROM rcPrunable "
+                    + "WHERE pruneKey > " + afterKey + " "
+                    + "ORDER BY pruneKey ASC");
+            while (results.next() && page.size() < pageSize) {
+                page.put(new Integer(results.getInt(1)), results.getString(2));
             }
-
-            return resultCount;
-
+            return page;
         } catch (SQLException e) {
-            throw new ServerException("Failed to dump prunables", e);
+            throw new ServerException("Failed to read page of prunables", e);
         } finally {
             if (results != null) try {
                 results.close();
@@ -1444,14 +2123,6 @@ public class RCDatabase {
                 stmt.close();
             } catch (Exception ex) {
             }
-
-            if (resultCount > 0) {
-                // JDBC driver may be using a lot of heap space at this point,
-                // so try to convince the VM to clean up after it
-                results = null;
-                stmt = null;
-                System.gc();
-            }
         }
     }
 }
@@ -1,16 +1,37 @@
 package proai.cache;
 
+import proai.error.ServerException;
+
 import java.io.File;
 import java.io.FileOutputStream;
+import java.io.OutputStreamWriter;
 import java.io.PrintWriter;
 
+/**
+ * Writes a new file in the disk cache.  Content is always written as UTF-8,
+ * which is how it's read back when served or validated.
+ * <p/>
+ * <p>If the content is a record, its header values are captured as it is
+ * written, so if the record has been validated, they are available from
+ * <code>getParsedRecord()</code> without reading the file back.
+ */
 public class RCDiskWriter extends PrintWriter {
 
     private String m_path;
     private File m_file;
+    private HeaderCapturingWriter m_header;
 
     public RCDiskWriter(File baseDir, String path) throws Exception {
-        super(new FileOutputStream(new File(baseDir, path)));
+        this(new HeaderCapturingWriter(new OutputStreamWriter(
+                new FileOutputStream(new File(baseDir, path)), "UTF-8")),
+                baseDir, path);
+    }
+
+    private RCDiskWriter(HeaderCapturingWriter header,
+                         File baseDir,
+                         String path) {
+        super(header);
+        m_header = header;
         m_path = path;
         m_file = new File(baseDir, path);
     }
@@ -23,4 +44,34 @@ public class RCDiskWriter extends PrintWriter {
         return m_file;
     }
 
-}
\ No newline at end of file
+    /**
+     * Whether the header of the record was fully captured while it was
+     * written.  If not, <code>getParsedRecord()</code> will need to parse
+     * the file even if the record has been validated.
+     */
+    public boolean hasCapturedHeader() {
+        return m_header.isComplete();
+    }
+
+    /**
+     * Get the header values of the record that was written.
+     * This should only be called after the writer has been closed.
+     * <p/>
+     * The captured values are only used if the record has been validated.
+     * Otherwise the file is parsed, since that is the only check that the
+     * whole record is well-formed.
+     *
+     * @param validated whether the record has passed schema validation.
+     */
+    public ParsedRecord getParsedRecord(String itemID,
+                                        String prefix,
+                                        boolean validated) throws ServerException {
+        if (validated && m_header.isComplete()) {
+            return new ParsedRecord(itemID, prefix, m_path, m_file,
+                    m_header.getDatestamp(), m_header.getSetSpecs());
+        } else {
+            return new ParsedRecord(itemID, prefix, m_path, m_file);
+        }
+    }
+
+}
@@ -0,0 +1,183 @@
+package proai.cache;
+
+import org.apache.log4j.Logger;
+import proai.error.ServerException;
+import proai.util.DBUtil;
+
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Adds rows to the rcQueue table in batches.
+ * <p/>
+ * <p>If the JDBC driver supports batch updates, a single
+ * <code>PreparedStatement</code> is reused for all rows, and each batch
+ * is sent with <code>executeBatch()</code>.  Otherwise, each batch is sent
+ * as a single multi-row <code>INSERT</code>.
+ * <p/>
+ * <p>All rows written by one writer go into the same priority lane
+ * (see <code>QueueItem.PRIORITY_URGENT</code> and friends).
+ * <p/>
+ * <p>Rows are written using the connection given at construction time,
+ * so they become visible when that connection's transaction is committed.
+ * Callers must call <code>close()</code> to flush the last batch.
+ */
+public class RCQueueWriter {
+
+    private static final Logger logger =
+            Logger.getLogger(RCQueueWriter.class.getName());
+
+    private static final String INSERT_SQL = "INSERT INTO rcQueue "
+            + "(identifier, mdPrefix, sourceInfo, queueSource, priority) ";
+
+    private Connection m_conn;
+    private char m_queueSource;
+    private int m_priority;
+    private int m_batchSize;
+    private boolean m_backslashIsEscape;
+
+    private PreparedStatement m_pstmt;
+    private List<String[]> m_pending;
+    private int m_count;
+
+    protected RCQueueWriter(Connection conn,
+                            char queueSource,
+                            int priority,
+                            int batchSize,
+                            boolean backslashIsEscape) throws ServerException {
+        m_conn = conn;
+        m_queueSource = queueSource;
+        m_priority = priority;
+        m_batchSize = batchSize;
+        m_backslashIsEscape = backslashIsEscape;
+        m_pending = new ArrayList<String[]>();
+        try {
+            if (conn.getMetaData().supportsBatchUpdates()) {
+                m_pstmt = conn.prepareStatement(INSERT_SQL + "VALUES (?, ?, ?, ?, ?)");
+            } else {
+                logger.debug("JDBC driver doesn't support batch updates; "
+                        + "using multi-row inserts");
+            }
+        } catch (SQLException e) {
+            throw new ServerException("Failed to prepare queue insert", e);
+        }
+    }
+
+    /**
+     * Add a row to the current batch, sending the batch if it is full.
+     */
+    public void add(String identifier,
+                    String mdPrefix,
+                    String sourceInfo) throws ServerException {
+
+        if ((sourceInfo.indexOf("\n") != -1) || (sourceInfo.indexOf("\r") != -1)) {
+            throw new ServerException("INSERT aborted: bad sourceInfo for "
+                    + identifier + "/" + mdPrefix + " (contains "
+                    + "newline(s))");
+        }
+        try {
+            if (m_pstmt != null) {
+                m_pstmt.setString(1, identifier);
+                m_pstmt.setString(2, mdPrefix);
+                m_pstmt.setString(3, sourceInfo);
+                m_pstmt.setString(4, String.valueOf(m_queueSource));
+                m_pstmt.setInt(5, m_priority);
+                m_pstmt.addBatch();
+            }
+            m_pending.add(new String[]{identifier, mdPrefix, sourceInfo});
+            m_count++;
+        } catch (SQLException e) {
+            throw new ServerException("Failed to add row to queue batch", e);
+        }
+        if (m_pending.size() >= m_batchSize) {
+            flush();
+        }
+    }
+
+    /**
+     * Send any rows in the current batch to the database.
+     */
+    public void flush() throws ServerException {
+
+        if (m_pending.size() == 0) return;
+        try {
+            if (m_pstmt != null) {
+                m_pstmt.executeBatch();
+            } else {
+                executeMultiRowInsert();
+            }
+            logger.debug("Sent batch of " + m_pending.size() + " queue rows");
+            m_pending.clear();
+        } catch (SQLException e) {
+            throw new ServerException("Failed while attempting to enqueue "
+                    + "batch of " + m_pending.size() + " records", e);
+        }
+    }
+
+    private void executeMultiRowInsert() throws SQLException {
+        StringBuffer sql = new StringBuffer(INSERT_SQL);
+        sql.append("VALUES ");
+        for (int i = 0; i < m_pending.size(); i++) {
+            String[] row = m_pending.get(i);
+            if (i > 0) sql.append(", ");
+            sql.append("(");
+            sql.append(DBUtil.quotedString(row[0], m_backslashIsEscape));
+            sql.append(", ");
+            sql.append(DBUtil.quotedString(row[1], m_backslashIsEscape));
+            sql.append(", ");
+            sql.append(DBUtil.quotedString(row[2], m_backslashIsEscape));
+            sql.append(", '");
+            sql.append(m_queueSource);
+            sql.append("', ");
+            sql.append(m_priority);
+            sql.append(")");
+        }
+        Statement stmt = null;
+        try {
+            stmt = m_conn.createStatement();
+            stmt.executeUpdate(sql.toString());
+        } finally {
+            if (stmt != null) try {
+                stmt.close();
+            } catch (Exception ex) {
+            }
+        }
+    }
+
+    /**
+     * Get the total number of rows added so far.
+     */
+    public int getCount() {
+        return m_count;
+    }
+
+    /**
+     * Flush the last batch and release the underlying statement.
+     * The connection is not closed.
+     */
+    public void close() throws ServerException {
+        try {
+            flush();
+        } finally {
+            discard();
+        }
+    }
+
+    /**
+     * Release the underlying statement without sending any rows that are
+     * still pending.  This is a no-op if the writer is already closed.
+     */
+    public void discard() {
+        m_pending.clear();
+        if (m_pstmt != null) try {
+            m_pstmt.close();
+        } catch (Exception ex) {
+        }
+        m_pstmt = null;
+    }
+
+}
@@ -15,16 +15,21 @@ import proai.CloseableIterator;
 import proai.MetadataFormat;
 import proai.SetInfo;
 import proai.Writable;
+import proai.driver.ChangeListener;
+import proai.driver.ChangeNotifyingOAIDriver;
 import proai.driver.OAIDriver;
 import proai.error.ServerException;
 import proai.util.DDLConverter;
 import proai.util.StreamUtil;
+import proai.util.ThreadUtil;
 
 import java.io.File;
 import java.io.InputStream;
+import java.net.InetAddress;
 import java.sql.Connection;
 import java.sql.SQLException;
 import java.util.*;
+import java.util.concurrent.ExecutorService;
 
 /**
  * Main application interface for working with items in the cache,
@@ -44,6 +49,29 @@ public class RecordCache extends Thread {
     private static final Logger logger =
             Logger.getLogger(RecordCache.class.getName());
 
+    private static final int DEFAULT_QUEUE_LEASE_SECONDS = 600;
+
+    private static final int DEFAULT_QUEUE_BATCH_SIZE = 500;
+
+    private static final int DEFAULT_FAILED_RETRY_DELAY_SECONDS = 120;
+
+    private static final int DEFAULT_MAX_FAILED_RETRY_DELAY_SECONDS = 86400;
+
+    private static final int DEFAULT_CHANGE_COALESCE_MILLIS = 2000;
+
+    private static final int DEFAULT_POLL_CHUNK_SIZE = 10000;
+
+    private static final int DEFAULT_PRUNE_THREADS = 4;
+
+    private static final int DEFAULT_COMMITTER_THREADS = 1;
+
+    private static final int DEFAULT_PRUNE_BATCH_SIZE = 5000;
+
+    private static final int DEFAULT_KEY_CACHE_SIZE = 100000;
+
+    // indexed by priority: urgent, retry, bulk
+    private static final int[] DEFAULT_QUEUE_LANE_WEIGHTS = new int[]{8, 2, 1};
+
     private static final String propMissing = "Required property missing: ";
 
     private static final String pfx = "proai.";
@@ -54,8 +82,25 @@ public class RecordCache extends Thread {
     public static final String PROP_MAXWORKERS = pfx + "maxWorkers";
     public static final String PROP_MAXWORKBATCHSIZE = pfx + "maxWorkBatchSize";
     public static final String PROP_MAXFAILEDRETRIES = pfx + "maxFailedRetries";
+    public static final String PROP_FAILEDRETRYDELAYSECONDS = pfx + "failedRetryDelaySeconds";
+    public static final String PROP_MAXFAILEDRETRYDELAYSECONDS = pfx + "maxFailedRetryDelaySeconds";
     public static final String PROP_MAXCOMMITQUEUESIZE = pfx + "maxCommitQueueSize";
     public static final String PROP_MAXRECORDSPERTRANS = pfx + "maxRecordsPerTransaction";
+    public static final String PROP_COMMITTERTHREADS = pfx + "committerThreads";
+    public static final String PROP_USEVIRTUALFETCHTHREADS = pfx + "useVirtualFetchThreads";
+    public static final String PROP_ADAPTIVECONCURRENCY = pfx + "adaptiveConcurrency";
+    public static final String PROP_NODEID = pfx + "nodeId";
+    public static final String PROP_QUEUELEASESECONDS = pfx + "queueLeaseSeconds";
+    public static final String PROP_QUEUEBATCHSIZE = pfx + "queueBatchSize";
+    public static final String PROP_KEYCACHESIZE = pfx + "keyCacheSize";
+    public static final String PROP_QUEUELANEWEIGHTS = pfx + "queueLaneWeights";
+    public static final String PROP_PARALLELFORMATPOLLING = pfx + "parallelFormatPolling";
+    public static final String PROP_POLLCHUNKSIZE = pfx + "pollChunkSize";
+    public static final String PROP_VALIDATIONTHREADS = pfx + "validationThreads";
+    public static final String PROP_PARSETHREADS = pfx + "parseThreads";
+    public static final String PROP_PRUNETHREADS = pfx + "pruneThreads";
+    public static final String PROP_PRUNEBATCHSIZE = pfx + "pruneBatchSize";
+    public static final String PROP_CHANGECOALESCEMILLIS = pfx + "changeCoalesceMillis";
     public static final String PROP_SCHEMADIR = pfx + "schemaDir";
     public static final String PROP_VALIDATEUPDATES = pfx + "validateUpdates";
     private static final String dbpfx = pfx + "db.";
@@ -67,12 +112,17 @@ public class RecordCache extends Thread {
     private static final String dbconnpfx = dbpfx + "connection.";
     private static BasicDataSource s_pool;
 
+    private BasicDataSource m_pool;
     private Updater m_updater;
     private OAIDriver m_driver;
     private File m_baseDir;
 
     private RCDatabase m_rcdb;
     private RCDisk m_rcDisk;
+    private ExecutorService m_fetchExecutor;
+    private Stage m_validationStage;
+    private Stage m_parseStage;
+    private Pruner m_pruner;
 
     public RecordCache(Properties props) throws ServerException {
 
@@ -100,8 +150,90 @@ public class RecordCache extends Thread {
         int maxWorkers = getRequiredInt(props, PROP_MAXWORKERS, 1, Integer.MAX_VALUE);
         int maxWorkBatchSize = getRequiredInt(props, PROP_MAXWORKBATCHSIZE, 1, Integer.MAX_VALUE);
         int maxFailedRetries = getRequiredInt(props, PROP_MAXFAILEDRETRIES, 0, Integer.MAX_VALUE);
+        int failedRetryDelaySeconds = DEFAULT_FAILED_RETRY_DELAY_SECONDS;
+        if (props.getProperty(PROP_FAILEDRETRYDELAYSECONDS) != null) {
+            failedRetryDelaySeconds = getRequiredInt(props, PROP_FAILEDRETRYDELAYSECONDS, 0, Integer.MAX_VALUE);
+        }
+        int maxFailedRetryDelaySeconds = DEFAULT_MAX_FAILED_RETRY_DELAY_SECONDS;
+        if (props.getProperty(PROP_MAXFAILEDRETRYDELAYSECONDS) != null) {
+            maxFailedRetryDelaySeconds = getRequiredInt(props, PROP_MAXFAILEDRETRYDELAYSECONDS, 0, Integer.MAX_VALUE);
+        }
         int maxCommitQueueSize = getRequiredInt(props, PROP_MAXCOMMITQUEUESIZE, 1, Integer.MAX_VALUE);
         int maxRecordsPerTransaction = getRequiredInt(props, PROP_MAXRECORDSPERTRANS, 1, Integer.MAX_VALUE);
+        int committerThreads = DEFAULT_COMMITTER_THREADS;
+        if (props.getProperty(PROP_COMMITTERTHREADS) != null) {
+            committerThreads = getRequiredInt(props, PROP_COMMITTERTHREADS, 1, Integer.MAX_VALUE);
+        }
+
+        boolean useVirtualFetchThreads = false;
+        String vf = props.getProperty(PROP_USEVIRTUALFETCHTHREADS);
+        if (vf != null && vf.trim().equalsIgnoreCase("true")) {
+            useVirtualFetchThreads = true;
+        }
+
+        boolean adaptiveConcurrency = false;
+        String ac = props.getProperty(PROP_ADAPTIVECONCURRENCY);
+        if (ac != null && ac.trim().equalsIgnoreCase("true")) {
+            adaptiveConcurrency = true;
+        }
+
+        String nodeId = props.getProperty(PROP_NODEID);
+        if (nodeId == null || nodeId.trim().length() == 0) {
+            nodeId = getDefaultNodeId();
+        } else {
+            nodeId = nodeId.trim();
+        }
+        int queueLeaseSeconds = DEFAULT_QUEUE_LEASE_SECONDS;
+        if (props.getProperty(PROP_QUEUELEASESECONDS) != null) {
+            queueLeaseSeconds = getRequiredInt(props, PROP_QUEUELEASESECONDS, 1, Integer.MAX_VALUE);
+        }
+        int[] queueLaneWeights = DEFAULT_QUEUE_LANE_WEIGHTS;
+        if (props.getProperty(PROP_QUEUELANEWEIGHTS) != null) {
+            queueLaneWeights = getLaneWeights(props, PROP_QUEUELANEWEIGHTS);
+        }
+        boolean parallelFormatPolling = false;
+        String pfp = props.getProperty(PROP_PARALLELFORMATPOLLING);
+        if (pfp != null && pfp.trim().equalsIgnoreCase("true")) {
+            parallelFormatPolling = true;
+        }
+
+        int cores = Runtime.getRuntime().availableProcessors();
+        int validationThreads = cores;
+        if (props.getProperty(PROP_VALIDATIONTHREADS) != null) {
+            validationThreads = getRequiredInt(props, PROP_VALIDATIONTHREADS, 1, Integer.MAX_VALUE);
+        }
+        int parseThreads = cores;
+        if (props.getProperty(PROP_PARSETHREADS) != null) {
+            parseThreads = getRequiredInt(props, PROP_PARSETHREADS, 1, Integer.MAX_VALUE);
+        }
+        int pruneThreads = DEFAULT_PRUNE_THREADS;
+        if (props.getProperty(PROP_PRUNETHREADS) != null) {
+            pruneThreads = getRequiredInt(props, PROP_PRUNETHREADS, 1, Integer.MAX_VALUE);
+        }
+        int pruneBatchSize = DEFAULT_PRUNE_BATCH_SIZE;
+        if (props.getProperty(PROP_PRUNEBATCHSIZE) != null) {
+            pruneBatchSize = getRequiredInt(props, PROP_PRUNEBATCHSIZE, 1, Integer.MAX_VALUE);
+        }
+
+        int pollChunkSize = DEFAULT_POLL_CHUNK_SIZE;
+        if (props.getProperty(PROP_POLLCHUNKSIZE) != null) {
+            pollChunkSize = getRequiredInt(props, PROP_POLLCHUNKSIZE, 1, Integer.MAX_VALUE);
+        }
+
+        int changeCoalesceMillis = DEFAULT_CHANGE_COALESCE_MILLIS;
+        if (props.getProperty(PROP_CHANGECOALESCEMILLIS) != null) {
+            changeCoalesceMillis = getRequiredInt(props, PROP_CHANGECOALESCEMILLIS, 0, Integer.MAX_VALUE);
+        }
+
+        int queueBatchSize = DEFAULT_QUEUE_BATCH_SIZE;
+        if (props.getProperty(PROP_QUEUEBATCHSIZE) != null) {
+            queueBatchSize = getRequiredInt(props, PROP_QUEUEBATCHSIZE, 1, Integer.MAX_VALUE);
+        }
+
+        int keyCacheSize = DEFAULT_KEY_CACHE_SIZE;
+        if (props.getProperty(PROP_KEYCACHESIZE) != null) {
+            keyCacheSize = getRequiredInt(props, PROP_KEYCACHESIZE, 0, Integer.MAX_VALUE);
+        }
 
         logger.info("Initializing database connection pool...");
         BasicDataSource pool;
@@ -156,12 +288,43 @@ public class RecordCache extends Thread {
                 maxWorkers,
                 maxWorkBatchSize,
                 maxFailedRetries,
+                failedRetryDelaySeconds,
+                maxFailedRetryDelaySeconds,
                 maxCommitQueueSize,
                 maxRecordsPerTransaction,
+                committerThreads,
+                useVirtualFetchThreads,
+                adaptiveConcurrency,
+                nodeId,
+                queueLeaseSeconds,
+                queueLaneWeights,
+                queueBatchSize,
+                keyCacheSize,
+                parallelFormatPolling,
+                pollChunkSize,
+                validationThreads,
+                parseThreads,
+                pruneThreads,
+                pruneBatchSize,
+                changeCoalesceMillis,
                 validateUpdates,
                 schemaDir);
     }
 
+    /**
+     * Get the node id to use for leasing queue items if none is configured.
+     * This is the local hostname, so a restarted node immediately reclaims
+     * whatever it had leased before.
+     */
+    private static String getDefaultNodeId() {
+        try {
+            return InetAddress.getLocalHost().getHostName();
+        } catch (Exception e) {
+            logger.warn("Unable to determine local hostname; using 'localhost' as node id");
+            return "localhost";
+        }
+    }
+
     private static String getRequiredParam(Properties props,
                                            String propName) throws ServerException {
         String val = props.getProperty(propName);
@@ -192,6 +355,32 @@ public class RecordCache extends Thread {
         }
     }
 
+    /**
+     * Get a comma-separated list of positive weights, one for each
+     * priority lane of the queue.
+     */
+    private static int[] getLaneWeights(Properties props,
+                                        String propName) throws ServerException {
+        String[] vals = getRequiredParam(props, propName).split(",");
+        if (vals.length != QueueItem.PRIORITY_LANES) {
+            throw new ServerException("Bad value for " + propName + ": must "
+                    + "list " + QueueItem.PRIORITY_LANES + " weights (urgent, "
+                    + "retry, bulk)");
+        }
+        int[] weights = new int[vals.length];
+        for (int i = 0; i < vals.length; i++) {
+            try {
+                weights[i] = Integer.parseInt(vals[i].trim());
+            } catch (NumberFormatException nfe) {
+                throw new ServerException("Bad value for " + propName + ": weights must be integers");
+            }
+            if (weights[i] < 1) {
+                throw new ServerException("Bad value for " + propName + ": smallest valid weight is 1");
+            }
+        }
+        return weights;
+    }
+
     private static final Properties getDBProperties(Properties props,
                                                     boolean conn) {
         Properties dbProps = new Properties();
@@ -229,14 +418,32 @@ public class RecordCache extends Thread {
                       int maxWorkers,
                       int maxWorkBatchSize,
                       int maxFailedRetries,
+                      int failedRetryDelaySeconds,
+                      int maxFailedRetryDelaySeconds,
                       int maxCommitQueueSize,
                       int maxRecordsPerTransaction,
+                      int committerThreads,
+                      boolean useVirtualFetchThreads,
+                      boolean adaptiveConcurrency,
+                      String nodeId,
+                      int queueLeaseSeconds,
+                      int[] queueLaneWeights,
+                      int queueBatchSize,
+                      int keyCacheSize,
+                      boolean parallelFormatPolling,
+                      int pollChunkSize,
+                      int validationThreads,
+                      int parseThreads,
+                      int pruneThreads,
+                      int pruneBatchSize,
+                      int changeCoalesceMillis,
                       boolean validateUpdates,
                       File schemaDir) throws ServerException {
 
         logger.info("Initializing Record Cache...");
 
         s_pool = pool;
+        m_pool = pool;
         m_driver = driver;
         m_baseDir = baseDir;
 
@@ -248,7 +455,7 @@ public class RecordCache extends Thread {
         Connection conn = null;
         try {
             conn = getConnection();
-            m_rcdb = new RCDatabase(conn, ddlc, mySQLTrickling, backslashIsEscape, pollingEnabled, m_rcDisk);
+            m_rcdb = new RCDatabase(conn, ddlc, mySQLTrickling, backslashIsEscape, pollingEnabled, queueBatchSize, keyCacheSize, m_rcDisk);
         } catch (SQLException e) {
             throw new ServerException("Database connection problem", e);
         } finally {
@@ -280,6 +487,31 @@ public class RecordCache extends Thread {
             }
         }
 
+        // the fetch executor lives as long as the cache, and is shared by
+        // all rounds of queue processing
+        if (useVirtualFetchThreads) {
+            m_fetchExecutor = ThreadUtil.newVirtualThreadPerTaskExecutor();
+            if (m_fetchExecutor == null) {
+                logger.warn("Falling back to platform threads for fetching");
+            } else {
+                logger.info("Using virtual threads for fetching (up to "
+                        + maxWorkers + " concurrent workers)");
+            }
+        }
+        if (m_fetchExecutor == null) {
+            m_fetchExecutor = ThreadUtil.newFixedThreadPool("Worker", maxWorkers);
+        }
+
+        // validation and parsing each get their own bounded pool,
+        // sized independently of the fetch executor
+        if (validator != null) {
+            m_validationStage = new Stage("Validator", validationThreads, validationThreads);
+        }
+        m_parseStage = new Stage("Parser", parseThreads, parseThreads);
+
+        // superseded files are deleted in the background
+        m_pruner = new Pruner(m_rcdb, m_rcDisk, pruneThreads, pruneBatchSize);
+
         // finally, start the Updater thread
         m_updater = new Updater(m_driver,
                 this,
@@ -289,9 +521,34 @@ public class RecordCache extends Thread {
                 maxWorkers,
                 maxWorkBatchSize,
                 maxFailedRetries,
+                new RetrySchedule(failedRetryDelaySeconds, maxFailedRetryDelaySeconds),
                 maxCommitQueueSize,
                 maxRecordsPerTransaction,
+                committerThreads,
+                m_fetchExecutor,
+                m_validationStage,
+                m_parseStage,
+                m_pruner,
+                adaptiveConcurrency,
+                nodeId,
+                queueLeaseSeconds,
+                queueLaneWeights,
+                parallelFormatPolling,
+                pollChunkSize,
+                changeCoalesceMillis,
                 validator);
+
+        // let the driver trigger updates if it can
+        if (m_driver instanceof ChangeNotifyingOAIDriver) {
+            logger.info("Driver supports change notification");
+            ((ChangeNotifyingOAIDriver) m_driver).setChangeListener(
+                    new ChangeListener() {
+                        public void changed() {
+                            requestUpdate();
+                        }
+                    });
+        }
+
         m_updater.start();
     }
 
@@ -392,14 +649,71 @@ public class RecordCache extends Thread {
                 maxWorkers,
                 maxWorkBatchSize,
                 maxFailedRetries,
+                DEFAULT_FAILED_RETRY_DELAY_SECONDS,
+                DEFAULT_MAX_FAILED_RETRY_DELAY_SECONDS,
                 maxCommitQueueSize,
                 maxRecordsPerTransaction,
+                DEFAULT_COMMITTER_THREADS,
+                false,
+                false,
+                getDefaultNodeId(),
+                DEFAULT_QUEUE_LEASE_SECONDS,
+                DEFAULT_QUEUE_LANE_WEIGHTS,
+                DEFAULT_QUEUE_BATCH_SIZE,
+                DEFAULT_KEY_CACHE_SIZE,
+                false,
+                DEFAULT_POLL_CHUNK_SIZE,
+                Runtime.getRuntime().availableProcessors(),
+                Runtime.getRuntime().availableProcessors(),
+                DEFAULT_PRUNE_THREADS,
+                DEFAULT_PRUNE_BATCH_SIZE,
+                DEFAULT_CHANGE_COALESCE_MILLIS,
                 validateUpdates,
                 schemaDir);
     }
 
     //////////////////////////////////////////////////////////////////////////
 
+    /**
+     * Start an update cycle as soon as possible, rather than waiting for
+     * the next scheduled one.
+     *
+     * @see Updater#requestUpdate()
+     */
+    public void requestUpdate() {
+        m_updater.requestUpdate();
+    }
+
+    /**
+     * Queue the given record to be fetched ahead of any bulk updates, and
+     * start an update cycle as soon as possible.  If an update cycle is
+     * already processing the queue, the record will be picked up by it.
+     *
+     * @param sourceInfo the driver-specific information needed to fetch
+     *                   the record, as given by the driver's
+     *                   <code>Record.getSourceInfo()</code>.
+     */
+    public void refreshRecord(String identifier,
+                              String mdPrefix,
+                              String sourceInfo) throws ServerException {
+        Connection conn = null;
+        RCQueueWriter writer = null;
+        try {
+            conn = getConnection();
+            writer = m_rcdb.getQueueWriter(conn, 'R', QueueItem.PRIORITY_URGENT);
+            writer.add(identifier, mdPrefix, sourceInfo);
+            writer.close();
+        } catch (SQLException e) {
+            throw new ServerException("Unable to queue refresh of "
+                    + identifier + "/" + mdPrefix, e);
+        } finally {
+            if (writer != null) writer.discard();
+            releaseConnection(conn);
+        }
+        logger.info("Queued urgent refresh of " + identifier + "/" + mdPrefix);
+        requestUpdate();
+    }
+
     public File getFile(String cachePath) {
         return m_rcDisk.getFile(cachePath);
     }
@@ -530,6 +844,25 @@ public class RecordCache extends Thread {
                                                        Date until,
                                                        String prefix,
                                                        String set) throws ServerException {
+        return getRecordsPaths(from, until, prefix, set, 0, -1,
+                RecordInfoIterator.DEFAULT_PAGE_SIZE);
+    }
+
+    /**
+     * Get the paths and dates of the records matching the given query, in
+     * (modDate, recordKey) order, starting after the record with the given
+     * modDate and recordKey (unless lastRecordKey is -1).  Each element is
+     * { path, dateString, modDate, recordKey }.
+     *
+     * @param pageSize how many records to read from the database at a time.
+     */
+    public CloseableIterator<String[]> getRecordsPaths(Date from,
+                                                       Date until,
+                                                       String prefix,
+                                                       String set,
+                                                       long lastModDate,
+                                                       int lastRecordKey,
+                                                       int pageSize) throws ServerException {
         if (until == null) {
             // If given as null, use the current date as from date.
             // This is done so that records with dates after the request date
@@ -541,7 +874,10 @@ public class RecordCache extends Thread {
                     from,
                     until,
                     prefix,
-                    set);
+                    set,
+                    lastModDate,
+                    lastRecordKey,
+                    pageSize);
         } catch (SQLException e) {
             throw new ServerException("Error getting a database connection", e);
         }
@@ -585,16 +921,28 @@ public class RecordCache extends Thread {
         close();
     }
 
-    public void close() throws ServerException {
+    /**
+     * Shut down this instance's threads and db pool.
+     *
+     * The static pool is only cleared if it is still this instance's, so
+     * closing (or finalizing) an old instance doesn't take the pool away
+     * from one constructed after it.
+     */
+    public synchronized void close() throws ServerException {
 
-        if (s_pool != null) {  // if it's not already closed
+        if (m_pool != null) {  // if it's not already closed
 
             m_updater.shutdown(true);
+            m_fetchExecutor.shutdownNow();
+            if (m_validationStage != null) m_validationStage.shutdown();
+            m_parseStage.shutdown();
+            m_pruner.shutdown();
 
             // shut down db pool, etc.
             try {
-                s_pool.close();
-                s_pool = null;
+                m_pool.close();
+                if (s_pool == m_pool) s_pool = null;
+                m_pool = null;
             } catch (Exception e) {
                 throw new ServerException("Error closing DataSource", e);
             }
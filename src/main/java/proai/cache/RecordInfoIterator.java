@@ -0,0 +1,136 @@
+package proai.cache;
+
+import org.apache.log4j.Logger;
+import proai.CloseableIterator;
+import proai.error.ServerException;
+
+import java.sql.Connection;
+import java.sql.SQLException;
+import java.util.Date;
+import java.util.Iterator;
+import java.util.List;
+
+/**
+ * An iterator over the records matching a ListRecords or ListIdentifiers
+ * query, which reads them from the database one page at a time.
+ * <p/>
+ * Records are returned in (modDate, recordKey) order, and each page is
+ * keyed on the last pair seen, so reading the next page costs the same no
+ * matter how far into the results it is.  Each page is read with its own
+ * connection, which is released before the page is returned, so no
+ * connection is held between pages or while the caller is writing out
+ * the records.
+ * <p/>
+ * The returned <code>String[]</code> for each record has four parts:
+ * the relative filesystem path, the ISO8601-formatted date (second
+ * precision), and the modDate and recordKey, which together identify the
+ * record's position in the results.
+ * <p/>
+ * Since the results are not read in a single query, callers should give
+ * a fixed until date (the time the list was requested, if the harvester
+ * gave none) so that records committed while the list is being read are
+ * left for the next harvest.  A record that is updated while the list is
+ * being read is likewise skipped, since its new date will be after the
+ * until date; it will be included in the next harvest.
+ */
+public class RecordInfoIterator implements CloseableIterator<String[]> {
+
+    public static final int DEFAULT_PAGE_SIZE = 1000;
+
+    private static final Logger logger =
+            Logger.getLogger(RecordInfoIterator.class.getName());
+
+    private RCDatabase m_db;
+    private int m_formatKey;
+    private int m_setKey;
+    private Date m_from;
+    private Date m_until;
+    private int m_pageSize;
+
+    private long m_lastModDate;
+    private int m_lastRecordKey;
+
+    private Iterator<String[]> m_page;
+    private boolean m_exhausted;
+    private boolean m_closed;
+
+    /**
+     * @param setKey        the key of the set to restrict results to, or -1.
+     * @param lastModDate   the modDate of the record to start after, if
+     *                      lastRecordKey is not -1.
+     * @param lastRecordKey the recordKey of the record to start after, or
+     *                      -1 to start at the beginning.
+     */
+    public RecordInfoIterator(RCDatabase db,
+                              int formatKey,
+                              int setKey,
+                              Date from,
+                              Date until,
+                              long lastModDate,
+                              int lastRecordKey,
+                              int pageSize) {
+        m_db = db;
+        m_formatKey = formatKey;
+        m_setKey = setKey;
+        m_from = from;
+        m_until = until;
+        m_lastModDate = lastModDate;
+        m_lastRecordKey = lastRecordKey;
+        m_pageSize = pageSize;
+    }
+
+    public boolean hasNext() throws ServerException {
+        if (m_closed) return false;
+        if (m_page != null && m_page.hasNext()) return true;
+        if (m_exhausted) return false;
+        readNextPage();
+        return m_page.hasNext();
+    }
+
+    public String[] next() throws ServerException {
+        if (!hasNext()) return null;
+        String[] next = m_page.next();
+        m_lastModDate = Long.parseLong(next[2]);
+        m_lastRecordKey = Integer.parseInt(next[3]);
+        return next;
+    }
+
+    public void remove() throws UnsupportedOperationException {
+        throw new UnsupportedOperationException("RecordInfoIterator does not support remove().");
+    }
+
+    public void close() {
+        if (!m_closed) {
+            m_closed = true;
+            m_page = null;
+            logger.debug("Closed.");
+        }
+    }
+
+    private void readNextPage() throws ServerException {
+        Connection conn = null;
+        try {
+            conn = RecordCache.getConnection();
+            List<String[]> page = m_db.getRecordInfoPage(conn,
+                    m_formatKey,
+                    m_setKey,
+                    m_from,
+                    m_until,
+                    m_lastModDate,
+                    m_lastRecordKey,
+                    m_pageSize);
+            m_exhausted = page.size() < m_pageSize;
+            m_page = page.iterator();
+        } catch (SQLException e) {
+            close();
+            throw new ServerException("Error getting connection to read "
+                    + "next page of records", e);
+        } catch (ServerException e) {
+            close();
+            throw e;
+        } finally {
+            RecordCache.releaseConnection(conn);
+        }
+    }
+
+}
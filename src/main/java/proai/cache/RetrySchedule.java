@@ -0,0 +1,57 @@
+package proai.cache;
+
+import java.util.Random;
+
+/**
+ * Decides when a failed record should next be retried.
+ * <p/>
+ * <p>The delay doubles with each failure, starting at the base delay and
+ * capped at the maximum delay.  The actual delay is chosen at random
+ * between half and all of that, so records that failed together (say,
+ * during an outage of the source) are spread out when they are retried.
+ */
+public class RetrySchedule {
+
+    private long _baseDelayMillis;
+    private long _maxDelayMillis;
+    private Random _random = new Random();
+
+    public RetrySchedule(int baseDelaySeconds, int maxDelaySeconds) {
+        _baseDelayMillis = baseDelaySeconds * 1000L;
+        _maxDelayMillis = maxDelaySeconds * 1000L;
+        if (_maxDelayMillis < _baseDelayMillis) {
+            _maxDelayMillis = _baseDelayMillis;
+        }
+    }
+
+    /**
+     * Get the time at which a record should next be retried.
+     *
+     * @param failCount the record's failCount after the latest failure,
+     *                  which is 0 after the first failure.
+     * @param now       the time of the latest failure, in epoch-ms.
+     * @return the time of the next attempt, in epoch-ms.
+     */
+    public long getNextAttemptDate(int failCount, long now) {
+        long delay = getDelay(failCount);
+        long half = delay / 2;
+        long jitter;
+        synchronized (_random) {
+            jitter = (long) (_random.nextDouble() * (delay - half));
+        }
+        return now + half + jitter;
+    }
+
+    /**
+     * Get the delay before jitter for the given failCount, in ms.
+     */
+    long getDelay(int failCount) {
+        long delay = _baseDelayMillis;
+        for (int i = 0; i < failCount && delay < _maxDelayMillis; i++) {
+            delay *= 2;
+        }
+        if (delay > _maxDelayMillis) delay = _maxDelayMillis;
+        return delay;
+    }
+
+}
@@ -0,0 +1,101 @@
+package proai.cache;
+
+import org.apache.log4j.Logger;
+import proai.util.ThreadUtil;
+
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * A step of record processing that runs on its own fixed-size pool of
+ * threads, with a bounded number of tasks waiting to run.
+ * <p/>
+ * <p>When the stage is full, <code>submit()</code> blocks until a task
+ * finishes, so a slow stage pushes back on the stage that feeds it rather
+ * than letting work pile up in memory.
+ * <p/>
+ * <p>Stages are long-lived and keep running totals, which callers can
+ * snapshot to report per-round throughput.
+ */
+public class Stage {
+
+    private static Logger _LOG = Logger.getLogger(Stage.class.getName());
+
+    private String _name;
+    private int _threads;
+    private ExecutorService _executor;
+    private Semaphore _permits;
+
+    private AtomicInteger _completedCount = new AtomicInteger();
+    private AtomicLong _totalBusyTime = new AtomicLong();
+
+    /**
+     * Create a stage with the given number of threads, allowing up to
+     * <code>queueSize</code> tasks to wait in addition to those running.
+     */
+    public Stage(String name, int threads, int queueSize) {
+        _name = name;
+        _threads = threads;
+        _executor = ThreadUtil.newFixedThreadPool(name, threads);
+        _permits = new Semaphore(threads + queueSize);
+    }
+
+    /**
+     * Run the task on this stage, blocking while the stage is full.
+     *
+     * @throws InterruptedException if interrupted while waiting.
+     * @throws RejectedExecutionException if the stage has been shut down.
+     */
+    public void submit(final Runnable task) throws InterruptedException {
+        _permits.acquire();
+        try {
+            _executor.execute(new Runnable() {
+                public void run() {
+                    long startTime = System.currentTimeMillis();
+                    try {
+                        task.run();
+                    } catch (Throwable th) {
+                        _LOG.error("Unexpected error in " + _name + " stage", th);
+                    } finally {
+                        _totalBusyTime.addAndGet(System.currentTimeMillis() - startTime);
+                        _completedCount.incrementAndGet();
+                        _permits.release();
+                    }
+                }
+            });
+        } catch (RejectedExecutionException e) {
+            _permits.release();
+            throw e;
+        }
+    }
+
+    public String getName() {
+        return _name;
+    }
+
+    public int getThreads() {
+        return _threads;
+    }
+
+    /**
+     * Get the total number of tasks this stage has completed.
+     */
+    public int getCompletedCount() {
+        return _completedCount.get();
+    }
+
+    /**
+     * Get the total time this stage's threads have spent running tasks.
+     */
+    public long getTotalBusyTime() {
+        return _totalBusyTime.get();
+    }
+
+    public void shutdown() {
+        _executor.shutdownNow();
+    }
+
+}
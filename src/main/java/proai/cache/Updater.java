@@ -7,38 +7,86 @@ import proai.Record;
 import proai.SetInfo;
 import proai.driver.OAIDriver;
 import proai.driver.RemoteIterator;
+import proai.driver.ResumableOAIDriver;
+import proai.driver.ResumableRemoteIterator;
 import proai.error.ImmediateShutdownException;
 import proai.error.RepositoryException;
 import proai.error.ServerException;
+import proai.util.DBUtil;
 import proai.util.SetSpec;
+import proai.util.StreamUtil;
+import proai.util.ThreadUtil;
 
-import java.io.*;
 import java.sql.Connection;
 import java.sql.SQLException;
 import java.util.*;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+import java.util.concurrent.RejectedExecutionException;
 
 public class Updater extends Thread {
 
     private static Logger _LOG = Logger.getLogger(Updater.class.getName());
 
+    /**
+     * How many times to attempt a transaction that fails only because it
+     * conflicts with a concurrent one.  Formats polled in parallel all
+     * update rcFormat, so databases that detect conflicts per table rather
+     * than per row (like McKoi) will see them often.
+     */
+    private static final int MAX_CONFLICT_RETRIES = 10;
+
+    /**
+     * Before each retry, wait a random time up to this many milliseconds
+     * times the number of attempts so far, so that conflicting pollers
+     * don't keep retrying in lockstep.
+     */
+    private static final int CONFLICT_BACKOFF_MILLIS = 50;
+
+    private static final Random _RANDOM = new Random();
+
     private int _pollSeconds;
     private int _maxWorkers;
     private int _maxWorkBatchSize;
     private int _maxFailedRetries;
+    private RetrySchedule _retrySchedule;
     private int _maxCommitQueueSize;
     private int _maxRecordsPerTransaction;
+    private int _committerThreads;
+    private String _nodeId;
+    private long _queueLeaseMillis;
+    private int[] _queueLaneWeights;
+    private boolean _parallelFormatPolling;
+    private int _pollChunkSize;
 
     private OAIDriver _driver;
     private RCDatabase _db;
     private RCDisk _disk;
     private Validator _validator;
-
-    private boolean _shutdownRequested;
+    private ExecutorService _fetchExecutor;
+    private Stage _validationStage;
+    private Stage _parseStage;
+    private Pruner _pruner;
+    private long _roundStartTime;
+    private long[] _roundStageTotals;
+
+    private volatile boolean _shutdownRequested;
     private boolean _immediateShutdownRequested;
 
+    /**
+     * Guards _updateRequested.  The thread waits on this between cycles.
+     */
+    private final Object _wakeLock = new Object();
+    private boolean _updateRequested;
+    private long _changeCoalesceMillis;
+
     private QueueIterator _queueIterator;
-    private Worker[] _workers;
-    private Committer _committer;
+    private Set<Integer> _absorbedKeys;
+    private List<Worker> _workers;
+    private Committer[] _committers;
+    private IngestController _controller;
     private boolean _processingAborted;
     private String _status;
 
@@ -50,8 +98,21 @@ public class Updater extends Thread {
                    int maxWorkers,
                    int maxWorkBatchSize,
                    int maxFailedRetries,
+                   RetrySchedule retrySchedule,
                    int maxCommitQueueSize,
                    int maxRecordsPerTransaction,
+                   int committerThreads,
+                   ExecutorService fetchExecutor,
+                   Stage validationStage,
+                   Stage parseStage,
+                   Pruner pruner,
+                   boolean adaptiveConcurrency,
+                   String nodeId,
+                   int queueLeaseSeconds,
+                   int[] queueLaneWeights,
+                   boolean parallelFormatPolling,
+                   int pollChunkSize,
+                   int changeCoalesceMillis,
                    Validator validator) {
         _driver = driver;
         _db = db;
@@ -61,8 +122,23 @@ public class Updater extends Thread {
         _maxWorkers = maxWorkers;
         _maxWorkBatchSize = maxWorkBatchSize;
         _maxFailedRetries = maxFailedRetries;
+        _retrySchedule = retrySchedule;
         _maxCommitQueueSize = maxCommitQueueSize;
         _maxRecordsPerTransaction = maxRecordsPerTransaction;
+        _committerThreads = committerThreads;
+        _fetchExecutor = fetchExecutor;
+        _validationStage = validationStage;
+        _parseStage = parseStage;
+        _pruner = pruner;
+        _nodeId = nodeId;
+        _queueLeaseMillis = queueLeaseSeconds * 1000L;
+        _queueLaneWeights = queueLaneWeights;
+        _parallelFormatPolling = parallelFormatPolling;
+        _pollChunkSize = pollChunkSize;
+        _changeCoalesceMillis = changeCoalesceMillis;
+        if (adaptiveConcurrency) {
+            _controller = new IngestController(maxWorkers, maxRecordsPerTransaction);
+        }
         _validator = validator;
     }
 
@@ -73,6 +149,11 @@ public class Updater extends Thread {
 
             long cycleStartTime = System.currentTimeMillis();
 
+            // requests from here on need another cycle
+            synchronized (_wakeLock) {
+                _updateRequested = false;
+            }
+
             _LOG.info("Update cycle initiated");
 
             try {
@@ -86,18 +167,30 @@ public class Updater extends Thread {
                 _status = "Processing any old items in queue";
                 checkImmediateShutdown();
                 processQueue("old");
+                dateUncommittedRecords();
 
                 checkImmediateShutdown();
                 _status = "Polling and updating queue and database";
-                pollAndUpdate();
+                if (claimPollLease()) {
+                    try {
+                        pollAndUpdate();
+                    } finally {
+                        releasePollLease();
+                    }
+                } else {
+                    _LOG.info("Skipping poll; another node is polling");
+                }
+
+                // polling may have superseded files (e.g. formats or the
+                // identify response), so start pruning them in the background
+                _pruner.requestPrune();
 
                 _status = "Processing any new items in queue";
                 checkImmediateShutdown();
                 processQueue("new");
 
-                checkImmediateShutdown();
-                _status = "Pruning old files from cache if needed";
-                pruneIfNeeded();
+                // and again for records superseded by the new items
+                _pruner.requestPrune();
 
                 long sec = (System.currentTimeMillis() - cycleStartTime) / 1000;
                 _LOG.info("Update cycle finished in " + sec + "sec."
@@ -110,18 +203,67 @@ public class Updater extends Thread {
             }
 
             _status = "Sleeping";
-            int waitedSeconds = 0;
-            while (!_shutdownRequested && waitedSeconds < _pollSeconds) {
+            waitForNextCycle();
+
+        }
+        _status = "Finished";
+
+    }
+
+    /**
+     * Wait until the next cycle is due, an update is requested, or shutdown
+     * is requested.
+     * <p/>
+     * If an update is requested, wait a little longer so that a burst of
+     * requests results in a single cycle.
+     */
+    private void waitForNextCycle() {
+        long wakeTime = System.currentTimeMillis() + (_pollSeconds * 1000L);
+        boolean requested = false;
+        synchronized (_wakeLock) {
+            long now = System.currentTimeMillis();
+            while (!_shutdownRequested && !_updateRequested && now < wakeTime) {
                 try {
-                    Thread.sleep(1000);
-                } catch (Exception e) {
+                    _wakeLock.wait(wakeTime - now);
+                } catch (InterruptedException e) {
                 }
-                waitedSeconds++;
+                now = System.currentTimeMillis();
             }
-
+            requested = _updateRequested;
         }
-        _status = "Finished";
+        if (requested && !_shutdownRequested) {
+            _LOG.info("Update requested; starting next cycle in "
+                    + _changeCoalesceMillis + "ms");
+            long startTime = System.currentTimeMillis() + _changeCoalesceMillis;
+            synchronized (_wakeLock) {
+                long now = System.currentTimeMillis();
+                while (!_shutdownRequested && now < startTime) {
+                    try {
+                        _wakeLock.wait(startTime - now);
+                    } catch (InterruptedException e) {
+                    }
+                    now = System.currentTimeMillis();
+                }
+            }
+        }
+    }
 
+    /**
+     * Request an update cycle as soon as possible.
+     * <p/>
+     * If the thread is waiting between cycles, the next cycle starts
+     * shortly.  If a cycle is running, another one starts shortly after
+     * it finishes.  Requests made while one is already pending have no
+     * further effect.
+     */
+    public void requestUpdate() {
+        synchronized (_wakeLock) {
+            if (!_updateRequested) {
+                _LOG.debug("Update requested");
+                _updateRequested = true;
+                _wakeLock.notifyAll();
+            }
+        }
     }
 
     private void checkImmediateShutdown() throws ImmediateShutdownException {
@@ -150,41 +292,66 @@ public class Updater extends Thread {
                 try {
 
                     _queueIterator = newQueueIterator();
-
-                    // the committer must exist before the workers are started
-                    _committer = new Committer(this,
-                            _db,
-                            _maxCommitQueueSize,
-                            _maxRecordsPerTransaction);
+                    _absorbedKeys = new HashSet<Integer>();
+                    _roundStartTime = System.currentTimeMillis();
+                    _roundStageTotals = getStageTotals();
+
+                    // the committers must exist before the workers are started
+                    _committers = new Committer[_committerThreads];
+                    for (int i = 0; i < _committers.length; i++) {
+                        _committers[i] = new Committer("Committer-" + (i + 1),
+                                this,
+                                _db,
+                                _nodeId,
+                                _retrySchedule,
+                                _maxCommitQueueSize,
+                                _maxRecordsPerTransaction);
+                    }
 
                     // decide how many workers to create (1 to _maxWorkers)
                     int numWorkers = itemsInQueue / _maxWorkBatchSize;
                     if (numWorkers > _maxWorkers) numWorkers = _maxWorkers;
                     if (numWorkers == 0) numWorkers = 1;
+                    if (_controller != null) {
+                        numWorkers = _controller.startRound(numWorkers);
+                        for (Committer committer : _committers) {
+                            committer.setMaxRecordsPerTransaction(
+                                    _controller.getTransactionSize());
+                        }
+                    }
 
                     _LOG.info("Queue has " + itemsInQueue + " records.  Starting "
                             + numWorkers + " worker threads for processing.");
 
-                    // start the workers
-                    _workers = new Worker[numWorkers];
-                    for (int i = 0; i < _workers.length; i++) {
-                        _workers[i] = new Worker(i + 1,
-                                _workers.length,
-                                this,
-                                _driver,
-                                _disk,
-                                _validator);
-                        _workers[i].start();
+                    // start the workers on the long-lived fetch executor
+                    _workers = new ArrayList<Worker>();
+                    for (int i = 0; i < numWorkers; i++) {
+                        startWorker();
                     }
 
-                    // the workers must exist before the committer is started
-                    _committer.start();
+                    // the workers must exist before the committers are started
+                    for (Committer committer : _committers) {
+                        committer.start();
+                    }
 
-                    // wait for workers and committer to finish
-                    while (_committer.isAlive()) {
+                    // wait for workers and committers to finish, renewing
+                    // leases and adjusting concurrency periodically
+                    long tickMillis = _queueLeaseMillis / 3;
+                    if (_controller != null
+                            && IngestController.ADJUST_INTERVAL_MILLIS < tickMillis) {
+                        tickMillis = IngestController.ADJUST_INTERVAL_MILLIS;
+                    }
+                    if (tickMillis < 1) tickMillis = 1;
+                    while (committersAlive()) {
                         try {
-                            Thread.sleep(1000);
-                        } catch (Exception e) {
+                            joinCommitters(tickMillis);
+                            if (committersAlive()) {
+                                renewQueueLeases();
+                                if (_controller != null) {
+                                    adjustConcurrency();
+                                }
+                            }
+                        } catch (InterruptedException e) {
                         }
                     }
 
@@ -202,7 +369,7 @@ public class Updater extends Thread {
                         logProcessingStats(itemsInQueue,
                                 System.currentTimeMillis() - processingStartTime);
                         _workers = null;
-                        _committer = null;
+                        _committers = null;
                     }
                 }
 
@@ -219,16 +386,203 @@ public class Updater extends Thread {
 
     }
 
+    /**
+     * Create a new worker, register it with the committer, and start it
+     * on the fetch executor.
+     *
+     * @return false if the worker could not be started because the
+     * committer has finished or the executor has been shut down.
+     */
+    private boolean startWorker() {
+        if (!committersWorkerStarted()) {
+            return false;
+        }
+        if (_controller != null) _controller.workerStarted();
+        Worker worker = new Worker(_workers.size() + 1,
+                _maxWorkers,
+                this,
+                _driver,
+                _disk,
+                _validator,
+                _validationStage,
+                _parseStage);
+        _workers.add(worker);
+        try {
+            _fetchExecutor.execute(worker);
+            return true;
+        } catch (RejectedExecutionException e) {
+            _LOG.warn("Fetch executor rejected worker; it "
+                    + "has probably been shut down");
+            synchronized (this) {
+                _processingAborted = true;
+            }
+            workerFinished(false);
+            return false;
+        }
+    }
+
+    /**
+     * Give the controller the latest totals for this round, then apply the
+     * new transaction size and start more workers if needed.  Excess
+     * workers retire themselves via shouldRetire.
+     */
+    private void adjustConcurrency() {
+
+        long totalFetchTime = 0;
+        int attemptedCount = 0;
+        for (Worker worker : _workers) {
+            totalFetchTime += worker.getTotalFetchTime();
+            attemptedCount += worker.getAttemptedCount();
+        }
+        long[] commitTotals = getCommitTotals();
+        _controller.adjust(totalFetchTime,
+                attemptedCount,
+                commitTotals[0],
+                (int) commitTotals[1],
+                (int) commitTotals[2],
+                (int) commitTotals[3],
+                _maxCommitQueueSize,
+                _committers.length);
+        for (Committer committer : _committers) {
+            committer.setMaxRecordsPerTransaction(_controller.getTransactionSize());
+        }
+
+        int toStart = _controller.getTargetWorkers()
+                - _controller.getRunningWorkers();
+        if (toStart > 0 && !processingShouldStop()) {
+            synchronized (_queueIterator) {
+                if (!_queueIterator.hasNext()) return;
+            }
+            for (int i = 0; i < toStart; i++) {
+                if (!startWorker()) return;
+            }
+        }
+    }
+
+    /**
+     * Extend the lease on all queue items claimed by this node so they
+     * aren't reclaimed by another node while still being processed.
+     */
+    private void renewQueueLeases() {
+        Connection conn = null;
+        try {
+            conn = RecordCache.getConnection();
+            _db.renewQueueLeases(conn, _nodeId,
+                    System.currentTimeMillis() + _queueLeaseMillis);
+        } catch (Throwable th) {
+            _LOG.warn("Failed to renew queue leases", th);
+        } finally {
+            RecordCache.releaseConnection(conn);
+        }
+    }
+
+    /**
+     * Give a date to any records that were left without one, so they are
+     * not left out of harvests forever.  Since all of this node's queued
+     * items have just been processed, any such records can only have come
+     * from a commit that failed without rolling back.
+     */
+    private void dateUncommittedRecords() {
+        Connection conn = null;
+        try {
+            conn = RecordCache.getConnection();
+            int count = dateUncommittedRecords(_db, conn);
+            if (count > 0) {
+                _LOG.warn("Set the date of " + count + " records left undated "
+                        + "by an earlier commit");
+            }
+        } catch (Throwable th) {
+            _LOG.warn("Failed to date records left undated by an earlier commit", th);
+        } finally {
+            RecordCache.releaseConnection(conn);
+        }
+    }
+
+    /**
+     * Give any records without a date the current date, in UTC like every
+     * other modDate, and return how many there were.
+     */
+    static int dateUncommittedRecords(RCDatabase db,
+                                      Connection conn) throws ServerException {
+        return db.setUncommittedRecordDates(conn, StreamUtil.nowUTC());
+    }
+
+    private boolean claimPollLease() throws Exception {
+        Connection conn = RecordCache.getConnection();
+        try {
+            long now = System.currentTimeMillis();
+            return _db.claimPollLease(conn, _nodeId, now, now + _queueLeaseMillis);
+        } finally {
+            RecordCache.releaseConnection(conn);
+        }
+    }
+
+    /**
+     * Extend the polling lease on a connection of its own before committing
+     * more of a poll.
+     */
+    private synchronized void renewPollLease() throws ServerException {
+        Connection conn = null;
+        try {
+            conn = RecordCache.getConnection();
+            renewPollLease(conn);
+        } catch (SQLException e) {
+            throw new ServerException("Failed to renew polling lease", e);
+        } finally {
+            RecordCache.releaseConnection(conn);
+        }
+    }
+
+    /**
+     * Extend the polling lease using the given connection.  If another node
+     * has taken the lease since this one claimed it, the poll must not
+     * continue, so an exception is thrown and the caller rolls back.
+     */
+    private void renewPollLease(Connection conn) throws ServerException {
+        long now = System.currentTimeMillis();
+        if (!_db.claimPollLease(conn, _nodeId, now, now + _queueLeaseMillis)) {
+            throw new ServerException("Polling lease was taken by another "
+                    + "node; stopping poll");
+        }
+    }
+
+    private void releasePollLease() {
+        Connection conn = null;
+        try {
+            conn = RecordCache.getConnection();
+            _db.releasePollLease(conn, _nodeId);
+        } catch (Throwable th) {
+            _LOG.warn("Failed to release polling lease", th);
+        } finally {
+            RecordCache.releaseConnection(conn);
+        }
+    }
+
+    /**
+     * Update the identify, format, and set information if the source has
+     * changed, then query and queue updated records.
+     * <p/>
+     * Failed records that are due for retry are queued along with the
+     * identify, format, and set information in one transaction.  Updated
+     * records are then queued for each format in chunked transactions of
+     * their own; see <code>queueUpdatedRecords</code>.
+     */
     private void pollAndUpdate() throws ServerException {
 
         Connection conn = null;
         boolean startedTransaction = false;
+        List<String> prefixesToQueue = null;
+        long latestDateToQueue = 0;
         try {
             conn = RecordCache.getConnection();
             conn.setAutoCommit(false);
             startedTransaction = true;
 
-            _db.queueFailedRecords(conn, _maxFailedRetries);
+            int retryCount = _db.queueFailedRecords(conn, _maxFailedRetries,
+                    System.currentTimeMillis());
+            if (retryCount > 0) {
+                _LOG.info("Queued " + retryCount + " failed records that are due for retry");
+            }
 
             if (_db.isPollingEnabled(conn)) {
                 long latestRemoteDate = _driver.getLatestDate().getTime();
@@ -244,8 +598,9 @@ public class Updater extends Thread {
                     checkImmediateShutdown();
                     updateSets(conn);
 
-                    checkImmediateShutdown();
-                    queueUpdatedRecords(conn, allPrefixes, latestRemoteDate);
+                    // records are queued after this transaction commits
+                    prefixesToQueue = allPrefixes;
+                    latestDateToQueue = latestRemoteDate;
                 } else {
                     _LOG.info("Skipping update process; source data of interest has not changed");
                 }
@@ -253,7 +608,11 @@ public class Updater extends Thread {
                 _LOG.info("Remote polling skipped -- polling is disabled");
             }
 
+            // in this transaction, since it may have changed rcAdmin
+            renewPollLease(conn);
             conn.commit();
+            // keys cached by readers during the transaction may be stale now
+            _db.invalidateSetAndFormatKeys();
         } catch (Throwable th) {
             if (startedTransaction) {
                 try {
@@ -261,6 +620,7 @@ public class Updater extends Thread {
                 } catch (SQLException e) {
                     _LOG.error("Failed to roll back failed transaction", e);
                 }
+                _db.invalidateSetAndFormatKeys();
             }
             throw new ServerException("Update cycle phase one aborted", th);
         } finally {
@@ -275,93 +635,17 @@ public class Updater extends Thread {
             }
         }
 
-    }
-
-    private void pruneIfNeeded() throws Exception {
-
-        Connection conn = null;
-        File resultFile = null;
-        PrintWriter resultWriter = null;
-        BufferedReader resultReader = null;
-
-        try {
-            conn = RecordCache.getConnection();
-
-            if (_db.getPrunableCount(conn) > 0) {
-
-                resultFile = File.createTempFile("proai-prunable", ".txt");
-                resultWriter = new PrintWriter(
-                        new OutputStreamWriter(
-                                new FileOutputStream(resultFile), "UTF-8"));
-
-                int numToPrune = _db.dumpPrunables(conn, resultWriter);
-                resultWriter.close();
-
-                _LOG.info("Pruning " + numToPrune + " old files from cache");
-                resultReader = new BufferedReader(
-                        new InputStreamReader(
-                                new FileInputStream(resultFile), "UTF-8"));
-
-                int i = 0;
-                int[] toPruneKeys = new int[32];
-
-                String line = resultReader.readLine();
-
-                while (line != null) {
-
-                    String[] parts = line.split(" ");
-                    if (parts.length == 2) {
-
-                        int pruneKey = Integer.parseInt(parts[0]);
-                        File file = _disk.getFile(parts[1]);
-
-                        if (file.exists()) {
-                            boolean deleted = file.delete();
-                            if (deleted) {
-                                _LOG.debug("Deleted old cache file: " + parts[1]);
-                            } else {
-                                _LOG.warn("Unable to delete old cache file (will try again later): " + parts[1]);
-                            }
-                        } else {
-                            _LOG.debug("No need to delete non-existing old cache file: " + parts[1]);
-                        }
-
-                        // delete from prune list if it no longer exists
-                        toPruneKeys[i++] = pruneKey;
-                        if (i == toPruneKeys.length) {
-                            _db.deletePrunables(conn, toPruneKeys, i);
-                            i = 0;
-                        }
-                    }
-
-                    line = resultReader.readLine();
-                }
-
-                // do final chunk if needed
-                if (i > 0) {
-                    _db.deletePrunables(conn, toPruneKeys, i);
-                }
-            } else {
-                _LOG.info("Pruning is not needed.");
-            }
-
-        } finally {
-            if (resultWriter != null) {
-                try {
-                    resultWriter.close();
-                } catch (Exception e) {
-                }
-                if (resultReader != null) {
-                    try {
-                        resultReader.close();
-                    } catch (Exception e) {
-                    }
+        if (prefixesToQueue != null) {
+            try {
+                checkImmediateShutdown();
+                if (_parallelFormatPolling) {
+                    queueUpdatedRecordsInParallel(prefixesToQueue, latestDateToQueue);
+                } else {
+                    queueUpdatedRecords(prefixesToQueue, latestDateToQueue);
                 }
+            } catch (Throwable th) {
+                throw new ServerException("Update cycle phase one aborted", th);
             }
-            if (resultFile != null) {
-                resultFile.delete();
-            }
-            RecordCache.releaseConnection(conn);
         }
 
     }
@@ -369,7 +653,7 @@ public class Updater extends Thread {
     private int countItemsInQueue() throws Exception {
         Connection conn = RecordCache.getConnection();
         try {
-            return _db.getQueueSize(conn);
+            return _db.getQueueSize(conn, _nodeId, System.currentTimeMillis());
         } finally {
             RecordCache.releaseConnection(conn);
         }
@@ -378,43 +662,15 @@ public class Updater extends Thread {
     /**
      * Get a new <code>QueueIterator</code> over the current queue.
      */
-    private QueueIterator newQueueIterator() throws Exception {
-
-        Connection conn = null;
-        File queueFile = null;
-        PrintWriter queueWriter = null;
-        try {
-
-            conn = RecordCache.getConnection();
-
-            queueFile = File.createTempFile("proai-queue", ".txt");
-            queueWriter = new PrintWriter(
-                    new OutputStreamWriter(
-                            new FileOutputStream(queueFile), "UTF-8"));
-            _db.dumpQueue(conn, queueWriter);
-            queueWriter.close();
-
-            return new QueueIterator(queueFile);
-
-        } finally {
-            if (queueWriter != null) {
-                try {
-                    queueWriter.close();
-                } catch (Exception e) {
-                }
-            }
-            if (queueFile != null) {
-                queueFile.delete();
-            }
-            RecordCache.releaseConnection(conn);
-        }
-
+    private QueueIterator newQueueIterator() {
+        return new QueueIterator(_db, QueueIterator.DEFAULT_PAGE_SIZE, _nodeId,
+                _queueLaneWeights);
     }
 
     /**
      * Log stats for a round of processing.
      * <p/>
-     * This assumes the array of workers and the committer have been
+     * This assumes the array of workers and the committers have been
      * initialized.
      */
     private void logProcessingStats(int initialQueueSize,
@@ -422,32 +678,54 @@ public class Updater extends Thread {
 
         StringBuffer stats = new StringBuffer();
 
-        int recordsProcessed = _committer.getProcessedCount();
+        long[] commitTotals = getCommitTotals();
+        int recordsProcessed = (int) commitTotals[2];
 
         stats.append("    Records processed        : " + recordsProcessed + " of " + initialQueueSize + " on queue\n");
         stats.append("    Total processing time    : " + getHMSString(totalDuration) + "\n");
 
         double processingRate = (double) recordsProcessed / ((double) totalDuration / 1000.0);
         stats.append("    Processing rate          : " + round(processingRate) + " records/second\n");
-        stats.append("    Workers spawned          : " + _workers.length + " of " + _maxWorkers + " maximum\n");
+        stats.append("    Workers spawned          : " + _workers.size() + " of " + _maxWorkers + " maximum\n");
 
         int failedCount = 0;
         int attemptedCount = 0;
         long totalFetchTime = 0;
-        for (int i = 0; i < _workers.length; i++) {
-            failedCount += _workers[i].getFailedCount();
-            attemptedCount += _workers[i].getAttemptedCount();
-            totalFetchTime += _workers[i].getTotalFetchTime();
+        for (Worker worker : _workers) {
+            failedCount += worker.getFailedCount();
+            attemptedCount += worker.getAttemptedCount();
+            totalFetchTime += worker.getTotalFetchTime();
         }
         stats.append("    Failed record loads      : " + failedCount + " of " + attemptedCount + " attempted\n");
-        long msPerAttempt = totalFetchTime / attemptedCount;
-        stats.append("    Avg roundtrip fetch time : " + getHMSString(msPerAttempt) + "\n");
+        if (attemptedCount > 0) {
+            long msPerAttempt = totalFetchTime / attemptedCount;
+            stats.append("    Avg roundtrip fetch time : " + getHMSString(msPerAttempt) + "\n");
+        }
 
-        int transactionCount = _committer.getTransactionCount();
+        // per-stage throughput for this round
+        long roundDuration = System.currentTimeMillis() - _roundStartTime;
+        long[] stageTotals = getStageTotals();
+        stats.append("    Fetch stage              : " + getStageStats(attemptedCount,
+                totalFetchTime, roundDuration, _workers.size()) + "\n");
+        if (_validator != null) {
+            stats.append("    Validation stage         : " + getStageStats(
+                    (int) (stageTotals[0] - _roundStageTotals[0]),
+                    stageTotals[1] - _roundStageTotals[1],
+                    roundDuration,
+                    _validationStage.getThreads()) + "\n");
+        }
+        stats.append("    Parse stage              : " + getStageStats(
+                (int) (stageTotals[2] - _roundStageTotals[2]),
+                stageTotals[3] - _roundStageTotals[3],
+                roundDuration,
+                _parseStage.getThreads()) + "\n");
+
+        int transactionCount = (int) commitTotals[1];
+        stats.append("    Committers               : " + _committers.length + "\n");
         stats.append("    Total DB transactions    : " + transactionCount + "\n");
 
-        stats.append("    Total transaction time   : " + getHMSString(_committer.getTotalCommitTime()) + "\n");
-        long msPerTrans = Math.round((double) _committer.getTotalCommitTime() / (double) transactionCount);
+        stats.append("    Total transaction time   : " + getHMSString(commitTotals[0]) + "\n");
+        long msPerTrans = Math.round((double) commitTotals[0] / (double) transactionCount);
         stats.append("    Avg time/transaction     : " + getHMSString(msPerTrans) + "\n");
 
         double recsPerTrans = (double) recordsProcessed / (double) transactionCount;
@@ -458,6 +736,100 @@ public class Updater extends Thread {
 
     }
 
+    /**
+     * Get the running totals of this round's committers, as
+     * { commit time, transactions, records processed, queued records }.
+     */
+    private long[] getCommitTotals() {
+        long[] totals = new long[4];
+        for (Committer committer : _committers) {
+            totals[0] += committer.getTotalCommitTime();
+            totals[1] += committer.getTransactionCount();
+            totals[2] += committer.getProcessedCount();
+            totals[3] += committer.getQueueSize();
+        }
+        return totals;
+    }
+
+    private boolean committersAlive() {
+        for (Committer committer : _committers) {
+            if (committer.isAlive()) return true;
+        }
+        return false;
+    }
+
+    /**
+     * Wait up to the given time for all committers to finish.
+     */
+    private void joinCommitters(long millis) throws InterruptedException {
+        long deadline = System.currentTimeMillis() + millis;
+        for (Committer committer : _committers) {
+            long remaining = deadline - System.currentTimeMillis();
+            if (remaining <= 0) return;
+            committer.join(remaining);
+        }
+    }
+
+    /**
+     * Register a new worker with every committer.
+     *
+     * @return false if any committer has already finished, in which case
+     * the worker is not registered with any of them.
+     */
+    private boolean committersWorkerStarted() {
+        for (int i = 0; i < _committers.length; i++) {
+            if (!_committers[i].workerStarted()) {
+                for (int j = 0; j < i; j++) {
+                    _committers[j].workerFinished();
+                }
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Get the committer responsible for the given item.  Items are
+     * partitioned by identifier, so all of an item's records are committed
+     * by the same committer, and no two committers touch the same rows.
+     */
+    private Committer getCommitter(QueueItem item) {
+        int hash = item.getIdentifier().hashCode() & 0x7fffffff;
+        return _committers[hash % _committers.length];
+    }
+
+    /**
+     * Get the running totals of the validation and parse stages, as
+     * { validated, validation time, parsed, parse time }.
+     */
+    private long[] getStageTotals() {
+        long[] totals = new long[4];
+        if (_validationStage != null) {
+            totals[0] = _validationStage.getCompletedCount();
+            totals[1] = _validationStage.getTotalBusyTime();
+        }
+        totals[2] = _parseStage.getCompletedCount();
+        totals[3] = _parseStage.getTotalBusyTime();
+        return totals;
+    }
+
+    private static String getStageStats(int count,
+                                        long busyTime,
+                                        long duration,
+                                        int threads) {
+        StringBuffer out = new StringBuffer();
+        out.append(count + " records");
+        if (count > 0) {
+            out.append(", avg " + getHMSString(busyTime / count));
+        }
+        if (duration > 0) {
+            double rate = (double) count / ((double) duration / 1000.0);
+            out.append(", " + round(rate) + " records/second");
+        }
+        out.append(" (" + threads + " threads)");
+        return out.toString();
+    }
+
     private void updateIdentify(Connection conn) throws Exception {
 
         _LOG.info("Getting 'Identify' xml from remote source...");
@@ -587,8 +959,10 @@ public class Updater extends Thread {
         }
     }
 
-    private void queueUpdatedRecords(Connection conn,
-                                     List<String> allPrefixes,
+    /**
+     * Query and queue updated records for all formats, one after another.
+     */
+    private void queueUpdatedRecords(List<String> allPrefixes,
                                      long latestRemoteDate) throws Exception {
 
         _LOG.info("Querying and queueing updated records...");
@@ -596,59 +970,269 @@ public class Updater extends Thread {
         long queueStartTime = System.currentTimeMillis();
         int totalQueuedCount = 0;
         for (String mdPrefix : allPrefixes) {
+            totalQueuedCount += queueUpdatedRecordsInTransaction(mdPrefix,
+                    latestRemoteDate);
+        }
 
-            long lastPollDate = _db.getLastPollDate(conn, mdPrefix);
+        long sec = (System.currentTimeMillis() - queueStartTime) / 1000;
+        _LOG.info("Queued " + totalQueuedCount
+                + " total new/modified records in " + sec + "sec.");
+    }
 
-            // if something may have changed remotely *after* the last
-            // known date that any records of this format were queried for,
-            // query for updated records
-            if (lastPollDate < latestRemoteDate) {
+    /**
+     * Query and queue updated records for all formats concurrently.
+     * <p/>
+     * Each format is queued on its own connection, so a failure in one
+     * format doesn't affect the others.  If any format fails, an exception
+     * is thrown after all the others have finished.
+     */
+    private void queueUpdatedRecordsInParallel(List<String> allPrefixes,
+                                               final long latestRemoteDate) throws Exception {
 
-                _LOG.info("Querying for changed " + mdPrefix + " records because "
-                        + lastPollDate + " is less than " + latestRemoteDate);
+        _LOG.info("Querying and queueing updated records for "
+                + allPrefixes.size() + " formats in parallel...");
 
-                checkImmediateShutdown();
-                RemoteIterator<? extends Record> riter = _driver.listRecords(new Date(lastPollDate),
-                        new Date(latestRemoteDate),
-                        mdPrefix);
-                try {
+        long queueStartTime = System.currentTimeMillis();
+        int totalQueuedCount = 0;
+        int failedCount = 0;
+        if (allPrefixes.size() > 0) {
+            ExecutorService pollExecutor = ThreadUtil.newFixedThreadPool("Poller",
+                    allPrefixes.size());
+            try {
+                Map<String, Future<Integer>> results = new LinkedHashMap<String, Future<Integer>>();
+                for (final String mdPrefix : allPrefixes) {
+                    results.put(mdPrefix, pollExecutor.submit(new Callable<Integer>() {
+                        public Integer call() throws Exception {
+                            return new Integer(queueUpdatedRecordsInTransaction(
+                                    mdPrefix, latestRemoteDate));
+                        }
+                    }));
+                }
+                for (String mdPrefix : results.keySet()) {
+                    try {
+                        totalQueuedCount += results.get(mdPrefix).get().intValue();
+                    } catch (ExecutionException e) {
+                        _LOG.error("Failed to queue updated " + mdPrefix
+                                + " records", e.getCause());
+                        failedCount++;
+                    }
+                }
+            } finally {
+                pollExecutor.shutdownNow();
+            }
+        }
 
-                    int queuedCount = 0;
+        long sec = (System.currentTimeMillis() - queueStartTime) / 1000;
+        _LOG.info("Queued " + totalQueuedCount
+                + " total new/modified records in " + sec + "sec.");
 
-                    while (riter.hasNext()) {
+        checkImmediateShutdown();
+        if (failedCount > 0) {
+            throw new ServerException("Failed to queue updated records for "
+                    + failedCount + " of " + allPrefixes.size() + " formats");
+        }
+    }
 
-                        Record record = riter.next();
-                        checkImmediateShutdown();
-                        _db.queueRemoteRecord(conn,
-                                record.getItemID(),
-                                record.getPrefix(),
-                                record.getSourceInfo());
-                        queuedCount++;
-                    }
+    /**
+     * Query and queue updated records for one format on a connection of
+     * its own.
+     * <p/>
+     * If a transaction fails because it conflicted with another format's
+     * transaction, queueing is resumed from the last committed checkpoint.
+     * This is retried a limited number of times in a row without any
+     * chunks being committed.
+     */
+    private int queueUpdatedRecordsInTransaction(String mdPrefix,
+                                                 long latestRemoteDate) throws Exception {
+        // records committed in chunks so far, over all attempts
+        int[] committedCount = new int[1];
+        int attempt = 1;
+        while (true) {
+            int previouslyCommitted = committedCount[0];
+            try {
+                return previouslyCommitted + queueUpdatedRecordsInTransactionOnce(
+                        mdPrefix, latestRemoteDate, committedCount);
+            } catch (Exception e) {
+                if (committedCount[0] > previouslyCommitted) {
+                    attempt = 1;
+                }
+                if (attempt < MAX_CONFLICT_RETRIES && DBUtil.isTransientConflict(e)) {
+                    _LOG.info("Transaction for " + mdPrefix + " records "
+                            + "conflicted with another; retrying");
+                    Thread.sleep(_RANDOM.nextInt(CONFLICT_BACKOFF_MILLIS * attempt) + 1);
+                    attempt++;
+                } else {
+                    throw e;
+                }
+            }
+        }
+    }
 
-                    _LOG.info("Queued " + queuedCount + " new/modified "
-                            + mdPrefix + " records.");
+    private int queueUpdatedRecordsInTransactionOnce(String mdPrefix,
+                                                     long latestRemoteDate,
+                                                     int[] committedCount) throws Exception {
 
-                    _db.setLastPollDate(conn, mdPrefix, latestRemoteDate);
+        Connection conn = null;
+        boolean startedTransaction = false;
+        try {
+            conn = RecordCache.getConnection();
+            conn.setAutoCommit(false);
+            startedTransaction = true;
+
+            int queuedCount = queueUpdatedRecords(conn, mdPrefix,
+                    latestRemoteDate, committedCount);
 
-                    totalQueuedCount += queuedCount;
+            renewPollLease();
+            conn.commit();
+            return queuedCount;
+        } catch (Exception e) {
+            if (startedTransaction) {
+                try {
+                    conn.rollback();
+                } catch (SQLException se) {
+                    _LOG.error("Failed to roll back failed transaction", se);
+                }
+            }
+            throw e;
+        } finally {
+            if (conn != null) {
+                try {
+                    if (startedTransaction) conn.setAutoCommit(true);
+                } catch (SQLException e) {
+                    _LOG.error("Failed to set autoCommit to true", e);
                 } finally {
-                    try {
-                        riter.close();
-                    } catch (Exception e) {
-                        _LOG.warn("Unable to close remote record iterator", e);
-                    }
+                    RecordCache.releaseConnection(conn);
                 }
+            }
+        }
+    }
+
+    /**
+     * Query and queue updated records for one format, and set its
+     * lastPollDate, using the given connection.
+     * <p/>
+     * Queued records are committed every <code>pollChunkSize</code>
+     * records, along with a checkpoint saying how far the listing got.
+     * The polling lease is renewed before each commit.
+     * If an earlier poll for the format was interrupted, it is finished
+     * first, from its checkpoint if the driver supports resuming, and a
+     * new poll then picks up from where it ended.
+     *
+     * @param committedCount incremented by the number of records in each
+     *                       chunk as it is committed.
+     * @return the number of records queued, including those in chunks
+     *         that were committed along the way.
+     */
+    private int queueUpdatedRecords(Connection conn,
+                                    String mdPrefix,
+                                    long latestRemoteDate,
+                                    int[] committedCount) throws Exception {
+
+        long lastPollDate = _db.getLastPollDate(conn, mdPrefix);
+        long untilDate = latestRemoteDate;
+        String resumeAfter = null;
+        String[] checkpoint = _db.getPollCheckpoint(conn, mdPrefix);
+        if (checkpoint != null) {
+            untilDate = Long.parseLong(checkpoint[0]);
+            resumeAfter = checkpoint[1];
+            if (resumeAfter != null && _driver instanceof ResumableOAIDriver) {
+                _LOG.info("Resuming interrupted poll for " + mdPrefix
+                        + " records after " + resumeAfter);
             } else {
-                _LOG.info("Skipping " + mdPrefix + " records because "
-                        + lastPollDate + " is not less than "
-                        + latestRemoteDate);
+                _LOG.info("Restarting interrupted poll for " + mdPrefix
+                        + " records");
             }
         }
 
-        long sec = (System.currentTimeMillis() - queueStartTime) / 1000;
-        _LOG.info("Queued " + totalQueuedCount
-                + " total new/modified records in " + sec + "sec.");
+        // if something may have changed remotely *after* the last
+        // known date that any records of this format were queried for,
+        // query for updated records
+        if (lastPollDate >= untilDate) {
+            _LOG.info("Skipping " + mdPrefix + " records because "
+                    + lastPollDate + " is not less than "
+                    + untilDate);
+            return 0;
+        }
+
+        int queuedCount = 0;
+        while (lastPollDate < untilDate) {
+            queuedCount += queueUpdatedRecords(conn, mdPrefix, lastPollDate,
+                    untilDate, resumeAfter, committedCount);
+            // finished an interrupted poll; now catch up to the present
+            lastPollDate = untilDate;
+            untilDate = latestRemoteDate;
+            resumeAfter = null;
+        }
+
+        _LOG.info("Queued " + queuedCount + " new/modified "
+                + mdPrefix + " records.");
+        return queuedCount;
+    }
+
+    private int queueUpdatedRecords(Connection conn,
+                                    String mdPrefix,
+                                    long lastPollDate,
+                                    long untilDate,
+                                    String resumeAfter,
+                                    int[] committedCount) throws Exception {
+
+        _LOG.info("Querying for changed " + mdPrefix + " records because "
+                + lastPollDate + " is less than " + untilDate);
+
+        checkImmediateShutdown();
+        RemoteIterator<? extends Record> riter;
+        ResumableRemoteIterator<? extends Record> resumable = null;
+        if (_driver instanceof ResumableOAIDriver) {
+            resumable = ((ResumableOAIDriver) _driver).listRecords(
+                    new Date(lastPollDate),
+                    new Date(untilDate),
+                    mdPrefix,
+                    resumeAfter);
+            riter = resumable;
+        } else {
+            riter = _driver.listRecords(new Date(lastPollDate),
+                    new Date(untilDate),
+                    mdPrefix);
+        }
+        RCQueueWriter writer = null;
+        try {
+
+            writer = _db.getQueueWriter(conn, 'R', QueueItem.PRIORITY_BULK);
+            int chunkCount = 0;
+            while (riter.hasNext()) {
+
+                Record record = riter.next();
+                checkImmediateShutdown();
+                writer.add(record.getItemID(),
+                        record.getPrefix(),
+                        record.getSourceInfo());
+                chunkCount++;
+                if (chunkCount == _pollChunkSize) {
+                    writer.flush();
+                    String point = null;
+                    if (resumable != null) point = resumable.getResumptionPoint();
+                    _db.setPollCheckpoint(conn, mdPrefix, untilDate, point);
+                    renewPollLease();
+                    conn.commit();
+                    committedCount[0] += chunkCount;
+                    _LOG.debug("Committed " + writer.getCount() + " queued "
+                            + mdPrefix + " records so far");
+                    chunkCount = 0;
+                }
+            }
+            writer.close();
+
+            _db.setLastPollDate(conn, mdPrefix, untilDate);
+
+            return writer.getCount();
+        } finally {
+            if (writer != null) writer.discard();
+            try {
+                riter.close();
+            } catch (Exception e) {
+                _LOG.warn("Unable to close remote record iterator", e);
+            }
+        }
     }
 
     /**
@@ -705,6 +1289,9 @@ public class Updater extends Thread {
 
             _shutdownRequested = true;
             _immediateShutdownRequested = immediate;
+            synchronized (_wakeLock) {
+                _wakeLock.notifyAll();
+            }
 
             while (this.isAlive()) {
                 _LOG.info("Waiting for updater to finish.  Current status: " + _status);
@@ -719,7 +1306,7 @@ public class Updater extends Thread {
     }
 
     /**
-     * Handle an exception encountered by currently-running Committer while
+     * Handle an exception encountered by a currently-running Committer while
      * committing.
      */
     protected void handleCommitException(Throwable th) {
@@ -727,6 +1314,31 @@ public class Updater extends Thread {
         _processingAborted = true;
     }
 
+    /**
+     * Hand off a batch of processed items to the currently-running
+     * Committers, each getting the items in its partition.  This blocks
+     * while a commit queue is full.
+     */
+    protected void handoff(List<QueueItem> finishedItems) {
+        if (_committers.length == 1) {
+            _committers[0].handoff(finishedItems);
+            return;
+        }
+        Map<Committer, List<QueueItem>> partitions = new HashMap<Committer, List<QueueItem>>();
+        for (QueueItem item : finishedItems) {
+            Committer committer = getCommitter(item);
+            List<QueueItem> partition = partitions.get(committer);
+            if (partition == null) {
+                partition = new ArrayList<QueueItem>();
+                partitions.put(committer, partition);
+            }
+            partition.add(item);
+        }
+        for (Map.Entry<Committer, List<QueueItem>> entry : partitions.entrySet()) {
+            entry.getKey().handoff(entry.getValue());
+        }
+    }
+
     // return null if no more batches or processing should stop
     protected List<QueueItem> getNextBatch(List<QueueItem> finishedItems) {
 
@@ -735,16 +1347,27 @@ public class Updater extends Thread {
         if (!processingShouldStop()) {
 
             if (finishedItems != null) {
-                _committer.handoff(finishedItems);
+                handoff(finishedItems);
             }
 
             try {
                 synchronized (_queueIterator) {
-                    if (_queueIterator.hasNext()) {
-                        nextBatch = new ArrayList<QueueItem>();
+                    // claim the next available items, skipping any that
+                    // were claimed by another node since they were read
+                    while (nextBatch == null && _queueIterator.hasNext()) {
+                        List<QueueItem> candidates = new ArrayList<QueueItem>();
                         while (_queueIterator.hasNext() &&
-                                nextBatch.size() < _maxWorkBatchSize) {
-                            nextBatch.add(_queueIterator.next());
+                                candidates.size() < _maxWorkBatchSize) {
+                            QueueItem candidate = _queueIterator.next();
+                            // already folded into an earlier item
+                            if (!_absorbedKeys.remove(new Integer(candidate.getQueueKey()))) {
+                                candidates.add(candidate);
+                            }
+                        }
+                        if (candidates.size() == 0) continue;
+                        List<QueueItem> claimed = claimQueueItems(candidates);
+                        if (claimed.size() > 0) {
+                            nextBatch = claimed;
                         }
                     }
                 }
@@ -761,18 +1384,73 @@ public class Updater extends Thread {
         return nextBatch;
     }
 
+    private List<QueueItem> claimQueueItems(List<QueueItem> candidates)
+            throws Exception {
+        Connection conn = RecordCache.getConnection();
+        try {
+            long now = System.currentTimeMillis();
+            long leaseExpires = now + _queueLeaseMillis;
+            List<QueueItem> claimed = _db.claimQueueItems(conn, candidates,
+                    _nodeId, now, leaseExpires);
+            // fetch each record once, even if it was queued more than once
+            List<QueueItem> collapsed = _db.collapseDuplicates(conn, claimed,
+                    _nodeId, now, leaseExpires);
+            int absorbed = 0;
+            for (QueueItem item : collapsed) {
+                for (Integer key : item.getSupersededKeys()) {
+                    _absorbedKeys.add(key);
+                    absorbed++;
+                }
+            }
+            if (absorbed > 0) {
+                _LOG.debug("Collapsed " + absorbed + " duplicate queue "
+                        + "entries into " + collapsed.size() + " items");
+            }
+            return collapsed;
+        } finally {
+            RecordCache.releaseConnection(conn);
+        }
+    }
+
+    /**
+     * Called by a <code>Committer</code> once the given items, and the queue
+     * rows folded into them, have been removed from the queue.  The folded
+     * rows no longer need to be skipped, since they can't be claimed again,
+     * so they are forgotten.  Otherwise the keys of rows the iterator had
+     * already passed would be kept until the end of the round.
+     */
+    protected void itemsCommitted(List<QueueItem> items) {
+        synchronized (_queueIterator) {
+            for (QueueItem item : items) {
+                _absorbedKeys.removeAll(item.getSupersededKeys());
+            }
+        }
+    }
+
     protected synchronized boolean processingShouldStop() {
         return _processingAborted || _immediateShutdownRequested;
     }
 
-    protected boolean anyWorkersAreRunning() {
-        if (_workers == null) {
-            return false;
-        } else {
-            for (int i = 0; i < _workers.length; i++) {
-                if (_workers[i].isAlive()) return true;
-            }
-            return false;
+    /**
+     * Whether the calling worker should stop taking batches to reduce
+     * concurrency.  A worker told to retire must say so when it calls
+     * <code>workerFinished</code>.
+     */
+    protected boolean shouldRetire() {
+        return _controller != null && _controller.shouldRetire();
+    }
+
+    /**
+     * Called by each <code>Worker</code> when it will not request or hand
+     * off any more batches.
+     *
+     * @param retired whether the worker stopped because it was told to
+     *                retire, rather than because there was no more work.
+     */
+    protected void workerFinished(boolean retired) {
+        if (_controller != null) _controller.workerFinished(retired);
+        for (Committer committer : _committers) {
+            committer.workerFinished();
         }
     }
 }
@@ -2,72 +2,172 @@ package proai.cache;
 
 import net.sf.bvalid.Validator;
 import org.apache.log4j.Logger;
+import proai.driver.BatchOAIDriver;
+import proai.driver.BatchRecordHandler;
 import proai.driver.OAIDriver;
+import proai.error.RepositoryException;
+import proai.error.ServerException;
 import proai.util.StreamUtil;
 
 import java.io.*;
+import java.util.ArrayList;
 import java.util.Iterator;
 import java.util.List;
-
-public class Worker extends Thread {
+import java.util.Vector;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Retrieves batches of records from the driver and hands them off to the
+ * <code>Committer</code>.
+ * <p/>
+ * Workers are run on the fetch executor owned by <code>RecordCache</code>,
+ * which may use either pooled platform threads or one virtual thread
+ * per worker.
+ * <p/>
+ * If the driver is a <code>BatchOAIDriver</code>, each batch is fetched
+ * with a single call to the driver, falling back to one call per record
+ * for any records the driver doesn't report on.
+ * <p/>
+ * Only the fetch happens on the worker's own thread.  Each fetched record
+ * is then passed to the validation stage (if validation is enabled) and
+ * the parse stage, which run on their own bounded pools.  This lets the
+ * worker start fetching the next record while earlier ones are still
+ * being validated and parsed.  When every record in a batch has been
+ * through all stages, the batch is handed off to the committer.
+ * <p/>
+ * Header values are normally captured while the record is written to disk,
+ * in which case there is nothing left to parse and the parse stage is
+ * skipped.  It is only used for records whose headers couldn't be
+ * captured.
+ */
+public class Worker implements Runnable {
 
     private static Logger _LOG = Logger.getLogger(Worker.class.getName());
 
+    private static final byte[] _VALIDATION_HEADER = getUTF8Bytes(
+            "<?xml version=\"1.0\" encoding=\"UTF-8\"?>\n"
+            + "<OAI-PMH xmlns=\"http://www.openarchives.org/OAI/2.0/\">\n"
+            + "<responseDate>2002-02-08T08:55:46Z</responseDate>\n"
+            + "<request verb=\"GetRecord\" identifier=\"oai:arXiv.org:cs/0112017\" "
+            + "metadataPrefix=\"oai_dc\">http://arXiv.org/oai2</request>\n"
+            + "<GetRecord>\n");
+
+    private static final byte[] _VALIDATION_FOOTER = getUTF8Bytes(
+            "\n</GetRecord>\n"
+            + "</OAI-PMH>");
+
+    private String _name;
     private Updater _updater;
     private OAIDriver _driver;
     private RCDisk _disk;
     private Validator _validator;
+    private Stage _validationStage;
+    private Stage _parseStage;
 
-    private int _attemptedCount;
-    private int _failedCount;
-    private long _totalFetchTime;
-    private long _totalValidationTime;
+    // written only by this worker, but read by the Updater while running
+    private volatile int _attemptedCount;
+    private volatile long _totalFetchTime;
+
+    // written by stage threads as well as this worker
+    private AtomicInteger _failedCount = new AtomicInteger();
+    private AtomicLong _totalValidationTime = new AtomicLong();
+
+    // batches fetched but not yet through all stages; guarded by this
+    private int _outstandingBatches;
 
     public Worker(int num,
                   int of,
                   Updater updater,
                   OAIDriver driver,
                   RCDisk disk,
-                  Validator validator) {
-        super("Worker-" + num + "of" + of);
+                  Validator validator,
+                  Stage validationStage,
+                  Stage parseStage) {
+        _name = "Worker-" + num + "of" + of;
         _updater = updater;
         _driver = driver;
         _disk = disk;
         _validator = validator;
+        _validationStage = validationStage;
+        _parseStage = parseStage;
     }
 
     public void run() {
 
-        _LOG.info("Worker started");
+        Thread thread = Thread.currentThread();
+        String threadName = thread.getName();
+        thread.setName(_name);
 
-        List<QueueItem> queueItems = _updater.getNextBatch(null);
+        _LOG.info("Worker started");
 
-        while (queueItems != null && !_updater.processingShouldStop()) {
+        boolean retired = false;
+        try {
+            List<QueueItem> queueItems = _updater.getNextBatch(null);
+
+            while (queueItems != null && !_updater.processingShouldStop()) {
+
+                Batch batch = new Batch(queueItems);
+                if (_driver instanceof BatchOAIDriver && queueItems.size() > 1) {
+                    attemptAll(queueItems, batch);
+                } else {
+                    attemptEach(queueItems, batch);
+                }
+
+                if (_updater.processingShouldStop()) {
+                    _LOG.debug("About to finish prematurely because processing should stop");
+                } else if (_updater.shouldRetire()) {
+                    _LOG.debug("Retiring worker to reduce concurrency");
+                    retired = true;
+                    queueItems = null;
+                } else {
+                    queueItems = _updater.getNextBatch(null);
+                }
+            }
+        } finally {
+            // wait for earlier batches to make it through the stages
+            waitForOutstandingBatches();
+            // let the committer know it can stop waiting on this worker
+            _updater.workerFinished(retired);
+            _LOG.info("Worker finished");
+            thread.setName(threadName);
+        }
+    }
 
-            Iterator<QueueItem> iter = queueItems.iterator();
-            while (iter.hasNext() && !_updater.processingShouldStop()) {
+    private synchronized void batchStarted() {
+        _outstandingBatches++;
+    }
 
-                attempt(iter.next());
-            }
+    private synchronized void batchFinished() {
+        _outstandingBatches--;
+        notifyAll();
+    }
 
-            if (!_updater.processingShouldStop()) {
-                queueItems = _updater.getNextBatch(queueItems);
-            } else {
-                _LOG.debug("About to finish prematurely because processing should stop");
+    private synchronized void waitForOutstandingBatches() {
+        while (_outstandingBatches > 0) {
+            try {
+                wait();
+            } catch (InterruptedException e) {
             }
         }
-
-        _LOG.info("Worker finished");
     }
 
-    private void attempt(QueueItem qi) {
+    /**
+     * Fetch the record on the current thread, then pass it on to the
+     * next stage.
+     */
+    private void attempt(final QueueItem qi, final Batch batch) {
 
-        RCDiskWriter diskWriter = null;
+        final RCDiskWriter diskWriter;
         long retrievalDelay = 0;
-        long validationDelay = 0;
         try {
-
             diskWriter = _disk.getNewWriter();
+        } catch (Throwable th) {
+            fail(qi, null, th, batch);
+            _attemptedCount++;
+            return;
+        }
+        try {
 
             long startFetchTime = System.currentTimeMillis();
             _driver.writeRecordXML(qi.getIdentifier(),
@@ -77,64 +177,298 @@ public class Worker extends Thread {
             diskWriter.flush();
             diskWriter.close();
 
-            long endFetchTime = System.currentTimeMillis();
+            retrievalDelay = System.currentTimeMillis() - startFetchTime;
+
+            fetched(qi, diskWriter, batch);
+
+        } catch (Throwable th) {
+            fail(qi, diskWriter, th, batch);
+        } finally {
+            _attemptedCount++;
+            _totalFetchTime += retrievalDelay;
+        }
+    }
+
+    /**
+     * Fetch the records one at a time.
+     */
+    private void attemptEach(List<QueueItem> queueItems, Batch batch) {
+        Iterator<QueueItem> iter = queueItems.iterator();
+        while (iter.hasNext()) {
+            QueueItem qi = iter.next();
+            if (_updater.processingShouldStop()) {
+                batch.itemDone();
+            } else {
+                attempt(qi, batch);
+            }
+        }
+    }
+
+    /**
+     * Fetch all the records with one call to the driver, then fetch any
+     * that the driver didn't report on one at a time.
+     */
+    private void attemptAll(List<QueueItem> queueItems, Batch batch) {
 
-            retrievalDelay = endFetchTime - startFetchTime;
+        BatchHandler handler = new BatchHandler(queueItems, batch);
+        long startFetchTime = System.currentTimeMillis();
+        try {
+            ((BatchOAIDriver) _driver).writeRecordsXML(queueItems, handler);
+        } catch (Throwable th) {
+            _LOG.warn("Batch retrieval failed; will retrieve remaining "
+                    + "records individually", th);
+        }
+        _totalFetchTime += System.currentTimeMillis() - startFetchTime;
+        _attemptedCount += handler.getReportedCount();
+
+        List<QueueItem> remaining = handler.getUnreportedItems();
+        if (remaining.size() > 0) {
+            _LOG.debug(remaining.size() + " of " + queueItems.size()
+                    + " records not reported by batch retrieval");
+            attemptEach(remaining, batch);
+        }
+    }
 
-            if (_validator != null) {
+    /**
+     * Pass a successfully fetched record on to the next stage.
+     */
+    private void fetched(final QueueItem qi,
+                         final RCDiskWriter diskWriter,
+                         final Batch batch) throws InterruptedException {
+        if (_validator != null) {
+            _validationStage.submit(new Runnable() {
+                public void run() {
+                    validate(qi, diskWriter, batch);
+                }
+            });
+        } else {
+            submitParse(qi, diskWriter, batch);
+        }
+    }
 
-                _validator.validate(getRecordStreamForValidation(diskWriter.getFile()),
-                        RecordCache.OAI_RECORD_SCHEMA_URL);
-                validationDelay = System.currentTimeMillis() - endFetchTime;
+    /**
+     * Validate the fetched record, then pass it on to the parse stage.
+     * This runs on the validation stage.
+     */
+    private void validate(QueueItem qi, RCDiskWriter diskWriter, Batch batch) {
+        try {
+            long startValidationTime = System.currentTimeMillis();
+            InputStream in = getRecordStreamForValidation(diskWriter.getFile());
+            try {
+                _validator.validate(in, RecordCache.OAI_RECORD_SCHEMA_URL);
+            } finally {
+                in.close();
             }
+            _totalValidationTime.addAndGet(System.currentTimeMillis() - startValidationTime);
+            submitParse(qi, diskWriter, batch);
+        } catch (Throwable th) {
+            fail(qi, diskWriter, th, batch);
+        }
+    }
 
-            qi.setParsedRecord(new ParsedRecord(qi.getIdentifier(),
-                    qi.getMDPrefix(),
-                    diskWriter.getPath(),
-                    diskWriter.getFile()));
+    private void submitParse(final QueueItem qi,
+                             final RCDiskWriter diskWriter,
+                             final Batch batch) throws InterruptedException {
+        if (_validator != null && diskWriter.hasCapturedHeader()) {
+            parse(qi, diskWriter, batch);
+            return;
+        }
+        _parseStage.submit(new Runnable() {
+            public void run() {
+                parse(qi, diskWriter, batch);
+            }
+        });
+    }
+
+    /**
+     * Get the header values of the fetched record.  This is the last step
+     * for a successfully-processed record, and runs on the parse stage
+     * unless the record was validated and its header was captured during
+     * the fetch.  Without validation, the record is always parsed, so
+     * that malformed records are still rejected.
+     */
+    private void parse(QueueItem qi, RCDiskWriter diskWriter, Batch batch) {
+        try {
+            qi.setParsedRecord(diskWriter.getParsedRecord(qi.getIdentifier(),
+                    qi.getMDPrefix(), _validator != null));
 
             qi.setSucceeded(true);
 
             _LOG.info("Successfully processed record");
 
+            batch.itemDone();
         } catch (Throwable th) {
+            fail(qi, diskWriter, th, batch);
+        }
+    }
+
+    private void fail(QueueItem qi,
+                      RCDiskWriter diskWriter,
+                      Throwable th,
+                      Batch batch) {
+
+        _LOG.warn("Failed to process record", th);
+
+        if (diskWriter != null) {
+            diskWriter.close();
+            diskWriter.getFile().delete();
+        }
 
-            _LOG.warn("Failed to process record", th);
+        StringWriter failReason = new StringWriter();
+        th.printStackTrace(new PrintWriter(failReason, true));
+        qi.setFailReason(failReason.toString());
+        qi.setFailDate(StreamUtil.nowUTCString());
+        _failedCount.incrementAndGet();
 
-            if (diskWriter != null) {
+        batch.itemDone();
+    }
+
+    /**
+     * Receives records from a batch retrieval, sending each on to the next
+     * stage as soon as it has been written.
+     */
+    private class BatchHandler implements BatchRecordHandler {
+
+        private List<QueueItem> _items;
+        private Batch _batch;
+        private RCDiskWriter[] _writers;
+        private boolean[] _reported;
+        private int _reportedCount;
+
+        public BatchHandler(List<QueueItem> items, Batch batch) {
+            _items = items;
+            _batch = batch;
+            _writers = new RCDiskWriter[items.size()];
+            _reported = new boolean[items.size()];
+        }
+
+        public PrintWriter startRecord(int index) throws RepositoryException {
+            checkIndex(index);
+            discardWriter(index);
+            try {
+                _writers[index] = _disk.getNewWriter();
+            } catch (ServerException e) {
+                throw new RepositoryException("Unable to get new disk cache "
+                        + "writer", e);
+            }
+            return _writers[index];
+        }
+
+        public void recordSucceeded(int index) {
+            checkIndex(index);
+            RCDiskWriter diskWriter = _writers[index];
+            QueueItem qi = _items.get(index);
+            setReported(index);
+            try {
+                if (diskWriter == null) {
+                    throw new Exception("Record reported as written, but "
+                            + "never started");
+                }
+                diskWriter.flush();
                 diskWriter.close();
-                diskWriter.getFile().delete();
+                fetched(qi, diskWriter, _batch);
+            } catch (Throwable th) {
+                fail(qi, diskWriter, th, _batch);
             }
+        }
 
-            StringWriter failReason = new StringWriter();
-            th.printStackTrace(new PrintWriter(failReason, true));
-            qi.setFailReason(failReason.toString());
-            qi.setFailDate(StreamUtil.nowUTCString());
-            _failedCount++;
-        } finally {
-            _attemptedCount++;
-            _totalFetchTime += retrievalDelay;
-            _totalValidationTime += validationDelay;
+        public void recordFailed(int index, Throwable cause) {
+            checkIndex(index);
+            setReported(index);
+            fail(_items.get(index), _writers[index], cause, _batch);
+        }
+
+        public int getReportedCount() {
+            return _reportedCount;
+        }
+
+        /**
+         * Get the items the driver didn't report on, discarding anything
+         * partially written for them.
+         */
+        public List<QueueItem> getUnreportedItems() {
+            List<QueueItem> unreported = new ArrayList<QueueItem>();
+            for (int i = 0; i < _reported.length; i++) {
+                if (!_reported[i]) {
+                    discardWriter(i);
+                    unreported.add(_items.get(i));
+                }
+            }
+            return unreported;
+        }
+
+        private void checkIndex(int index) {
+            if (index < 0 || index >= _reported.length) {
+                throw new IllegalArgumentException("No such record in batch: "
+                        + index);
+            }
+            if (_reported[index]) {
+                throw new IllegalStateException("Record " + index
+                        + " in batch was already reported");
+            }
+        }
+
+        private void setReported(int index) {
+            _reported[index] = true;
+            _reportedCount++;
+        }
+
+        private void discardWriter(int index) {
+            if (_writers[index] != null) {
+                _writers[index].close();
+                _writers[index].getFile().delete();
+                _writers[index] = null;
+            }
+        }
+    }
+
+    /**
+     * Tracks the items of a batch as they finish all stages, and hands the
+     * batch off to the committer when the last one is done.
+     */
+    private class Batch {
+
+        private List<QueueItem> _items;
+        private AtomicInteger _remaining;
+
+        public Batch(List<QueueItem> items) {
+            _items = items;
+            _remaining = new AtomicInteger(items.size());
+            batchStarted();
+        }
+
+        public void itemDone() {
+            if (_remaining.decrementAndGet() == 0) {
+                try {
+                    if (!_updater.processingShouldStop()) {
+                        _updater.handoff(_items);
+                    }
+                } finally {
+                    batchFinished();
+                }
+            }
         }
     }
 
-    private InputStream getRecordStreamForValidation(File recordFile) throws Exception {
-        StringBuilder builder = new StringBuilder();
-        builder.append("<?xml version=\"1.0\" encoding=\"UTF-8\"?>\n");
-        builder.append("<OAI-PMH xmlns=\"http://www.openarchives.org/OAI/2.0/\">\n");
-        builder.append("<responseDate>2002-02-08T08:55:46Z</responseDate>\n");
-        builder.append("<request verb=\"GetRecord\" identifier=\"oai:arXiv.org:cs/0112017\" ");
-        builder.append("metadataPrefix=\"oai_dc\">http://arXiv.org/oai2</request>\n");
-        builder.append("<GetRecord>\n");
-        BufferedReader reader = new BufferedReader(new InputStreamReader(new FileInputStream(recordFile)));
-        String line = reader.readLine();
-        while (line != null) {
-            builder.append(line + "\n");
-            line = reader.readLine();
+    /**
+     * Get a stream of the record wrapped in an OAI-PMH GetRecord response,
+     * suitable for validation.  The record file is streamed as-is between
+     * the envelope bytes rather than being copied into memory.
+     */
+    private static InputStream getRecordStreamForValidation(File recordFile) throws Exception {
+        Vector<InputStream> parts = new Vector<InputStream>(3);
+        parts.add(new ByteArrayInputStream(_VALIDATION_HEADER));
+        parts.add(new FileInputStream(recordFile));
+        parts.add(new ByteArrayInputStream(_VALIDATION_FOOTER));
+        return new SequenceInputStream(parts.elements());
+    }
+
+    private static byte[] getUTF8Bytes(String s) {
+        try {
+            return s.getBytes("UTF-8");
+        } catch (UnsupportedEncodingException e) {
+            throw new RuntimeException("UTF-8 is not supported", e);
         }
-        builder.append("</GetRecord>\n");
-        builder.append("</OAI-PMH>");
-        return new ByteArrayInputStream(builder.toString().getBytes("UTF-8"));
     }
 
     public int getAttemptedCount() {
@@ -142,7 +476,7 @@ public class Worker extends Thread {
     }
 
     public int getFailedCount() {
-        return _failedCount;
+        return _failedCount.get();
     }
 
     public long getTotalFetchTime() {
@@ -150,6 +484,6 @@ public class Worker extends Thread {
     }
 
     public long getTotalValidationTime() {
-        return _totalValidationTime;
+        return _totalValidationTime.get();
     }
 }
@@ -0,0 +1,43 @@
+package proai.driver;
+
+import proai.Record;
+import proai.error.RepositoryException;
+
+import java.util.List;
+
+/**
+ * An <code>OAIDriver</code> that can retrieve many records in one call.
+ * <p/>
+ * Implementing this interface is optional.  If a driver implements it,
+ * the cache will ask for records a whole work batch at a time instead of
+ * calling <code>writeRecordXML</code> once per record.  This allows a
+ * driver whose repository supports it to answer a batch with a single
+ * query or request.
+ */
+public interface BatchOAIDriver extends OAIDriver {
+
+    /**
+     * Write the XML of each of the given records, reporting the outcome of
+     * each one to the given handler.
+     * <p/>
+     * For each record, the driver should call
+     * <code>handler.startRecord(i)</code>, write the record XML to the
+     * returned writer exactly as <code>writeRecordXML</code> would, then
+     * call either <code>handler.recordSucceeded(i)</code> or
+     * <code>handler.recordFailed(i, cause)</code>.  Records may be written
+     * in any order, but one at a time, and all calls must be made on the
+     * calling thread before this method returns.
+     * <p/>
+     * Any record that hasn't been reported as having succeeded or failed
+     * when this method returns or throws an exception will be retrieved
+     * individually with <code>writeRecordXML</code>.
+     *
+     * @param records the records to retrieve, each identified by item id,
+     *                prefix, and source info as returned by the driver.
+     * @throws RepositoryException if the batch as a whole could not be
+     *                             retrieved.
+     */
+    void writeRecordsXML(List<? extends Record> records,
+                         BatchRecordHandler handler) throws RepositoryException;
+
+}
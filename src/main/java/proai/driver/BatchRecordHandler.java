@@ -0,0 +1,34 @@
+package proai.driver;
+
+import proai.error.RepositoryException;
+
+import java.io.PrintWriter;
+
+/**
+ * Receives the records written by <code>BatchOAIDriver.writeRecordsXML</code>.
+ * <p/>
+ * Records are identified by their index in the list given to the driver.
+ */
+public interface BatchRecordHandler {
+
+    /**
+     * Get the writer the XML of the given record should be written to.
+     * <p/>
+     * If this is called again for a record that has already been started,
+     * anything written for it so far is discarded.
+     *
+     * @throws RepositoryException if a writer can't be provided.
+     */
+    PrintWriter startRecord(int index) throws RepositoryException;
+
+    /**
+     * Signal that the XML of the given record has been completely written.
+     */
+    void recordSucceeded(int index);
+
+    /**
+     * Signal that the given record could not be written.
+     */
+    void recordFailed(int index, Throwable cause);
+
+}
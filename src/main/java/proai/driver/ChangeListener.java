@@ -0,0 +1,19 @@
+package proai.driver;
+
+/**
+ * Receives notice from a <code>ChangeNotifyingOAIDriver</code> that
+ * something in the remote repository has changed.
+ */
+public interface ChangeListener {
+
+    /**
+     * Signal that records, sets, formats, or the identity of the repository
+     * may have changed since the driver's <code>getLatestDate()</code> was
+     * last called.
+     * <p/>
+     * This returns quickly, and may be called from any thread.  Several
+     * calls in quick succession are treated as one.
+     */
+    void changed();
+
+}
@@ -0,0 +1,20 @@
+package proai.driver;
+
+/**
+ * An <code>OAIDriver</code> that can tell the cache when the remote
+ * repository changes.
+ * <p/>
+ * Implementing this interface is optional.  If a driver implements it,
+ * the cache will start an update cycle as soon as it is notified of a
+ * change, rather than waiting for the next scheduled poll.  Scheduled
+ * polling still happens, so a missed notification only delays an update.
+ */
+public interface ChangeNotifyingOAIDriver extends OAIDriver {
+
+    /**
+     * Set the listener to notify of changes.  This is called once, after
+     * <code>init(Properties)</code>.
+     */
+    void setChangeListener(ChangeListener listener);
+
+}
@@ -0,0 +1,39 @@
+package proai.driver;
+
+import proai.Record;
+import proai.error.RepositoryException;
+
+import java.util.Date;
+
+/**
+ * An <code>OAIDriver</code> whose record listings can be resumed part way
+ * through.
+ * <p/>
+ * Implementing this interface is optional.  The cache commits records to
+ * its queue in chunks while listing them, saving the resumption point of
+ * the listing along with each chunk.  If the listing is interrupted (for
+ * instance, by a crash or shutdown), and the driver implements this
+ * interface, the next listing continues from the last saved point.
+ * Otherwise, the listing starts over from the beginning.
+ */
+public interface ResumableOAIDriver extends OAIDriver {
+
+    /**
+     * Like <code>listRecords(Date, Date, String)</code>, but starting
+     * just after the given resumption point.
+     * <p/>
+     * The records returned, together with those returned before the
+     * resumption point was reached, must be the same set as would have
+     * been returned by a single listing with the same arguments.
+     *
+     * @param resumeAfter a resumption point previously returned by an
+     *                    iterator from this method with the same from,
+     *                    until, and mdPrefix, or null to start from the
+     *                    beginning.
+     */
+    ResumableRemoteIterator<? extends Record> listRecords(Date from,
+                                                          Date until,
+                                                          String mdPrefix,
+                                                          String resumeAfter) throws RepositoryException;
+
+}
@@ -0,0 +1,22 @@
+package proai.driver;
+
+import proai.error.RepositoryException;
+
+/**
+ * A <code>RemoteIterator</code> that can report how far it has got, so
+ * that a later listing can continue from the same point.
+ *
+ * @see ResumableOAIDriver
+ */
+public interface ResumableRemoteIterator<T> extends RemoteIterator<T> {
+
+    /**
+     * Get an opaque string identifying the position just after the item
+     * most recently returned by <code>next()</code>, or null if no item
+     * has been returned yet.
+     * <p/>
+     * The string must not contain newlines.
+     */
+    String getResumptionPoint() throws RepositoryException;
+
+}
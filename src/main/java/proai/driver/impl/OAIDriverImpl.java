@@ -3,7 +3,10 @@ package proai.driver.impl;
 import proai.MetadataFormat;
 import proai.Record;
 import proai.SetInfo;
-import proai.driver.OAIDriver;
+import proai.driver.BatchOAIDriver;
+import proai.driver.BatchRecordHandler;
+import proai.driver.ResumableOAIDriver;
+import proai.driver.ResumableRemoteIterator;
 import proai.driver.RemoteIterator;
 import proai.error.RepositoryException;
 
@@ -30,7 +33,7 @@ import java.util.*;
  * line1: ns
  * line2: loc
  */
-public class OAIDriverImpl implements OAIDriver {
+public class OAIDriverImpl implements BatchOAIDriver, ResumableOAIDriver {
 
     public static final String BASE_DIR_PROPERTY = "proai.driver.simple.baseDir";
 
@@ -126,7 +129,43 @@ public class OAIDriverImpl implements OAIDriver {
                                               String mdPrefix) {
         return new RemoteIteratorImpl<Record>(getRecordCollection(from,
                 until,
-                mdPrefix).iterator());
+                mdPrefix,
+                null).iterator());
+    }
+
+    // In this case, the resumption point is the filename of the last record.
+    public ResumableRemoteIterator<Record> listRecords(Date from,
+                                                       Date until,
+                                                       String mdPrefix,
+                                                       String resumeAfter) {
+        final Iterator<Record> iter = getRecordCollection(from,
+                until,
+                mdPrefix,
+                resumeAfter).iterator();
+        return new ResumableRemoteIterator<Record>() {
+            private Record m_last;
+
+            public boolean hasNext() {
+                return iter.hasNext();
+            }
+
+            public Record next() {
+                m_last = iter.next();
+                return m_last;
+            }
+
+            public void remove() {
+                throw new UnsupportedOperationException("RemoteIterator does support remove().");
+            }
+
+            public void close() {
+            }
+
+            public String getResumptionPoint() {
+                if (m_last == null) return null;
+                return new File(m_last.getSourceInfo()).getName();
+            }
+        };
     }
 
     // In this case, sourceInfo is the full path to the source file.
@@ -139,17 +178,41 @@ public class OAIDriverImpl implements OAIDriver {
         writeFromFile(file, writer);
     }
 
+    public void writeRecordsXML(List<? extends Record> records,
+                                BatchRecordHandler handler) throws RepositoryException {
+
+        for (int i = 0; i < records.size(); i++) {
+            Record record = records.get(i);
+            PrintWriter writer = handler.startRecord(i);
+            try {
+                writeRecordXML(record.getItemID(),
+                        record.getPrefix(),
+                        record.getSourceInfo(),
+                        writer);
+                handler.recordSucceeded(i);
+            } catch (RepositoryException e) {
+                handler.recordFailed(i, e);
+            }
+        }
+    }
+
     public void close() {
         // do nothing (this impl doesn't tie up any resources)
     }
 
+    // records are listed in filename order, starting after resumeAfter
     private Collection<Record> getRecordCollection(Date from,
                                                    Date until,
-                                                   String mdPrefix) {
+                                                   String mdPrefix,
+                                                   String resumeAfter) {
         List<Record> list = new ArrayList<Record>();
         DateFormat df = new SimpleDateFormat("yyyy-MM-dd'T'HH-mm-ss");
         String[] names = m_recordsDir.list();
+        Arrays.sort(names);
         for (int i = 0; i < names.length; i++) {
+            if (resumeAfter != null && names[i].compareTo(resumeAfter) <= 0) {
+                continue;
+            }
             String[] temp = names[i].replaceFirst("-", " ")
                     .replaceFirst("-", " ")
                     .split(" ");
@@ -0,0 +1,14 @@
+package proai.error;
+
+/**
+ * Signals that the server is too busy to take on the request right now,
+ * but may be able to later.
+ */
+public class ServerBusyException extends ServerException {
+    static final long serialVersionUID = 1;
+
+    public ServerBusyException(String message) {
+        super(message);
+    }
+
+}
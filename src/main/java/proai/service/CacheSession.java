@@ -11,9 +11,21 @@ import java.io.FileOutputStream;
 import java.io.OutputStreamWriter;
 import java.io.PrintWriter;
 import java.util.Date;
-
-public class CacheSession<T> extends Thread
-        implements Session {
+import java.util.LinkedList;
+import java.util.List;
+
+/**
+ * A session that writes the parts of a list to files in its own directory,
+ * each in the form read by <code>CachedContentAggregate</code>.
+ * <p/>
+ * The parts are written by <code>run()</code>, which the session manager
+ * runs on its shared executor, so the session may wait a while before it
+ * starts.  Unless configured otherwise, only a few parts are written ahead
+ * of the last one sent; generation then pauses, without holding a thread,
+ * until the harvester asks for the next part.  Abandoned harvests therefore
+ * stop costing anything after a few parts.
+ */
+public class CacheSession<T> implements Runnable, Session {
 
     private static final Logger _LOG =
             Logger.getLogger(CacheSession.class.getName());
@@ -25,23 +37,60 @@ public class CacheSession<T> extends Thread
 
     private String _sessionKey;
 
-    private int _threadWorkingPart;
-    private int _lastGeneratedPart;
-    private int _lastSentPart;
+    private int _partsAhead;
+
+    private boolean _started;
+    private LinkedList<String[]> _pending;
+    private CloseableIterator<String[]> _iter;
+    private int _cursor;
+
+    private volatile int _threadWorkingPart;
+    private volatile int _lastGeneratedPart;
+    private volatile int _lastSentPart;
     private long _expirationTime;
-    private ServerException _exception;
+    private volatile ServerException _exception;
 
-    private boolean _threadNeedsToFinish;
-    private boolean _threadWorking;
+    private volatile boolean _threadNeedsToFinish;
+    private volatile boolean _threadWorking;
+    private volatile boolean _finished;
 
+    /**
+     * @param partsAhead how many parts to generate beyond the last one
+     *                   sent, or 0 to generate all parts as soon as possible.
+     */
     public CacheSession(SessionManager manager,
                         File baseDir,
                         int secondsBetweenRequests,
+                        int partsAhead,
                         ListProvider<T> provider) {
+        this(manager, baseDir, secondsBetweenRequests, partsAhead, provider,
+                null, null);
+    }
+
+    /**
+     * Construct a session for a list that has already been opened.
+     *
+     * @param firstPaths the paths that have already been read from iter,
+     *                   which will be written first.
+     * @param iter       the open iterator, which will be closed by the
+     *                   session.
+     */
+    public CacheSession(SessionManager manager,
+                        File baseDir,
+                        int secondsBetweenRequests,
+                        int partsAhead,
+                        ListProvider<T> provider,
+                        List<String[]> firstPaths,
+                        CloseableIterator<String[]> iter) {
         _manager = manager;
         _baseDir = baseDir;
         _secondsBetweenRequests = secondsBetweenRequests;
+        _partsAhead = partsAhead;
         _provider = provider;
+        if (firstPaths != null) {
+            _pending = new LinkedList<String[]>(firstPaths);
+        }
+        _iter = iter;
 
         // make a unique key for this session
         String s = "" + this.hashCode();
@@ -56,75 +105,143 @@ public class CacheSession<T> extends Thread
         _lastSentPart = -1;
 
         _threadWorking = true;
-
-        setName("Session-" + _sessionKey + "-Retriever");
-
-        start();
     }
 
     ///////////////////////////////////////////////////////////////////////////
 
+    /**
+     * Generate parts until the list is finished or the required number of
+     * parts are ready ahead of the last one sent.
+     * <p/>
+     * The iterator is kept open in between, and generation is resumed on
+     * the session manager's executor when the next part is sent.
+     */
     public void run() {
-        _LOG.info(_sessionKey + " retrieval thread started");
-        int incompleteListSize = _provider.getIncompleteListSize();
-        CloseableIterator<String[]> iter = null;
-        PrintWriter out = null;
         try {
-            iter = _provider.getPathList();  // if empty, the impl should throw the right exception here
-            _manager.addSession(_sessionKey, this);  // after this point, we depend on the session manager to clean up
-
-            File sessionDir = new File(_baseDir, _sessionKey);
-            sessionDir.mkdirs();
-
-            int cursor = 0;
-
-            // iterate all elements of the list...
-            while (iter.hasNext() && !_threadNeedsToFinish) {
-                File listFile = new File(sessionDir, _threadWorkingPart + ".txt");
-                out = new PrintWriter(
-                        new OutputStreamWriter(
-                                new FileOutputStream(listFile)));
-                for (int i = 0; i < incompleteListSize && iter.hasNext(); i++) {
-                    String[] pathAndDate = iter.next();
-                    out.print(pathAndDate[0]);            // path
-                    if (pathAndDate.length > 1) {
-                        out.print(" " + pathAndDate[1]);  // possibly date
-                    }
-                    out.println();
+            if (!_started) {
+                _started = true;
+                if (_threadNeedsToFinish || _manager.isClosing()) {
+                    throw new ServerException("Session manager was shut down "
+                            + "before session " + _sessionKey + " started");
                 }
-
-                if (iter.hasNext()) {
-                    int nextPartNum = _threadWorkingPart + 1;
-                    String token = _sessionKey + "/" + nextPartNum;
-                    out.println("end " + token + " " + cursor);
-                    cursor += incompleteListSize;
-                } else if (cursor > 0) {
-                    out.println("end " + cursor);
-                } else {
-                    out.println("end");
+                _LOG.info(_sessionKey + " retrieval started");
+                if (_iter == null) {
+                    _iter = _provider.getPathList();  // if empty, the impl should throw the right exception here
                 }
-                out.close();
-                _lastGeneratedPart++;
-                _LOG.debug("Successfully created file " + listFile.getPath());
-                if (iter.hasNext()) {
-                    _threadWorkingPart++;
+                _manager.addSession(_sessionKey, this);  // after this point, we depend on the session manager to clean up
+                new File(_baseDir, _sessionKey).mkdirs();
+            }
+            while (true) {
+                synchronized (this) {
+                    if (_threadNeedsToFinish || !needsMoreParts()) {
+                        _threadWorking = false;
+                        return;
+                    }
                 }
+                writeNextPart();
             }
         } catch (ServerException e) {
             _exception = e;
         } catch (Throwable th) {
             _exception = new ServerException("Unexpected error in session thread", th);
         } finally {
-            if (iter != null) try {
-                iter.close();
-            } catch (Exception e) {
+            if (_exception != null) {
+                _finished = true;
+            }
+            if (_finished) {
+                closeIterator();
+                _LOG.info(_sessionKey + " retrieval finished");
+                _threadWorking = false;
+            }
+        }
+    }
+
+    /**
+     * Write the next part of the list to a file.
+     */
+    private void writeNextPart() throws Exception {
+        int incompleteListSize = _provider.getIncompleteListSize();
+        File listFile = new File(_baseDir, _sessionKey + "/" + _threadWorkingPart + ".txt");
+        PrintWriter out = new PrintWriter(
+                new OutputStreamWriter(
+                        new FileOutputStream(listFile)));
+        boolean more;
+        try {
+            for (int i = 0; i < incompleteListSize && hasNextPath(); i++) {
+                String[] pathAndDate = nextPath();
+                out.print(pathAndDate[0]);            // path
+                if (pathAndDate.length > 1) {
+                    out.print(" " + pathAndDate[1]);  // possibly date
+                }
+                out.println();
+            }
+
+            more = hasNextPath();
+            if (more) {
+                int nextPartNum = _threadWorkingPart + 1;
+                String token = _sessionKey + "/" + nextPartNum;
+                out.println("end " + token + " " + _cursor);
+                _cursor += incompleteListSize;
+            } else if (_cursor > 0) {
+                out.println("end " + _cursor);
+            } else {
+                out.println("end");
+            }
+        } finally {
+            out.close();
+        }
+        _LOG.debug("Successfully created file " + listFile.getPath());
+
+        // the token for the next part must be available before this part is
+        if (more) {
+            _threadWorkingPart++;
+        }
+        _lastGeneratedPart++;
+        if (!more) {
+            _finished = true;
+        }
+    }
+
+    private boolean hasNextPath() throws ServerException {
+        return (_pending != null && !_pending.isEmpty()) || _iter.hasNext();
+    }
+
+    private String[] nextPath() throws ServerException {
+        if (_pending != null && !_pending.isEmpty()) {
+            return _pending.removeFirst();
+        }
+        return _iter.next();
+    }
+
+    /**
+     * Whether there are parts left to generate that should be generated now.
+     */
+    private boolean needsMoreParts() {
+        if (_finished) return false;
+        return _partsAhead == 0 || _lastGeneratedPart < _lastSentPart + _partsAhead;
+    }
+
+    /**
+     * Resume generating parts if needed and not already doing so.
+     */
+    private synchronized void generateMore() throws ServerException {
+        if (!_threadWorking && !_threadNeedsToFinish && needsMoreParts()) {
+            _threadWorking = true;
+            try {
+                _manager.resume(this);
+            } catch (ServerException e) {
+                _threadWorking = false;
+                throw e;
             }
-            if (out != null) try {
-                out.close();
+        }
+    }
+
+    private void closeIterator() {
+        if (_iter != null) {
+            try {
+                _iter.close();
             } catch (Exception e) {
             }
-            _threadWorking = false;
-            _LOG.info(_sessionKey + " retrieval thread finished");
         }
     }
 
@@ -160,13 +277,16 @@ public class CacheSession<T> extends Thread
      * Clean must *not* be called from this session's thread.
      */
     public void clean() {
-        _threadNeedsToFinish = true;
+        synchronized (this) {
+            _threadNeedsToFinish = true;
+        }
         while (_threadWorking) {
             try {
                 Thread.sleep(250);
             } catch (Exception e) {
             }
         }
+        closeIterator();
         File sessionDir = new File(_baseDir, _sessionKey);
         if (sessionDir.exists()) {
             File[] files = sessionDir.listFiles();
@@ -198,7 +318,8 @@ public class CacheSession<T> extends Thread
             // wait till the thread is finished or the last generated part is greater or equal to partNum
 
             // Then, try to return the response
-            while (_threadWorking && _lastGeneratedPart < partNum) {
+            while (!_finished && !_threadNeedsToFinish && _lastGeneratedPart < partNum) {
+                generateMore();
                 try {
                     Thread.sleep(100);
                 } catch (Exception e) {
@@ -254,6 +375,7 @@ public class CacheSession<T> extends Thread
 
             _lastSentPart = partNum;
             _expirationTime = new Date().getTime() + (1000 * _secondsBetweenRequests);
+            generateMore();  // stay the required number of parts ahead
             _LOG.info(_sessionKey + " returning part " + partNum);
             return response;
         } else {
@@ -262,7 +384,7 @@ public class CacheSession<T> extends Thread
     }
 
     private String getResumptionToken(int partNum) {
-        if (_threadWorking) {
+        if (!_finished) {
             if (_threadWorkingPart >= partNum) {
                 return _sessionKey + "/" + partNum;
             } else {
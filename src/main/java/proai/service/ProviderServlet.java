@@ -4,6 +4,7 @@ import org.apache.log4j.Logger;
 import proai.error.BadArgumentException;
 import proai.error.BadVerbException;
 import proai.error.ProtocolException;
+import proai.error.ServerBusyException;
 import proai.error.ServerException;
 import proai.util.StreamUtil;
 
@@ -22,9 +23,20 @@ import java.util.Set;
 public class ProviderServlet extends HttpServlet {
     static final long serialVersionUID = 1;
 
+    /**
+     * The servlet context attribute under which the Responder is made
+     * available to other servlets once initialized.
+     */
+    public static final String RESPONDER_ATTRIBUTE = Responder.class.getName();
+
     private static final Logger logger =
             Logger.getLogger(ProviderServlet.class.getName());
 
+    /**
+     * How long to ask harvesters to wait before retrying when busy.
+     */
+    private static final int BUSY_RETRY_AFTER_SECONDS = 60;
+
     /**
      * Every response starts with this string.
      */
@@ -46,6 +58,9 @@ public class ProviderServlet extends HttpServlet {
      * (db connections, threads, etc) that are being held.
      */
     public void destroy() {
+        if (getServletConfig() != null) {
+            getServletContext().removeAttribute(RESPONDER_ATTRIBUTE);
+        }
         try {
             m_responder.close();
         } catch (Exception e) {
@@ -162,6 +177,14 @@ public class ProviderServlet extends HttpServlet {
                             resumptionToken,
                             e),
                     e, response);
+        } catch (ServerBusyException e) {
+            try {
+                logger.info("Server busy: " + e.getMessage());
+                response.setHeader("Retry-After", "" + BUSY_RETRY_AFTER_SECONDS);
+                response.sendError(HttpServletResponse.SC_SERVICE_UNAVAILABLE, e.getMessage());
+            } catch (IOException ioe) {
+                logger.warn("Could not send error to client", ioe);
+            }
         } catch (ServerException e) {
             try {
                 logger.warn("OAI Service Error", e);
@@ -192,6 +215,7 @@ public class ProviderServlet extends HttpServlet {
             Properties props = new Properties();
             props.load(propStream);
             init(props);
+            getServletContext().setAttribute(RESPONDER_ATTRIBUTE, m_responder);
         } catch (Exception e) {
             throw new ServletException("Unable to initialize ProviderServlet", e);
         }
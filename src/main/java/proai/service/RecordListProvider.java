@@ -8,6 +8,7 @@ import proai.error.CannotDisseminateFormatException;
 import proai.error.NoRecordsMatchException;
 import proai.error.NoSetHierarchyException;
 import proai.error.ServerException;
+import proai.util.StreamUtil;
 
 import java.util.Date;
 
@@ -33,6 +34,9 @@ public class RecordListProvider implements ListProvider<CachedContent> {
         m_incompleteListSize = incompleteListSize;
         m_identifiers = identifiers;
         m_from = from;
+        // Fix the end of the list when it's requested, as RecordPager does,
+        // so records committed while it's being read aren't included.
+        if (until == null) until = StreamUtil.nowUTC();
         m_until = until;
         m_prefix = prefix;
         m_set = set;
@@ -47,21 +51,8 @@ public class RecordListProvider implements ListProvider<CachedContent> {
                 m_identifiers);
         if (iter.hasNext()) return iter;
         // else figure out why and throw the right exception
-        if (!m_cache.formatExists(m_prefix)) {
-            throw new CannotDisseminateFormatException(Responder.ERR_NO_SUCH_FORMAT);
-        }
-        if (m_set != null) {
-            CloseableIterator<SetInfo> sic = m_cache.getSetInfoContent();
-            boolean supportsSets = sic.hasNext();
-            try {
-                sic.close();
-            } catch (Exception e) {
-            }
-            if (!supportsSets) {
-                throw new NoSetHierarchyException(Responder.ERR_NO_SET_HIERARCHY);
-            }
-        }
-        throw new NoRecordsMatchException(Responder.ERR_NO_RECORDS_MATCH);
+        throwEmptyListException();
+        return null;
     }
 
     public CloseableIterator<String[]> getPathList() throws
@@ -72,6 +63,14 @@ public class RecordListProvider implements ListProvider<CachedContent> {
                 m_set);
         if (iter.hasNext()) return iter;
         // else figure out why and throw the right exception
+        throwEmptyListException();
+        return null;
+    }
+
+    /**
+     * Throw the right exception for a query that matched no records.
+     */
+    public void throwEmptyListException() throws ServerException {
         if (!m_cache.formatExists(m_prefix)) {
             throw new CannotDisseminateFormatException(Responder.ERR_NO_SUCH_FORMAT);
         }
@@ -0,0 +1,203 @@
+package proai.service;
+
+import org.apache.commons.codec.binary.Base64;
+import proai.error.BadResumptionTokenException;
+import proai.error.ServerException;
+
+import javax.crypto.Mac;
+import javax.crypto.spec.SecretKeySpec;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.security.MessageDigest;
+import java.util.Date;
+
+/**
+ * A stateless resumption token for ListRecords and ListIdentifiers.
+ * <p/>
+ * <p>The token holds the original query (verb, metadataPrefix, set, from,
+ * and until) along with the modDate and recordKey of the last record sent
+ * and the cursor of the next part, so the next part can be read straight
+ * from the database by any node.  This is encoded in binary, followed by
+ * an HMAC-SHA1 of the same, and the whole is written in URL-safe base64.
+ * A token that has been altered, or that was signed with another secret,
+ * is rejected as bad.
+ * <p/>
+ * <p>Since the encoding never contains a slash, these tokens can't be
+ * mistaken for session tokens, which have the form sessionKey/partNum.
+ */
+public class RecordListToken {
+
+    private static final byte VERSION = 1;
+
+    private static final String MAC_ALGORITHM = "HmacSHA1";
+
+    private static final int MAC_LENGTH = 20;
+
+    private boolean m_identifiers;
+    private String m_prefix;
+    private String m_set;
+    private Date m_from;
+    private Date m_until;
+    private long m_lastModDate;
+    private int m_lastRecordKey;
+    private int m_cursor;
+
+    public RecordListToken(boolean identifiers,
+                           String prefix,
+                           String set,
+                           Date from,
+                           Date until,
+                           long lastModDate,
+                           int lastRecordKey,
+                           int cursor) {
+        m_identifiers = identifiers;
+        m_prefix = prefix;
+        m_set = set;
+        m_from = from;
+        m_until = until;
+        m_lastModDate = lastModDate;
+        m_lastRecordKey = lastRecordKey;
+        m_cursor = cursor;
+    }
+
+    /**
+     * Whether the given token is (or claims to be) a stateless token
+     * rather than a session token.
+     */
+    public static boolean isRecordListToken(String token) {
+        return token.indexOf('/') == -1;
+    }
+
+    /**
+     * Decode the given token and check its integrity.
+     *
+     * @throws BadResumptionTokenException if the token is malformed or was
+     *                                     not signed with the given secret.
+     */
+    public static RecordListToken decode(String token,
+                                         byte[] secret) throws ServerException {
+        byte[] bytes;
+        try {
+            String base64 = token.replace('-', '+').replace('_', '/');
+            while (base64.length() % 4 != 0) {
+                base64 = base64 + "=";
+            }
+            bytes = Base64.decodeBase64(base64.getBytes("US-ASCII"));
+        } catch (Exception e) {
+            throw new BadResumptionTokenException("bad syntax in resumption token");
+        }
+        if (bytes == null || bytes.length <= MAC_LENGTH) {
+            throw new BadResumptionTokenException("bad syntax in resumption token");
+        }
+
+        byte[] payload = new byte[bytes.length - MAC_LENGTH];
+        byte[] mac = new byte[MAC_LENGTH];
+        System.arraycopy(bytes, 0, payload, 0, payload.length);
+        System.arraycopy(bytes, payload.length, mac, 0, MAC_LENGTH);
+        if (!MessageDigest.isEqual(mac, sign(payload, secret))) {
+            throw new BadResumptionTokenException("resumption token failed integrity check");
+        }
+
+        try {
+            DataInputStream in = new DataInputStream(new ByteArrayInputStream(payload));
+            if (in.readByte() != VERSION) {
+                throw new BadResumptionTokenException("unsupported resumption token version");
+            }
+            boolean identifiers = in.readBoolean();
+            String prefix = in.readUTF();
+            String set = null;
+            if (in.readBoolean()) set = in.readUTF();
+            long from = in.readLong();
+            long until = in.readLong();
+            long lastModDate = in.readLong();
+            int lastRecordKey = in.readInt();
+            int cursor = in.readInt();
+            return new RecordListToken(identifiers,
+                    prefix,
+                    set,
+                    from == -1 ? null : new Date(from),
+                    new Date(until),
+                    lastModDate,
+                    lastRecordKey,
+                    cursor);
+        } catch (IOException e) {
+            throw new BadResumptionTokenException("bad syntax in resumption token", e);
+        }
+    }
+
+    /**
+     * Encode this token and sign it with the given secret.
+     */
+    public String encode(byte[] secret) throws ServerException {
+        try {
+            ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+            DataOutputStream out = new DataOutputStream(bytes);
+            out.writeByte(VERSION);
+            out.writeBoolean(m_identifiers);
+            out.writeUTF(m_prefix);
+            out.writeBoolean(m_set != null);
+            if (m_set != null) out.writeUTF(m_set);
+            out.writeLong(m_from == null ? -1 : m_from.getTime());
+            out.writeLong(m_until.getTime());
+            out.writeLong(m_lastModDate);
+            out.writeInt(m_lastRecordKey);
+            out.writeInt(m_cursor);
+            out.flush();
+            bytes.write(sign(bytes.toByteArray(), secret));
+
+            String base64 = new String(Base64.encodeBase64(bytes.toByteArray()), "US-ASCII");
+            int end = base64.length();
+            while (end > 0 && base64.charAt(end - 1) == '=') end--;
+            return base64.substring(0, end).replace('+', '-').replace('/', '_');
+        } catch (IOException e) {
+            throw new ServerException("Error encoding resumption token", e);
+        }
+    }
+
+    private static byte[] sign(byte[] payload,
+                               byte[] secret) throws ServerException {
+        try {
+            Mac mac = Mac.getInstance(MAC_ALGORITHM);
+            mac.init(new SecretKeySpec(secret, MAC_ALGORITHM));
+            return mac.doFinal(payload);
+        } catch (Exception e) {
+            throw new ServerException("Error signing resumption token", e);
+        }
+    }
+
+    public boolean isIdentifiers() {
+        return m_identifiers;
+    }
+
+    public String getPrefix() {
+        return m_prefix;
+    }
+
+    public String getSet() {
+        return m_set;
+    }
+
+    public Date getFrom() {
+        return m_from;
+    }
+
+    public Date getUntil() {
+        return m_until;
+    }
+
+    public long getLastModDate() {
+        return m_lastModDate;
+    }
+
+    public int getLastRecordKey() {
+        return m_lastRecordKey;
+    }
+
+    public int getCursor() {
+        return m_cursor;
+    }
+
+}
@@ -0,0 +1,173 @@
+package proai.service;
+
+import org.apache.log4j.Logger;
+import proai.CloseableIterator;
+import proai.Writable;
+import proai.cache.CachedContent;
+import proai.cache.RecordCache;
+import proai.error.BadResumptionTokenException;
+import proai.error.ServerException;
+import proai.util.StreamUtil;
+
+import java.io.PrintWriter;
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.List;
+
+/**
+ * Serves ListRecords and ListIdentifiers responses one part at a time,
+ * straight from the database, using stateless <code>RecordListToken</code>s
+ * rather than sessions.
+ * <p/>
+ * <p>Each part is read when it is requested, starting after the last record
+ * of the previous part, so no thread, file, or other state is kept between
+ * requests.  Any node sharing the same database and token secret can serve
+ * any part, and tokens remain valid across restarts.
+ * <p/>
+ * <p>The until date of a harvest is fixed when its first part is served
+ * (to the current time, if not given), so records updated during the
+ * harvest are left for the next one rather than appearing twice.
+ */
+public class RecordPager {
+
+    private static final Logger logger =
+            Logger.getLogger(RecordPager.class.getName());
+
+    private RecordCache m_cache;
+    private byte[] m_secret;
+
+    public RecordPager(RecordCache cache,
+                       byte[] secret) {
+        m_cache = cache;
+        m_secret = secret;
+    }
+
+    /**
+     * Get the first part of the list of records matching the given query.
+     */
+    public ResponseData list(boolean identifiers,
+                             Date from,
+                             Date until,
+                             String prefix,
+                             String set,
+                             int incompleteListSize) throws ServerException {
+        if (until == null) until = StreamUtil.nowUTC();
+        RecordListToken start = new RecordListToken(identifiers, prefix, set,
+                from, until, 0, -1, 0);
+        ResponseData part = getPart(start, incompleteListSize);
+        if (part == null) {
+            new RecordListProvider(m_cache, incompleteListSize, identifiers,
+                    from, until, prefix, set).throwEmptyListException();
+        }
+        return part;
+    }
+
+    /**
+     * Get the part of a list that starts at the given token.
+     */
+    public ResponseData resume(String resumptionToken,
+                               boolean identifiers,
+                               int incompleteListSize) throws ServerException {
+        RecordListToken position = RecordListToken.decode(resumptionToken, m_secret);
+        if (position.isIdentifiers() != identifiers) {
+            throw new BadResumptionTokenException("the resumption token was "
+                    + "issued for a different verb");
+        }
+        ResponseData part = getPart(position, incompleteListSize);
+        if (part == null) {
+            // the remaining records have been updated since the last part
+            part = new ResponseDataImpl(new RecordPart(identifiers,
+                    new ArrayList<String[]>(), position.getCursor(), null));
+        }
+        return part;
+    }
+
+    /**
+     * Get the part starting after the given position, or null if there are
+     * no more records.
+     */
+    private ResponseData getPart(RecordListToken position,
+                                 int incompleteListSize) throws ServerException {
+
+        // read one extra record to find out whether this is the last part
+        List<String[]> records = new ArrayList<String[]>();
+        CloseableIterator<String[]> iter = m_cache.getRecordsPaths(
+                position.getFrom(),
+                position.getUntil(),
+                position.getPrefix(),
+                position.getSet(),
+                position.getLastModDate(),
+                position.getLastRecordKey(),
+                incompleteListSize + 1);
+        try {
+            while (iter.hasNext() && records.size() <= incompleteListSize) {
+                records.add(iter.next());
+            }
+        } finally {
+            iter.close();
+        }
+        if (records.size() == 0) return null;
+
+        String token = null;
+        if (records.size() > incompleteListSize) {
+            records.remove(records.size() - 1);
+            String[] last = records.get(records.size() - 1);
+            token = new RecordListToken(position.isIdentifiers(),
+                    position.getPrefix(),
+                    position.getSet(),
+                    position.getFrom(),
+                    position.getUntil(),
+                    Long.parseLong(last[2]),
+                    Integer.parseInt(last[3]),
+                    position.getCursor() + records.size()).encode(m_secret);
+        }
+        logger.debug("Returning " + records.size() + " records at cursor "
+                + position.getCursor());
+        return new ResponseDataImpl(new RecordPart(position.isIdentifiers(),
+                records, position.getCursor(), token), token);
+    }
+
+    /**
+     * Writes a part of a record list in the same form as
+     * <code>CachedContentAggregate</code>.
+     */
+    private class RecordPart implements Writable {
+
+        private boolean m_identifiers;
+        private List<String[]> m_records;
+        private int m_cursor;
+        private String m_token;
+
+        public RecordPart(boolean identifiers,
+                          List<String[]> records,
+                          int cursor,
+                          String token) {
+            m_identifiers = identifiers;
+            m_records = records;
+            m_cursor = cursor;
+            m_token = token;
+        }
+
+        public void write(PrintWriter out) throws ServerException {
+            String verb = m_identifiers ? "ListIdentifiers" : "ListRecords";
+            out.println("<" + verb + ">");
+            for (String[] record : m_records) {
+                try {
+                    new CachedContent(m_cache.getFile(record[0]),
+                            record[1],
+                            m_identifiers).write(out);
+                } catch (Exception e) {
+                    // must have moved out of cache -- ignore
+                }
+            }
+            if (m_token != null) {
+                out.println("<resumptionToken cursor=\"" + m_cursor + "\">" + m_token + "</resumptionToken>");
+            } else if (m_cursor > 0) {
+                out.println("<resumptionToken cursor=\"" + m_cursor + "\"/>");
+            }
+            out.println("</" + verb + ">");
+        }
+
+    }
+
+}
@@ -7,6 +7,7 @@ import proai.cache.CachedContent;
 import proai.cache.RecordCache;
 import proai.error.*;
 
+import java.io.UnsupportedEncodingException;
 import java.util.Date;
 import java.util.Properties;
 
@@ -49,6 +50,8 @@ public class Responder {
             + "incompleteRecordListSize";
     public static final String PROP_INCOMPLETEIDENTIFIERLISTSIZE = _PFX
             + "incompleteRecordListSize";
+    public static final String PROP_RESUMPTIONTOKENSECRET = _PFX
+            + "resumptionTokenSecret";
     private static final Logger logger = Logger.getLogger(Responder.class
             .getName());
 
@@ -60,12 +63,26 @@ public class Responder {
 
     private SessionManager m_sessionManager;
 
+    /**
+     * Serves record lists with stateless resumption tokens, if configured.
+     */
+    private RecordPager m_recordPager;
+
     public Responder(Properties props) throws ServerException {
         init(new RecordCache(props),
                 new SessionManager(props),
                 nonNegativeValue(props, PROP_INCOMPLETEIDENTIFIERLISTSIZE, true),
                 nonNegativeValue(props, PROP_INCOMPLETERECORDLISTSIZE, true),
                 nonNegativeValue(props, PROP_INCOMPLETESETLISTSIZE, true));
+        String secret = props.getProperty(PROP_RESUMPTIONTOKENSECRET);
+        if (secret != null && secret.trim().length() > 0) {
+            try {
+                m_recordPager = new RecordPager(m_cache, secret.trim().getBytes("UTF-8"));
+            } catch (UnsupportedEncodingException e) {
+                throw new ServerException("UTF-8 is not supported", e);
+            }
+            logger.info("Using stateless resumption tokens for record lists");
+        }
     }
 
     private void init(RecordCache cache, SessionManager sessionManager,
@@ -282,6 +299,10 @@ public class Responder {
             // checkGranularity(from, until);
             // checkFromUntil(fromDate, untilDate);
             checkMetadataPrefix(metadataPrefix);
+            if (m_recordPager != null) {
+                return m_recordPager.list(identifiersOnly, fromDate, untilDate,
+                        metadataPrefix, set, incompleteListSize);
+            }
             ListProvider<CachedContent> provider = new RecordListProvider(
                     m_cache, incompleteListSize, identifiersOnly, fromDate,
                     untilDate, metadataPrefix, set);
@@ -291,6 +312,11 @@ public class Responder {
                     || set != null) {
                 throw new BadArgumentException(ERR_RESUMPTION_EXCLUSIVE);
             }
+            if (m_recordPager != null
+                    && RecordListToken.isRecordListToken(resumptionToken)) {
+                return m_recordPager.resume(resumptionToken, identifiersOnly,
+                        incompleteListSize);
+            }
             return m_sessionManager.getResponseData(resumptionToken);
         }
     }
@@ -417,6 +443,22 @@ public class Responder {
         }
     }
 
+    /**
+     * Ask the cache to check the source for changes as soon as possible.
+     */
+    public void requestUpdate() {
+        m_cache.requestUpdate();
+    }
+
+    /**
+     * Ask the cache to fetch the given record ahead of any bulk updates.
+     */
+    public void refreshRecord(String identifier,
+                              String mdPrefix,
+                              String sourceInfo) throws ServerException {
+        m_cache.refreshRecord(identifier, mdPrefix, sourceInfo);
+    }
+
     /**
      * Release any resources held by the session manager and the cache.
      */
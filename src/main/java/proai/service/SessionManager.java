@@ -1,28 +1,61 @@
 package proai.service;
 
 import org.apache.log4j.Logger;
+import proai.CloseableIterator;
+import proai.cache.CachedContentAggregate;
 import proai.error.BadResumptionTokenException;
+import proai.error.ServerBusyException;
 import proai.error.ServerException;
+import proai.util.ThreadUtil;
 
 import java.io.File;
 import java.util.*;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.Semaphore;
 
 public class SessionManager extends Thread {
 
     public static final String PROP_BASEDIR = "proai.sessionBaseDir";
     public static final String PROP_SECONDSBETWEENREQUESTS = "proai.secondsBetweenRequests";
+    public static final String PROP_SESSIONTHREADS = "proai.sessionThreads";
+    public static final String PROP_SESSIONQUEUESIZE = "proai.sessionQueueSize";
+    public static final String PROP_USEVIRTUALSESSIONTHREADS = "proai.useVirtualSessionThreads";
+    public static final String PROP_SESSIONPARTSAHEAD = "proai.sessionPartsAhead";
+    public static final int DEFAULT_SESSION_THREADS = 16;
+    public static final int DEFAULT_SESSION_QUEUE_SIZE = 100;
+    public static final int DEFAULT_SESSION_PARTS_AHEAD = 2;
     public static final String ERR_RESUMPTION_SYNTAX_SLASH = "bad syntax in resumption token: must contain exactly one slash";
     public static final String ERR_RESUMPTION_SYNTAX_INTEGER = "bad syntax in resumption token: expected an integer after the slash";
     public static final String ERR_RESUMPTION_SESSION = "bad session id or session expired";
+    public static final String ERR_BUSY = "too many lists are being prepared; try again later";
     private static final Logger logger =
             Logger.getLogger(SessionManager.class.getName());
     private File m_baseDir;
     private int m_secondsBetweenRequests;
+    private int m_partsAhead;
 
     private Map<String, Session> m_sessions;
     private boolean m_threadNeedsToFinish;
     private boolean m_threadFinished;
 
+    /**
+     * Runs the list generation for all sessions.
+     */
+    private ExecutorService m_executor;
+
+    /**
+     * Limits the number of sessions that are generating or waiting to
+     * generate their lists.
+     */
+    private Semaphore m_admitted;
+
+    /**
+     * Limits the number of sessions generating their lists at once, if the
+     * executor doesn't do so itself.
+     */
+    private Semaphore m_running;
+
     public SessionManager(Properties props) throws ServerException {
         String dir = props.getProperty(PROP_BASEDIR);
         if (dir == null) throw new ServerException("Required property missing: " + PROP_BASEDIR);
@@ -34,10 +67,52 @@ public class SessionManager extends Thread {
         } catch (Exception e) {
             throw new ServerException("Required property must an integer: " + PROP_SECONDSBETWEENREQUESTS);
         }
-        init(new File(dir), secondsBetweenRequests);
+        int sessionThreads = DEFAULT_SESSION_THREADS;
+        if (props.getProperty(PROP_SESSIONTHREADS) != null) {
+            sessionThreads = getPositiveInt(props, PROP_SESSIONTHREADS);
+        }
+        int sessionQueueSize = DEFAULT_SESSION_QUEUE_SIZE;
+        if (props.getProperty(PROP_SESSIONQUEUESIZE) != null) {
+            sessionQueueSize = getPositiveInt(props, PROP_SESSIONQUEUESIZE);
+        }
+        boolean useVirtualSessionThreads = false;
+        String vs = props.getProperty(PROP_USEVIRTUALSESSIONTHREADS);
+        if (vs != null && vs.trim().equalsIgnoreCase("true")) {
+            useVirtualSessionThreads = true;
+        }
+        int partsAhead = DEFAULT_SESSION_PARTS_AHEAD;
+        String pa = props.getProperty(PROP_SESSIONPARTSAHEAD);
+        if (pa != null) {
+            try {
+                partsAhead = Integer.parseInt(pa.trim());
+            } catch (NumberFormatException e) {
+                throw new ServerException("Bad integer '" + pa + "' specified for property: " + PROP_SESSIONPARTSAHEAD);
+            }
+            if (partsAhead < 0) {
+                throw new ServerException("Property value cannot be negative: " + PROP_SESSIONPARTSAHEAD);
+            }
+        }
+        init(new File(dir), secondsBetweenRequests, partsAhead, sessionThreads,
+                sessionQueueSize, useVirtualSessionThreads);
     }
 
-    private void init(File baseDir, int secondsBetweenRequests) throws ServerException {
+    private static int getPositiveInt(Properties props, String name) throws ServerException {
+        String v = props.getProperty(name).trim();
+        try {
+            int val = Integer.parseInt(v);
+            if (val < 1) throw new ServerException("Property value must be positive: " + name);
+            return val;
+        } catch (NumberFormatException e) {
+            throw new ServerException("Bad integer '" + v + "' specified for property: " + name);
+        }
+    }
+
+    private void init(File baseDir,
+                      int secondsBetweenRequests,
+                      int partsAhead,
+                      int sessionThreads,
+                      int sessionQueueSize,
+                      boolean useVirtualSessionThreads) throws ServerException {
         m_baseDir = baseDir;
         m_baseDir.mkdirs();
         File[] dirs = m_baseDir.listFiles();
@@ -60,13 +135,30 @@ public class SessionManager extends Thread {
         }
 
         m_secondsBetweenRequests = secondsBetweenRequests;
+        m_partsAhead = partsAhead;
         m_sessions = new HashMap<String, Session>();
+
+        if (useVirtualSessionThreads) {
+            m_executor = ThreadUtil.newVirtualThreadPerTaskExecutor();
+            if (m_executor != null) {
+                m_running = new Semaphore(sessionThreads);
+            }
+        }
+        if (m_executor == null) {
+            m_executor = ThreadUtil.newFixedThreadPool("Session-Retriever", sessionThreads);
+        }
+        m_admitted = new Semaphore(sessionThreads + sessionQueueSize);
+        logger.info("Sessions will be generated by " + sessionThreads
+                + (m_running == null ? "" : " virtual") + " threads, with up to "
+                + sessionQueueSize + " more waiting");
+
         setName("Session-Reaper");
         start();
     }
 
     public SessionManager(File baseDir, int secondsBetweenRequests) {
-        init(baseDir, secondsBetweenRequests);
+        init(baseDir, secondsBetweenRequests, DEFAULT_SESSION_PARTS_AHEAD, DEFAULT_SESSION_THREADS,
+                DEFAULT_SESSION_QUEUE_SIZE, false);
     }
 
     //////////////////////////////////////////////////////////////////////////
@@ -146,12 +238,108 @@ public class SessionManager extends Thread {
 
     //////////////////////////////////////////////////////////////////////////
 
+    /**
+     * Get the first part of the given list.
+     * <p/>
+     * The first part is read in the calling thread.  If that's the whole
+     * list, it is returned directly, without a session.  Otherwise, a
+     * session is started to write out the remaining parts, beginning with
+     * those already read.
+     */
     public <T> ResponseData list(ListProvider<T> provider) throws ServerException {
+        int incompleteListSize = provider.getIncompleteListSize();
+        List<String[]> firstPaths = new ArrayList<String[]>();
+        CloseableIterator<String[]> iter = provider.getPathList();  // if empty, the impl should throw the right exception here
+        boolean complete = true;
+        try {
+            while (firstPaths.size() < incompleteListSize && iter.hasNext()) {
+                firstPaths.add(iter.next());
+            }
+            complete = !iter.hasNext();
+        } finally {
+            if (complete) {
+                try {
+                    iter.close();
+                } catch (Exception e) {
+                }
+            }
+        }
+        if (complete) {
+            return new ResponseDataImpl(new CachedContentAggregate(
+                    firstPaths, provider.getVerb(), provider.getRecordCache()));
+        }
+
         // Session session = new SnapshotSession(this, m_baseDir, m_secondsBetweenRequests, provider);
-        Session session = new CacheSession<T>(this, m_baseDir, m_secondsBetweenRequests, provider);
+        CacheSession<T> session = new CacheSession<T>(this, m_baseDir,
+                m_secondsBetweenRequests, m_partsAhead, provider, firstPaths, iter);
+        try {
+            execute(session, true);
+        } catch (ServerException e) {
+            try {
+                iter.close();
+            } catch (Exception e2) {
+            }
+            throw e;
+        }
         return session.getResponseData(0);
     }
 
+    /**
+     * Resume generating parts for a session that has paused.
+     * <p/>
+     * Since the session has already started, it is not subject to the
+     * limit on waiting sessions.
+     */
+    protected void resume(CacheSession<?> session) throws ServerException {
+        execute(session, false);
+    }
+
+    /**
+     * Run the given list generation task on the session executor.
+     * <p/>
+     * If admit is true and the maximum number of tasks are already running
+     * or waiting to run, the task is not accepted.
+     *
+     * @throws ServerBusyException if the task was not accepted.
+     */
+    private void execute(final Runnable task,
+                         final boolean admit) throws ServerException {
+        if (m_threadNeedsToFinish) {
+            throw new ServerException("Session manager is shutting down");
+        }
+        if (admit && !m_admitted.tryAcquire()) {
+            logger.warn("Not starting session: " + ERR_BUSY);
+            throw new ServerBusyException(ERR_BUSY);
+        }
+        try {
+            m_executor.execute(new Runnable() {
+                public void run() {
+                    try {
+                        if (m_running != null) m_running.acquireUninterruptibly();
+                        try {
+                            task.run();
+                        } finally {
+                            if (m_running != null) m_running.release();
+                        }
+                    } finally {
+                        if (admit) m_admitted.release();
+                    }
+                }
+            });
+        } catch (RejectedExecutionException e) {
+            if (admit) m_admitted.release();
+            throw new ServerException("Session manager is shutting down");
+        }
+    }
+
+    /**
+     * Whether the session manager is shutting down, in which case no more
+     * sessions should be started.
+     */
+    protected boolean isClosing() {
+        return m_threadNeedsToFinish;
+    }
+
     /**
      * Get response data from the appropriate session and return it.
      * <p/>
@@ -196,6 +384,8 @@ public class SessionManager extends Thread {
             }
         }
         cleanupSessions(true);
+        // any sessions still waiting will now finish without starting
+        m_executor.shutdown();
     }
 
 }
\ No newline at end of file
@@ -0,0 +1,137 @@
+package proai.service;
+
+import org.apache.log4j.Logger;
+import proai.error.ServerException;
+
+import javax.servlet.ServletException;
+import javax.servlet.http.HttpServlet;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.InetAddress;
+import java.security.MessageDigest;
+import java.util.Properties;
+
+/**
+ * Lets a local process tell Proai that the source has changed, so that an
+ * update cycle starts right away rather than at the next scheduled poll.
+ * <p/>
+ * A trigger is an HTTP POST from the same host, with the value of
+ * <code>proai.updateTriggerSecret</code> in the
+ * <code>X-Proai-Trigger-Secret</code> header.  Triggers arriving in quick
+ * succession result in a single update cycle.  If no secret is configured,
+ * triggers are not accepted.
+ * <p/>
+ * If the trigger includes <code>identifier</code>,
+ * <code>metadataPrefix</code>, and <code>sourceInfo</code> parameters,
+ * that record is also queued to be fetched ahead of any bulk updates.
+ * <p/>
+ * Triggers are only accepted once the <code>ProviderServlet</code> has
+ * been initialized.
+ */
+public class UpdateTriggerServlet extends HttpServlet {
+    static final long serialVersionUID = 1;
+
+    public static final String PROP_SECRET = "proai.updateTriggerSecret";
+
+    public static final String SECRET_HEADER = "X-Proai-Trigger-Secret";
+
+    private static final Logger logger =
+            Logger.getLogger(UpdateTriggerServlet.class.getName());
+
+    private byte[] m_secret;
+
+    public void init() throws ServletException {
+        try {
+            InputStream propStream = this.getClass().getResourceAsStream("/proai.properties");
+            if (propStream == null) {
+                throw new IOException("Error loading configuration: /proai.properties not found in classpath");
+            }
+            Properties props = new Properties();
+            props.load(propStream);
+            init(props);
+        } catch (Exception e) {
+            throw new ServletException("Unable to initialize UpdateTriggerServlet", e);
+        }
+    }
+
+    public void init(Properties props) throws Exception {
+        String secret = props.getProperty(PROP_SECRET);
+        if (secret != null && secret.trim().length() > 0) {
+            m_secret = secret.trim().getBytes("UTF-8");
+        } else {
+            logger.info("No " + PROP_SECRET + " configured; update triggers are disabled");
+        }
+    }
+
+    public void doPost(HttpServletRequest request,
+                       HttpServletResponse response) throws IOException {
+
+        String remoteAddr = request.getRemoteAddr();
+        if (m_secret == null) {
+            response.sendError(HttpServletResponse.SC_NOT_FOUND,
+                    "Update triggers are disabled");
+        } else if (!isLocal(remoteAddr)) {
+            logger.warn("Rejected update trigger from non-local address " + remoteAddr);
+            response.sendError(HttpServletResponse.SC_FORBIDDEN,
+                    "Update triggers are only accepted from the local host");
+        } else if (!isAuthorized(request)) {
+            logger.warn("Rejected update trigger with missing or bad secret");
+            response.sendError(HttpServletResponse.SC_FORBIDDEN,
+                    "Missing or bad " + SECRET_HEADER + " header");
+        } else {
+            Responder responder = (Responder) getServletContext().getAttribute(
+                    ProviderServlet.RESPONDER_ATTRIBUTE);
+            if (responder == null) {
+                response.sendError(HttpServletResponse.SC_SERVICE_UNAVAILABLE,
+                        "Provider is not yet initialized");
+            } else {
+                logger.debug("Accepted update trigger from " + remoteAddr);
+                String identifier = request.getParameter("identifier");
+                String mdPrefix = request.getParameter("metadataPrefix");
+                String sourceInfo = request.getParameter("sourceInfo");
+                if (identifier == null && mdPrefix == null && sourceInfo == null) {
+                    responder.requestUpdate();
+                    response.setStatus(HttpServletResponse.SC_ACCEPTED);
+                } else if (identifier == null || mdPrefix == null || sourceInfo == null) {
+                    response.sendError(HttpServletResponse.SC_BAD_REQUEST,
+                            "identifier, metadataPrefix, and sourceInfo "
+                            + "must be given together");
+                } else {
+                    try {
+                        responder.refreshRecord(identifier, mdPrefix, sourceInfo);
+                        response.setStatus(HttpServletResponse.SC_ACCEPTED);
+                    } catch (ServerException e) {
+                        logger.warn("Unable to queue refresh of " + identifier
+                                + "/" + mdPrefix, e);
+                        response.sendError(HttpServletResponse.SC_INTERNAL_SERVER_ERROR,
+                                e.getMessage());
+                    }
+                }
+            }
+        }
+    }
+
+    public void doGet(HttpServletRequest request,
+                      HttpServletResponse response) throws IOException {
+        response.sendError(HttpServletResponse.SC_METHOD_NOT_ALLOWED,
+                "Use POST to trigger an update");
+    }
+
+    private static boolean isLocal(String remoteAddr) {
+        try {
+            return InetAddress.getByName(remoteAddr).isLoopbackAddress();
+        } catch (Exception e) {
+            return false;
+        }
+    }
+
+    private boolean isAuthorized(HttpServletRequest request) throws IOException {
+        String given = request.getHeader(SECRET_HEADER);
+        if (given == null) return false;
+        // constant-time comparison, so the secret can't be guessed by timing
+        return MessageDigest.isEqual(m_secret, given.trim().getBytes("UTF-8"));
+    }
+
+}
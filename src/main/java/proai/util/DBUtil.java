@@ -48,4 +48,29 @@ public abstract class DBUtil {
         out.append('\'');
         return out.toString();
     }
-}
\ No newline at end of file
+
+    /**
+     * Determine whether the given exception (or any of its causes) signals
+     * that a transaction failed only because it conflicted with a
+     * concurrent transaction, and may succeed if retried.
+     * <p/>
+     * This is the case for SQLState class 40 (transaction rollback), for
+     * Oracle's ORA-08177, and for McKoi's serializable transaction conflicts.
+     */
+    public static boolean isTransientConflict(Throwable th) {
+        while (th != null) {
+            if (th instanceof SQLException) {
+                SQLException e = (SQLException) th;
+                String state = e.getSQLState();
+                if (state != null && state.startsWith("40")) return true;
+                if (e.getErrorCode() == 8177) return true;
+                String msg = e.getMessage();
+                if (msg != null && msg.indexOf("Serializable Transaction Conflict") != -1) {
+                    return true;
+                }
+            }
+            th = th.getCause();
+        }
+        return false;
+    }
+}
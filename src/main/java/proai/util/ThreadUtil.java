@@ -0,0 +1,62 @@
+package proai.util;
+
+import org.apache.log4j.Logger;
+
+import java.lang.reflect.Method;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Utilities for creating the long-lived executors used by the cache and
+ * service layers.
+ */
+public abstract class ThreadUtil {
+
+    private static final Logger logger =
+            Logger.getLogger(ThreadUtil.class.getName());
+
+    /**
+     * Get a fixed-size pool of daemon platform threads named
+     * <code>namePrefix-1</code>, <code>namePrefix-2</code>, etc.
+     */
+    public static ExecutorService newFixedThreadPool(String namePrefix,
+                                                     int size) {
+        return Executors.newFixedThreadPool(size, newThreadFactory(namePrefix));
+    }
+
+    /**
+     * Get a factory that creates daemon platform threads named
+     * <code>namePrefix-1</code>, <code>namePrefix-2</code>, etc.
+     */
+    public static ThreadFactory newThreadFactory(final String namePrefix) {
+        return new ThreadFactory() {
+            private AtomicInteger count = new AtomicInteger();
+            public Thread newThread(Runnable r) {
+                Thread t = new Thread(r, namePrefix + "-" + count.incrementAndGet());
+                t.setDaemon(true);
+                return t;
+            }
+        };
+    }
+
+    /**
+     * Get an executor that starts a new virtual thread for each task.
+     * <p/>
+     * Virtual threads are only available in Java 21 and above, so the
+     * executor is obtained reflectively.  If it's not available, a warning
+     * is logged and <code>null</code> is returned.
+     */
+    public static ExecutorService newVirtualThreadPerTaskExecutor() {
+        try {
+            Method m = Executors.class.getMethod("newVirtualThreadPerTaskExecutor");
+            return (ExecutorService) m.invoke(null);
+        } catch (Throwable th) {
+            logger.warn("Virtual threads are not supported by this JVM ("
+                    + System.getProperty("java.version") + ")");
+            return null;
+        }
+    }
+
+}
@@ -0,0 +1,264 @@
+package proai.cache;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import proai.error.ServerException;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.StringWriter;
+import java.util.ArrayList;
+import java.util.Arrays;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+public class HeaderCapturingWriterTest {
+
+    private static final String METADATA = "<metadata><dc>&lt;not a header&gt;</dc></metadata>";
+
+    private File m_dir;
+
+    @Before
+    public void setUp() throws IOException {
+        m_dir = File.createTempFile("hcw", "");
+        m_dir.delete();
+        m_dir.mkdirs();
+    }
+
+    @After
+    public void tearDown() {
+        File[] files = m_dir.listFiles();
+        for (int i = 0; i < files.length; i++) {
+            files[i].delete();
+        }
+        m_dir.delete();
+    }
+
+    @Test
+    public void testSimpleHeader() throws Exception {
+        HeaderCapturingWriter w = capture(record("<header>"
+                + "<identifier>oai:example.org:item1</identifier>"
+                + "<datestamp>2005-01-01T08:50:44Z</datestamp>"
+                + "<setSpec>prime</setSpec>"
+                + "<setSpec>abovetwo:odd</setSpec>"
+                + "</header>"));
+        assertTrue(w.isComplete());
+        assertEquals("2005-01-01T08:50:44Z", w.getDatestamp());
+        assertEquals(Arrays.asList("prime", "abovetwo:odd"), w.getSetSpecs());
+    }
+
+    @Test
+    public void testCommentsCDATAAndPIsBeforeAndInsideHeader() throws Exception {
+        String xml = "<?xml version=\"1.0\" encoding=\"UTF-8\"?>\n"
+                + "<!-- <header><setSpec>bogus</setSpec></header> -->\n"
+                + "<?some-pi <header> ?>\n"
+                + "<record>\n"
+                + "<header>\n"
+                + "  <!-- <datestamp>1999-01-01</datestamp> -->\n"
+                + "  <identifier><![CDATA[oai:example.org:<item>]]></identifier>\n"
+                + "  <datestamp><?pi?>2005-01-01<!-- x --></datestamp>\n"
+                + "  <setSpec>a<!-- </setSpec> -->b</setSpec>\n"
+                + "  <setSpec><![CDATA[c&d]]></setSpec>\n"
+                + "  <setSpec> e <?pi </setSpec> ?>f </setSpec>\n"
+                + "</header>\n"
+                + METADATA
+                + "</record>\n";
+        HeaderCapturingWriter w = capture(xml);
+        assertTrue(w.isComplete());
+        assertEquals("2005-01-01", w.getDatestamp());
+        assertEquals(Arrays.asList("ab", "c&d", "e f"), w.getSetSpecs());
+        assertParity(xml, true);
+    }
+
+    @Test
+    public void testEntityAndCharacterReferences() throws Exception {
+        String xml = record("<header>"
+                + "<identifier>oai:example.org:a&amp;b&#38;c&#x26;d</identifier>"
+                + "<datestamp>&#50;005-01-01</datestamp>"
+                + "<setSpec>a&amp;b</setSpec>"
+                + "<setSpec>&lt;x&gt;&quot;&apos;</setSpec>"
+                + "<setSpec>&#233;&#xE9;</setSpec>"
+                + "<setSpec>&#x1D11E;</setSpec>"
+                + "</header>");
+        HeaderCapturingWriter w = capture(xml);
+        assertTrue(w.isComplete());
+        assertEquals("2005-01-01", w.getDatestamp());
+        assertEquals(Arrays.asList("a&b", "<x>\"'", "\u00e9\u00e9", "\uD834\uDD1E"),
+                w.getSetSpecs());
+        assertParity(xml, true);
+    }
+
+    @Test
+    public void testAttributesAndEmptyElements() throws Exception {
+        String xml = record("<header status=\"x>y\" a='</header>'>"
+                + "<identifier>oai:example.org:item1</identifier>"
+                + "<datestamp >2005-01-01</datestamp >"
+                + "<setSpec/>"
+                + "<setSpec foo=\"bar\">s</setSpec>"
+                + "</header >");
+        HeaderCapturingWriter w = capture(xml);
+        assertTrue(w.isComplete());
+        assertEquals("2005-01-01", w.getDatestamp());
+        assertEquals(Arrays.asList("", "s"), w.getSetSpecs());
+    }
+
+    @Test
+    public void testDefaultNamespace() throws Exception {
+        String xml = "<record xmlns=\"http://www.openarchives.org/OAI/2.0/\">"
+                + "<header xmlns=\"http://www.openarchives.org/OAI/2.0/\">"
+                + "<identifier>oai:example.org:item1</identifier>"
+                + "<datestamp>2005-01-01</datestamp>"
+                + "<setSpec>prime</setSpec>"
+                + "</header>" + METADATA + "</record>";
+        HeaderCapturingWriter w = capture(xml);
+        assertTrue(w.isComplete());
+        assertEquals(Arrays.asList("prime"), w.getSetSpecs());
+        assertParity(xml, true);
+    }
+
+    /**
+     * Prefixed elements aren't recognized by the scanner or the SAX
+     * parse, so the header is never seen as complete, and the values
+     * are left to the parse.
+     */
+    @Test
+    public void testNamespacePrefixedElements() throws Exception {
+        String xml = "<oai:record xmlns:oai=\"http://www.openarchives.org/OAI/2.0/\">"
+                + "<oai:header>"
+                + "<oai:identifier>oai:example.org:item1</oai:identifier>"
+                + "<oai:datestamp>2005-01-01</oai:datestamp>"
+                + "<oai:setSpec>prime</oai:setSpec>"
+                + "</oai:header>" + METADATA + "</oai:record>";
+        HeaderCapturingWriter w = capture(xml);
+        assertFalse(w.isComplete());
+        assertNull(w.getDatestamp());
+        assertEquals(0, w.getSetSpecs().size());
+        assertParity(xml, false);
+    }
+
+    @Test
+    public void testGivesUpAfterMaxScanChars() throws Exception {
+        StringBuffer padding = new StringBuffer();
+        while (padding.length() < HeaderCapturingWriter.MAX_SCAN_CHARS) {
+            padding.append("<!-- padding padding padding padding padding -->\n");
+        }
+        String xml = record("<header>"
+                + "<identifier>oai:example.org:item1</identifier>"
+                + padding
+                + "<datestamp>2005-01-01</datestamp>"
+                + "<setSpec>prime</setSpec>"
+                + "</header>");
+        HeaderCapturingWriter w = capture(xml);
+        assertFalse(w.isComplete());
+        assertParity(xml, false);
+    }
+
+    @Test
+    public void testGivesUpOnDoctype() throws Exception {
+        String xml = "<!DOCTYPE record [ <!ENTITY x \"y\"> ]>"
+                + record("<header>"
+                + "<datestamp>2005-01-01</datestamp>"
+                + "<setSpec>&x;</setSpec>"
+                + "</header>");
+        HeaderCapturingWriter w = capture(xml);
+        assertFalse(w.isComplete());
+        assertParity(xml, false);
+    }
+
+    @Test
+    public void testGivesUpOnUnknownReference() throws Exception {
+        HeaderCapturingWriter w = capture(record("<header>"
+                + "<datestamp>2005-01-01</datestamp>"
+                + "<setSpec>&x;</setSpec>"
+                + "</header>"));
+        assertFalse(w.isComplete());
+    }
+
+    @Test
+    public void testGivesUpOnNestedValue() throws Exception {
+        HeaderCapturingWriter w = capture(record("<header>"
+                + "<setSpec><datestamp>2005-01-01</datestamp></setSpec>"
+                + "</header>"));
+        assertFalse(w.isComplete());
+    }
+
+    @Test
+    public void testPassesContentThroughUnchanged() throws Exception {
+        String xml = record("<header><datestamp>2005-01-01</datestamp></header>");
+        StringWriter out = new StringWriter();
+        HeaderCapturingWriter w = new HeaderCapturingWriter(out);
+        w.write(xml.substring(0, 10));
+        w.write(xml.charAt(10));
+        char[] rest = xml.substring(11).toCharArray();
+        w.write(rest, 0, rest.length);
+        w.close();
+        assertEquals(xml, out.toString());
+        assertTrue(w.isComplete());
+    }
+
+    @Test
+    public void testSameResultWhenWrittenOneCharAtATime() throws Exception {
+        String xml = record("<header>"
+                + "<datestamp><![CDATA[2005-]]>01-01</datestamp>"
+                + "<setSpec>a&amp;<!-- c -->b</setSpec>"
+                + "</header>");
+        HeaderCapturingWriter w = new HeaderCapturingWriter(new StringWriter());
+        for (int i = 0; i < xml.length(); i++) {
+            w.write(xml.charAt(i));
+        }
+        w.close();
+        assertTrue(w.isComplete());
+        assertEquals("2005-01-01", w.getDatestamp());
+        assertEquals(Arrays.asList("a&b"), w.getSetSpecs());
+    }
+
+    @Test
+    public void testMalformedRecordIsRejectedUnlessValidated() throws Exception {
+        String xml = record("<header><datestamp>2005-01-01</datestamp></header>")
+                .replace("</dc>", "");
+        RCDiskWriter writer = new RCDiskWriter(m_dir, "record.xml");
+        writer.print(xml);
+        writer.close();
+        assertTrue(writer.hasCapturedHeader());
+        try {
+            writer.getParsedRecord("item", "oai_dc", false);
+            fail("Malformed record was accepted");
+        } catch (ServerException e) {
+        }
+    }
+
+    private static String record(String header) {
+        return "<record>" + header + METADATA + "</record>";
+    }
+
+    private static HeaderCapturingWriter capture(String xml) throws IOException {
+        HeaderCapturingWriter w = new HeaderCapturingWriter(new StringWriter());
+        w.write(xml);
+        w.close();
+        return w;
+    }
+
+    /**
+     * Write the xml through an RCDiskWriter and check that the header
+     * values it gives are the same as those of a full SAX parse.
+     */
+    private void assertParity(String xml, boolean expectCaptured) throws Exception {
+        RCDiskWriter writer = new RCDiskWriter(m_dir, "record.xml");
+        writer.print(xml);
+        writer.close();
+        assertEquals(expectCaptured, writer.hasCapturedHeader());
+
+        ParsedRecord captured = writer.getParsedRecord("item", "oai_dc", true);
+        ParsedRecord parsed = new ParsedRecord("item", "oai_dc", "record.xml",
+                writer.getFile());
+        assertEquals(parsed.getDate(), captured.getDate());
+        assertEquals(new ArrayList<String>(parsed.getSetSpecs()),
+                new ArrayList<String>(captured.getSetSpecs()));
+    }
+
+}
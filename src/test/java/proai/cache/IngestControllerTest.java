@@ -0,0 +1,173 @@
+package proai.cache;
+
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class IngestControllerTest {
+
+    private static final long INTERVAL = IngestController.ADJUST_INTERVAL_MILLIS;
+
+    private static final int MAX_COMMIT_QUEUE_SIZE = 100;
+
+    /**
+     * Feeds the controller cumulative totals one interval at a time.
+     */
+    private static class Round {
+
+        IngestController controller;
+        long now = 1000000;
+        long fetchTime;
+        int attempted;
+        long commitTime;
+        int transactions;
+        int processed;
+
+        Round(IngestController controller, int suggestedWorkers) {
+            this.controller = controller;
+            controller.startRound(suggestedWorkers, now);
+        }
+
+        /**
+         * Report one interval's worth of work.
+         */
+        void tick(int records,
+                  long fetchMillisPerRecord,
+                  int newTransactions,
+                  long commitMillisPerTransaction,
+                  int commitQueueSize) {
+            now += INTERVAL;
+            fetchTime += records * fetchMillisPerRecord;
+            attempted += records;
+            commitTime += newTransactions * commitMillisPerTransaction;
+            transactions += newTransactions;
+            processed += records;
+            controller.adjust(fetchTime, attempted, commitTime, transactions,
+                    processed, commitQueueSize, MAX_COMMIT_QUEUE_SIZE, 1, now);
+        }
+    }
+
+    @Test
+    public void testFirstRoundStartsWithSuggestedWorkers() {
+        assertEquals(6, new IngestController(10, 100).startRound(6, 0));
+        assertEquals(10, new IngestController(10, 100).startRound(25, 0));
+        assertEquals(1, new IngestController(10, 100).startRound(0, 0));
+    }
+
+    @Test
+    public void testLaterRoundsStartWithLearnedWorkers() {
+        IngestController controller = new IngestController(10, 100);
+        Round round = new Round(controller, 8);
+        round.tick(100, 100, 2, 100, MAX_COMMIT_QUEUE_SIZE);  // lagging: 8 -> 6
+        assertEquals(6, controller.getTargetWorkers());
+        assertEquals(6, controller.startRound(8, round.now));
+        assertEquals(3, controller.startRound(3, round.now));
+    }
+
+    @Test
+    public void testSteadyThroughputAddsOneWorkerPerInterval() {
+        IngestController controller = new IngestController(6, 100);
+        Round round = new Round(controller, 4);
+        round.tick(100, 100, 2, 100, 0);
+        assertEquals(5, controller.getTargetWorkers());
+        round.tick(100, 100, 2, 100, 0);
+        assertEquals(6, controller.getTargetWorkers());
+        round.tick(100, 100, 2, 100, 0);
+        assertEquals(6, controller.getTargetWorkers());  // at maxWorkers
+        assertEquals(100, controller.getTransactionSize());
+    }
+
+    @Test
+    public void testFallingThroughputHoldsWorkers() {
+        IngestController controller = new IngestController(10, 100);
+        Round round = new Round(controller, 4);
+        round.tick(100, 100, 2, 100, 0);
+        assertEquals(5, controller.getTargetWorkers());
+        round.tick(50, 100, 1, 100, 0);
+        assertEquals(5, controller.getTargetWorkers());
+    }
+
+    @Test
+    public void testLaggingCommitsRetireAQuarterOfWorkers() {
+        IngestController controller = new IngestController(10, 100);
+        Round round = new Round(controller, 8);
+
+        // commit queue more than half full
+        round.tick(100, 100, 2, 100, MAX_COMMIT_QUEUE_SIZE / 2 + 1);
+        assertEquals(6, controller.getTargetWorkers());
+
+        // committer busy for more than 90% of the interval
+        round.tick(100, 100, 10, (INTERVAL * 95 / 100) / 10, 0);
+        assertEquals(5, controller.getTargetWorkers());
+
+        // never below one
+        for (int i = 0; i < 10; i++) {
+            round.tick(100, 100, 2, 100, MAX_COMMIT_QUEUE_SIZE);
+        }
+        assertEquals(1, controller.getTargetWorkers());
+    }
+
+    @Test
+    public void testSlowingSourceRetiresWorkers() {
+        IngestController controller = new IngestController(10, 100);
+        Round round = new Round(controller, 8);
+        round.tick(100, 100, 2, 100, 0);   // baseline 100ms, 8 -> 9
+        assertEquals(9, controller.getTargetWorkers());
+        round.tick(100, 300, 2, 100, 0);   // 3x baseline, 9 -> 7
+        assertEquals(7, controller.getTargetWorkers());
+    }
+
+    @Test
+    public void testSlowTransactionsHalveTransactionSize() {
+        IngestController controller = new IngestController(10, 100);
+        Round round = new Round(controller, 4);
+        round.tick(100, 100, 2, 1500, 0);
+        assertEquals(50, controller.getTransactionSize());
+        round.tick(100, 100, 2, 1500, 0);
+        assertEquals(25, controller.getTransactionSize());
+        for (int i = 0; i < 10; i++) {
+            round.tick(100, 100, 2, 1500, 0);
+        }
+        assertEquals(1, controller.getTransactionSize());
+    }
+
+    @Test
+    public void testCheapLaggingTransactionsGrowUpToMax() {
+        IngestController controller = new IngestController(10, 100);
+        Round round = new Round(controller, 4);
+        round.tick(100, 100, 2, 1500, 0);
+        round.tick(100, 100, 2, 1500, 0);
+        assertEquals(25, controller.getTransactionSize());
+        round.tick(100, 100, 2, 100, MAX_COMMIT_QUEUE_SIZE);
+        assertEquals(31, controller.getTransactionSize());
+        for (int i = 0; i < 20; i++) {
+            round.tick(100, 100, 2, 100, MAX_COMMIT_QUEUE_SIZE);
+        }
+        assertEquals(100, controller.getTransactionSize());
+    }
+
+    @Test
+    public void testOnlyRetiredWorkersClearPendingRetirements() {
+        IngestController controller = new IngestController(10, 100);
+        Round round = new Round(controller, 3);
+        for (int i = 0; i < 3; i++) controller.workerStarted();
+        round.tick(100, 100, 2, 100, MAX_COMMIT_QUEUE_SIZE);  // 3 -> 2
+        assertEquals(2, controller.getTargetWorkers());
+
+        assertTrue(controller.shouldRetire());
+        assertFalse(controller.shouldRetire());
+        assertEquals(2, controller.getRunningWorkers());
+
+        // a worker that ran out of work doesn't clear the pending retirement
+        controller.workerFinished(false);
+        assertEquals(1, controller.getRunningWorkers());
+        assertFalse(controller.shouldRetire());
+
+        controller.workerFinished(true);
+        assertEquals(1, controller.getRunningWorkers());
+        assertFalse(controller.shouldRetire());
+    }
+
+}
@@ -0,0 +1,67 @@
+package proai.cache;
+
+import org.junit.Test;
+
+import java.util.HashMap;
+import java.util.Map;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+
+public class KeyCacheTest {
+
+    @Test
+    public void testEvictsLeastRecentlyUsedAtMaxSize() {
+        KeyCache cache = new KeyCache(2, 0);
+        long gen = cache.getGeneration();
+        cache.put("a", 1, gen);
+        cache.put("b", 2, gen);
+        assertEquals(Integer.valueOf(1), cache.get("a")); // b is now eldest
+        cache.put("c", 3, gen);
+        assertNull(cache.get("b"));
+        assertEquals(Integer.valueOf(1), cache.get("a"));
+        assertEquals(Integer.valueOf(3), cache.get("c"));
+    }
+
+    @Test
+    public void testZeroSizeCachesNothing() {
+        KeyCache cache = new KeyCache(0, 0);
+        cache.put("a", 1, cache.getGeneration());
+        assertNull(cache.get("a"));
+    }
+
+    @Test
+    public void testExpiresAfterMaxAge() throws Exception {
+        KeyCache cache = new KeyCache(10, 50);
+        cache.put("a", 1, cache.getGeneration());
+        assertEquals(Integer.valueOf(1), cache.get("a"));
+        Thread.sleep(150);
+        assertNull(cache.get("a"));
+    }
+
+    @Test
+    public void testInvalidateClearsEntries() {
+        KeyCache cache = new KeyCache(10, 0);
+        cache.put("a", 1, cache.getGeneration());
+        cache.invalidate();
+        assertNull(cache.get("a"));
+    }
+
+    @Test
+    public void testIgnoresPutFromStaleGeneration() {
+        KeyCache cache = new KeyCache(10, 0);
+        long gen = cache.getGeneration();
+        cache.invalidate();
+        cache.put("a", 1, gen);
+        assertNull(cache.get("a"));
+
+        Map<String, Integer> keys = new HashMap<String, Integer>();
+        keys.put("b", 2);
+        cache.putAll(keys, gen);
+        assertNull(cache.get("b"));
+
+        cache.putAll(keys, cache.getGeneration());
+        assertEquals(Integer.valueOf(2), cache.get("b"));
+    }
+
+}
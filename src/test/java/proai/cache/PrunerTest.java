@@ -0,0 +1,207 @@
+package proai.cache;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import proai.util.McKoiDDLConverter;
+
+import java.io.File;
+import java.sql.Connection;
+import java.sql.DriverManager;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Runs against the test database.
+ */
+public class PrunerTest {
+
+    private static final String DB_URL =
+            "jdbc:mckoi:local://target/test-classes/mckoi.conf?create_or_boot=true";
+
+    private static final long TIMEOUT_MILLIS = 30000;
+
+    /**
+     * A Pruner that gets its connections straight from the driver
+     * rather than from the RecordCache pool.
+     */
+    private static class TestPruner extends Pruner {
+
+        TestPruner(RCDatabase db, RCDisk disk, int threads, int batchSize) {
+            super(db, disk, threads, batchSize);
+        }
+
+        Connection getConnection() throws SQLException {
+            return DriverManager.getConnection(DB_URL, "proai", "proai");
+        }
+
+        void releaseConnection(Connection conn) {
+            try {
+                conn.close();
+            } catch (SQLException e) {
+            }
+        }
+    }
+
+    private File m_dir;
+    private RCDisk m_disk;
+    private Connection m_conn;
+    private RCDatabase m_db;
+    private Pruner m_pruner;
+    private List<String> m_paths;
+
+    @Before
+    public void setUp() throws Exception {
+        m_dir = File.createTempFile("pruner", "");
+        m_dir.delete();
+        m_disk = new RCDisk(m_dir);
+        Class.forName("com.mckoi.JDBCDriver");
+        m_conn = DriverManager.getConnection(DB_URL, "proai", "proai");
+        m_db = new RCDatabase(m_conn, new McKoiDDLConverter(), false, true,
+                true, 100, 100, m_disk);
+        m_paths = new ArrayList<String>();
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        try {
+            if (m_pruner != null) m_pruner.shutdown();
+            for (String path : m_paths) {
+                execute("DELETE FROM rcPrunable WHERE xmlPath = '" + path + "'");
+            }
+        } finally {
+            m_conn.close();
+            delete(m_dir);
+        }
+    }
+
+    @Test
+    public void testPrunesFilesAndRowsInPages() throws Exception {
+        List<String> paths = new ArrayList<String>();
+        for (int i = 0; i < 11; i++) {
+            paths.add(addPrunable(newFile("record " + i)));
+        }
+        // one that was already deleted, e.g. by an interrupted pass
+        File gone = newFile("gone");
+        paths.add(addPrunable(gone));
+        assertTrue(gone.delete());
+
+        // 12 rows, 3 per page, 2 threads per page
+        m_pruner = new TestPruner(m_db, m_disk, 2, 3);
+        m_pruner.requestPrune();
+        waitForRemoval(paths);
+
+        for (String path : paths) {
+            assertFalse(path, m_disk.getFile(path).exists());
+        }
+    }
+
+    @Test
+    public void testKeepsRowsOfFilesThatCannotBeDeleted() throws Exception {
+        List<String> paths = new ArrayList<String>();
+        for (int i = 0; i < 4; i++) {
+            paths.add(addPrunable(newFile("record " + i)));
+        }
+        // a non-empty directory can't be deleted
+        File stuck = newFile("stuck");
+        stuck.delete();
+        stuck.mkdir();
+        new File(stuck, "child").createNewFile();
+        String stuckPath = addPrunable(stuck);
+        for (int i = 4; i < 8; i++) {
+            paths.add(addPrunable(newFile("record " + i)));
+        }
+
+        m_pruner = new TestPruner(m_db, m_disk, 3, 2);
+        m_pruner.requestPrune();
+        waitForRemoval(paths);
+
+        for (String path : paths) {
+            assertFalse(path, m_disk.getFile(path).exists());
+        }
+        assertTrue(stuck.exists());
+        assertEquals(1, getPrunablePaths(stuckPath).size());
+
+        // once it can be deleted, the next pass gets it
+        delete(stuck);
+        m_pruner.requestPrune();
+        List<String> stuckPaths = new ArrayList<String>();
+        stuckPaths.add(stuckPath);
+        waitForRemoval(stuckPaths);
+    }
+
+    private File newFile(String content) throws Exception {
+        RCDiskWriter writer = m_disk.getNewWriter();
+        writer.print(content);
+        writer.close();
+        return writer.getFile();
+    }
+
+    /**
+     * Add the given file to rcPrunable, and return its path.
+     */
+    private String addPrunable(File file) throws Exception {
+        String path = file.getPath().substring(m_dir.getPath().length() + 1)
+                .replace(File.separatorChar, '/');
+        execute("INSERT INTO rcPrunable (xmlPath) VALUES ('" + path + "')");
+        m_paths.add(path);
+        return path;
+    }
+
+    private void waitForRemoval(List<String> paths) throws Exception {
+        long giveUp = System.currentTimeMillis() + TIMEOUT_MILLIS;
+        Set<String> remaining = getPrunablePaths(paths.toArray(new String[0]));
+        while (remaining.size() > 0 && System.currentTimeMillis() < giveUp) {
+            Thread.sleep(50);
+            remaining = getPrunablePaths(paths.toArray(new String[0]));
+        }
+        assertEquals(new HashSet<String>(), remaining);
+    }
+
+    private Set<String> getPrunablePaths(String... paths) throws Exception {
+        Set<String> found = new HashSet<String>();
+        Statement stmt = m_conn.createStatement();
+        try {
+            for (int i = 0; i < paths.length; i++) {
+                ResultSet results = stmt.executeQuery("SELECT xmlPath "
+                        + "FROM rcPrunable WHERE xmlPath = '" + paths[i] + "'");
+                while (results.next()) {
+                    found.add(results.getString(1));
+                }
+                results.close();
+            }
+        } finally {
+            stmt.close();
+        }
+        return found;
+    }
+
+    private void execute(String sql) throws Exception {
+        Statement stmt = m_conn.createStatement();
+        try {
+            stmt.executeUpdate(sql);
+        } finally {
+            stmt.close();
+        }
+    }
+
+    private static void delete(File file) {
+        File[] children = file.listFiles();
+        if (children != null) {
+            for (int i = 0; i < children.length; i++) {
+                delete(children[i]);
+            }
+        }
+        file.delete();
+    }
+
+}
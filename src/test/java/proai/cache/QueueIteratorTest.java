@@ -0,0 +1,161 @@
+package proai.cache;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+public class QueueIteratorTest {
+
+    private static final int[] WEIGHTS = {8, 2, 1};
+
+    /**
+     * A QueueIterator over in-memory lanes rather than the database.
+     */
+    private static class TestQueueIterator extends QueueIterator {
+
+        private List<List<QueueItem>> _lanes = new ArrayList<List<QueueItem>>();
+        private Map<Integer, Integer> _laneOfKey = new HashMap<Integer, Integer>();
+        private int _nextKey = 1;
+
+        TestQueueIterator(int pageSize, int[] weights, int[] laneSizes) {
+            super(null, pageSize, "test", weights);
+            // keys are interleaved across lanes, as they would be in rcQueue
+            for (int lane = 0; lane < laneSizes.length; lane++) {
+                _lanes.add(new ArrayList<QueueItem>());
+            }
+            boolean added = true;
+            for (int i = 0; added; i++) {
+                added = false;
+                for (int lane = 0; lane < laneSizes.length; lane++) {
+                    if (i < laneSizes[lane]) {
+                        int key = _nextKey++;
+                        _lanes.get(lane).add(new QueueItem(key, "item" + key,
+                                "oai_dc", null, 'Q'));
+                        _laneOfKey.put(key, lane);
+                        added = true;
+                    }
+                }
+            }
+        }
+
+        List<QueueItem> getQueuePage(int lane, int afterKey, int pageSize) {
+            List<QueueItem> page = new ArrayList<QueueItem>();
+            for (QueueItem item : _lanes.get(lane)) {
+                if (item.getQueueKey() > afterKey && page.size() < pageSize) {
+                    page.add(item);
+                }
+            }
+            return page;
+        }
+
+        int laneOf(QueueItem item) {
+            return _laneOfKey.get(item.getQueueKey());
+        }
+    }
+
+    @Test
+    public void testInterleavesLanesByWeight() throws Exception {
+        TestQueueIterator iter = new TestQueueIterator(7, WEIGHTS,
+                new int[]{500, 500, 500});
+
+        // every run of 11 has exactly 8, 2, and 1 from each lane
+        for (int run = 0; run < 20; run++) {
+            int[] counts = new int[3];
+            for (int i = 0; i < 11; i++) {
+                assertTrue(iter.hasNext());
+                counts[iter.laneOf(iter.next())]++;
+            }
+            assertEquals(8, counts[0]);
+            assertEquals(2, counts[1]);
+            assertEquals(1, counts[2]);
+        }
+    }
+
+    @Test
+    public void testSpreadsTurnsEvenly() throws Exception {
+        TestQueueIterator iter = new TestQueueIterator(100, WEIGHTS,
+                new int[]{100, 100, 100});
+        // the lowest lane shouldn't have to wait for all of the top lane's turns
+        int lowestAt = -1;
+        for (int i = 0; i < 11 && lowestAt == -1; i++) {
+            if (iter.laneOf(iter.next()) == 2) lowestAt = i;
+        }
+        assertTrue(lowestAt >= 0 && lowestAt < 8);
+    }
+
+    @Test
+    public void testDrainsLowerLanesWhenHigherAreEmpty() throws Exception {
+        TestQueueIterator iter = new TestQueueIterator(7, WEIGHTS,
+                new int[]{4, 200, 400});
+        List<Integer> lanes = new ArrayList<Integer>();
+        int[] lastKey = {0, 0, 0};
+        while (iter.hasNext()) {
+            QueueItem item = iter.next();
+            int lane = iter.laneOf(item);
+            // queueKey order within each lane
+            assertTrue(item.getQueueKey() > lastKey[lane]);
+            lastKey[lane] = item.getQueueKey();
+            lanes.add(lane);
+        }
+        assertEquals(604, lanes.size());
+        assertNull(iter.next());
+
+        // once lane 0 is used up, lanes 1 and 2 continue at 2:1, give or
+        // take the turns lane 2 was owed when lane 0 ran out, which can't
+        // be more than the total weight
+        int firstAfterTop = lanes.lastIndexOf(0) + 1;
+        int lastMiddle = lanes.lastIndexOf(1);
+        int[] counts = new int[3];
+        for (int i = firstAfterTop; i <= lastMiddle; i++) {
+            counts[lanes.get(i)]++;
+        }
+        assertEquals(0, counts[0]);
+        assertTrue(counts[1] >= 190);
+        assertTrue(counts[1] + ":" + counts[2],
+                Math.abs(counts[1] - 2 * counts[2]) <= 8 + 2 + 1);
+
+        // and the rest of lane 2 comes last, on its own
+        for (int i = lastMiddle + 1; i < lanes.size(); i++) {
+            assertEquals(2, lanes.get(i).intValue());
+        }
+        assertTrue(lastMiddle < lanes.size() - 1);
+    }
+
+    @Test
+    public void testLoneLaneGetsAllTurns() throws Exception {
+        TestQueueIterator iter = new TestQueueIterator(4, WEIGHTS,
+                new int[]{0, 0, 9});
+        int count = 0;
+        while (iter.hasNext()) {
+            assertEquals(2, iter.laneOf(iter.next()));
+            count++;
+        }
+        assertEquals(9, count);
+    }
+
+    @Test
+    public void testEmptyQueue() throws Exception {
+        TestQueueIterator iter = new TestQueueIterator(4, WEIGHTS,
+                new int[]{0, 0, 0});
+        assertFalse(iter.hasNext());
+        assertNull(iter.next());
+    }
+
+    @Test
+    public void testClose() throws Exception {
+        TestQueueIterator iter = new TestQueueIterator(4, WEIGHTS,
+                new int[]{5, 5, 5});
+        assertTrue(iter.hasNext());
+        iter.close();
+        assertFalse(iter.hasNext());
+    }
+
+}
@@ -0,0 +1,234 @@
+package proai.cache;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import proai.util.McKoiDDLConverter;
+
+import java.sql.Connection;
+import java.sql.DriverManager;
+import java.sql.ResultSet;
+import java.sql.Statement;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Runs against the test database.
+ */
+public class RCDatabaseTest {
+
+    private static final String DB_URL =
+            "jdbc:mckoi:local://target/test-classes/mckoi.conf?create_or_boot=true";
+
+    private static final String ID_PREFIX = "oai:rcdatabasetest:";
+
+    private static final String A = ID_PREFIX + "a";
+    private static final String B = ID_PREFIX + "b";
+    private static final String C = ID_PREFIX + "c";
+
+    private static final String OWNER = "node1";
+
+    private Connection m_conn;
+    private RCDatabase m_db;
+    private long m_now;
+
+    @Before
+    public void setUp() throws Exception {
+        Class.forName("com.mckoi.JDBCDriver");
+        m_conn = DriverManager.getConnection(DB_URL, "proai", "proai");
+        m_db = new RCDatabase(m_conn, new McKoiDDLConverter(), false, true,
+                true, 100, 100, null);
+        deleteRows();
+        m_now = System.currentTimeMillis();
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        try {
+            deleteRows();
+        } finally {
+            m_conn.close();
+        }
+    }
+
+    @Test
+    public void testCollapseDuplicatesFoldsSameRecord() throws Exception {
+        enqueue('P', QueueItem.PRIORITY_BULK, new String[][]{
+                {A, "oai_dc", "a1"},
+                {B, "oai_dc", "b1"},
+                {A, "oai_dc", "a2"},
+                {A, "test_format", "a-tf"},
+                {C, "oai_dc", "c1"}});
+        enqueue('R', QueueItem.PRIORITY_URGENT, new String[][]{
+                {B, "oai_dc", "b2"}});
+        enqueue('F', QueueItem.PRIORITY_RETRY, new String[][]{
+                {A, "oai_dc", "a3"}});
+        enqueue('P', QueueItem.PRIORITY_BULK, new String[][]{
+                {A, "oai_dc", "a-held"},
+                {A, "oai_dc", "a-mine"},
+                {A, "oai_dc", "a-expired"}});
+        Map<String, Integer> keys = getKeys();
+        lease(keys.get("a-held"), "node2", m_now + 60000);
+        lease(keys.get("a-expired"), "node2", m_now - 1);
+        // as if in another batch this node is already processing
+        lease(keys.get("a-mine"), OWNER, m_now + 60000);
+
+        // a batch with a duplicate of its own
+        List<QueueItem> batch = claim(new String[][]{
+                {A, "oai_dc", "a1"},
+                {B, "oai_dc", "b1"},
+                {A, "oai_dc", "a2"}}, keys);
+        assertEquals(3, batch.size());
+
+        List<QueueItem> collapsed = m_db.collapseDuplicates(m_conn, batch,
+                OWNER, m_now, m_now + 60000);
+        assertEquals(2, collapsed.size());
+
+        // the rows for A/oai_dc that weren't under a live lease are folded
+        // into the first
+        QueueItem a = collapsed.get(0);
+        assertSame(batch.get(0), a);
+        assertEquals(keys.get("a1").intValue(), a.getQueueKey());
+        assertEquals(new HashSet<Integer>(Arrays.asList(keys.get("a2"),
+                keys.get("a3"), keys.get("a-expired"))),
+                new HashSet<Integer>(a.getSupersededKeys()));
+        assertEquals("a-expired", a.getSourceInfo());
+        assertEquals('F', a.getQueueSource());
+
+        // rows in other lanes are folded in too
+        QueueItem b = collapsed.get(1);
+        assertSame(batch.get(1), b);
+        assertEquals(Arrays.asList(keys.get("b2")), b.getSupersededKeys());
+        assertEquals("b2", b.getSourceInfo());
+        assertEquals('P', b.getQueueSource());
+
+        // removing the collapsed items removes the rows folded into them,
+        // but not those for another prefix or under a live lease
+        List<QueueItem> removed = m_db.removeQueueItems(m_conn, collapsed, OWNER);
+        assertEquals(2, removed.size());
+        assertEquals(new HashSet<String>(Arrays.asList("a-tf", "c1", "a-held",
+                "a-mine")), getKeys().keySet());
+    }
+
+    @Test
+    public void testCollapseDuplicatesWithoutDuplicates() throws Exception {
+        enqueue('P', QueueItem.PRIORITY_BULK, new String[][]{
+                {A, "oai_dc", "a1"},
+                {A, "test_format", "a-tf"},
+                {B, "oai_dc", "b1"}});
+        Map<String, Integer> keys = getKeys();
+        List<QueueItem> batch = claim(new String[][]{
+                {A, "oai_dc", "a1"},
+                {B, "oai_dc", "b1"}}, keys);
+
+        List<QueueItem> collapsed = m_db.collapseDuplicates(m_conn, batch,
+                OWNER, m_now, m_now + 60000);
+        assertEquals(batch, collapsed);
+        for (QueueItem item : collapsed) {
+            assertEquals(0, item.getSupersededKeys().size());
+        }
+        assertEquals(3, getKeys().size());
+    }
+
+    @Test
+    public void testPollLeaseRenewal() throws Exception {
+        execute("UPDATE rcAdmin SET pollLeaseOwner = NULL, pollLeaseExpires = NULL");
+        try {
+            assertTrue(m_db.claimPollLease(m_conn, OWNER, m_now, m_now + 60000));
+            assertFalse(m_db.claimPollLease(m_conn, "node2", m_now, m_now + 60000));
+
+            // the owner can renew while it holds the lease
+            assertTrue(m_db.claimPollLease(m_conn, OWNER, m_now + 30000,
+                    m_now + 90000));
+            assertFalse(m_db.claimPollLease(m_conn, "node2", m_now + 60000,
+                    m_now + 120000));
+
+            // once it has expired, another node can take it over, and the
+            // original owner can no longer renew it
+            assertTrue(m_db.claimPollLease(m_conn, "node2", m_now + 90001,
+                    m_now + 150000));
+            assertFalse(m_db.claimPollLease(m_conn, OWNER, m_now + 90002,
+                    m_now + 150000));
+
+            // releasing is only done by the owner
+            m_db.releasePollLease(m_conn, OWNER);
+            assertFalse(m_db.claimPollLease(m_conn, OWNER, m_now + 90003,
+                    m_now + 150000));
+            m_db.releasePollLease(m_conn, "node2");
+            assertTrue(m_db.claimPollLease(m_conn, OWNER, m_now + 90004,
+                    m_now + 150000));
+        } finally {
+            m_db.releasePollLease(m_conn, OWNER);
+            m_db.releasePollLease(m_conn, "node2");
+        }
+    }
+
+    private void enqueue(char queueSource,
+                         int priority,
+                         String[][] rows) throws Exception {
+        RCQueueWriter writer = m_db.getQueueWriter(m_conn, queueSource, priority);
+        for (int i = 0; i < rows.length; i++) {
+            writer.add(rows[i][0], rows[i][1], rows[i][2]);
+        }
+        writer.close();
+    }
+
+    private List<QueueItem> claim(String[][] rows,
+                                  Map<String, Integer> keys) throws Exception {
+        List<QueueItem> items = new ArrayList<QueueItem>();
+        for (int i = 0; i < rows.length; i++) {
+            items.add(new QueueItem(keys.get(rows[i][2]).intValue(),
+                    rows[i][0], rows[i][1], rows[i][2], 'P'));
+        }
+        return m_db.claimQueueItems(m_conn, items, OWNER, m_now, m_now + 60000);
+    }
+
+    private void lease(int queueKey, String leaseOwner, long leaseExpires)
+            throws Exception {
+        execute("UPDATE rcQueue SET leaseOwner = '" + leaseOwner + "', "
+                + "leaseExpires = " + leaseExpires + " "
+                + "WHERE queueKey = " + queueKey);
+    }
+
+    /**
+     * Get the queueKeys of this test's rows in rcQueue, by sourceInfo.
+     */
+    private Map<String, Integer> getKeys() throws Exception {
+        Map<String, Integer> keys = new HashMap<String, Integer>();
+        Statement stmt = m_conn.createStatement();
+        try {
+            ResultSet results = stmt.executeQuery("SELECT sourceInfo, queueKey "
+                    + "FROM rcQueue WHERE identifier LIKE '" + ID_PREFIX + "%'");
+            while (results.next()) {
+                keys.put(results.getString(1), new Integer(results.getInt(2)));
+            }
+            results.close();
+        } finally {
+            stmt.close();
+        }
+        return keys;
+    }
+
+    private void deleteRows() throws Exception {
+        execute("DELETE FROM rcQueue WHERE identifier LIKE '" + ID_PREFIX + "%'");
+    }
+
+    private void execute(String sql) throws Exception {
+        Statement stmt = m_conn.createStatement();
+        try {
+            stmt.executeUpdate(sql);
+        } finally {
+            stmt.close();
+        }
+    }
+
+}
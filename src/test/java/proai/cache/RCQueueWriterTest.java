@@ -0,0 +1,226 @@
+package proai.cache;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import proai.error.ServerException;
+import proai.util.McKoiDDLConverter;
+
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.sql.Connection;
+import java.sql.DatabaseMetaData;
+import java.sql.DriverManager;
+import java.sql.ResultSet;
+import java.sql.Statement;
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.fail;
+
+/**
+ * Runs against the test database.
+ */
+public class RCQueueWriterTest {
+
+    private static final String DB_URL =
+            "jdbc:mckoi:local://target/test-classes/mckoi.conf?create_or_boot=true";
+
+    private static final String ID_PREFIX = "oai:rcqueuewritertest:";
+
+    private Connection m_conn;
+    private RCDatabase m_db;
+
+    @Before
+    public void setUp() throws Exception {
+        Class.forName("com.mckoi.JDBCDriver");
+        m_conn = DriverManager.getConnection(DB_URL, "proai", "proai");
+        m_db = new RCDatabase(m_conn, new McKoiDDLConverter(), false, true,
+                true, 100, 100, null);
+        deleteRows();
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        try {
+            deleteRows();
+        } finally {
+            m_conn.close();
+        }
+    }
+
+    @Test
+    public void testSendsFullBatches() throws Exception {
+        RCQueueWriter writer = new RCQueueWriter(m_conn, 'P',
+                QueueItem.PRIORITY_BULK, 3, true);
+        for (int i = 1; i <= 7; i++) {
+            writer.add(ID_PREFIX + i, "oai_dc", "info" + i);
+            assertEquals(i, writer.getCount());
+            // only whole batches have been sent so far
+            assertEquals((i / 3) * 3, getRows().size());
+        }
+        writer.close();
+
+        List<String[]> rows = getRows();
+        assertEquals(7, rows.size());
+        for (int i = 0; i < rows.size(); i++) {
+            assertRow(rows.get(i), ID_PREFIX + (i + 1), "oai_dc",
+                    "info" + (i + 1), 'P', QueueItem.PRIORITY_BULK);
+        }
+    }
+
+    @Test
+    public void testQueueWriterUsesGivenLaneAndSource() throws Exception {
+        RCQueueWriter writer = m_db.getQueueWriter(m_conn, 'R',
+                QueueItem.PRIORITY_URGENT);
+        for (int i = 0; i < 250; i++) {
+            writer.add(ID_PREFIX + i, "test_format", "it's #" + i);
+        }
+        writer.close();
+
+        List<String[]> rows = getRows();
+        assertEquals(250, rows.size());
+        for (int i = 0; i < rows.size(); i++) {
+            assertRow(rows.get(i), ID_PREFIX + i, "test_format", "it's #" + i,
+                    'R', QueueItem.PRIORITY_URGENT);
+        }
+    }
+
+    @Test
+    public void testMultiRowInsertsWithoutBatchUpdates() throws Exception {
+        RCQueueWriter writer = new RCQueueWriter(withoutBatchUpdates(m_conn),
+                'F', QueueItem.PRIORITY_RETRY, 4, true);
+        for (int i = 1; i <= 10; i++) {
+            writer.add(ID_PREFIX + i, "oai_dc", "it's \"" + i + "\"");
+            assertEquals((i / 4) * 4, getRows().size());
+        }
+        writer.close();
+
+        List<String[]> rows = getRows();
+        assertEquals(10, rows.size());
+        for (int i = 0; i < rows.size(); i++) {
+            assertRow(rows.get(i), ID_PREFIX + (i + 1), "oai_dc",
+                    "it's \"" + (i + 1) + "\"", 'F', QueueItem.PRIORITY_RETRY);
+        }
+    }
+
+    @Test
+    public void testDiscardDropsPendingRows() throws Exception {
+        RCQueueWriter writer = new RCQueueWriter(m_conn, 'P',
+                QueueItem.PRIORITY_BULK, 3, true);
+        for (int i = 1; i <= 5; i++) {
+            writer.add(ID_PREFIX + i, "oai_dc", "info" + i);
+        }
+        writer.discard();
+        writer.discard();
+        assertEquals(3, getRows().size());
+    }
+
+    @Test
+    public void testRejectsNewlineInSourceInfo() throws Exception {
+        RCQueueWriter writer = new RCQueueWriter(m_conn, 'P',
+                QueueItem.PRIORITY_BULK, 3, true);
+        try {
+            writer.add(ID_PREFIX + 1, "oai_dc", "bad\ninfo");
+            fail("sourceInfo with newline was accepted");
+        } catch (ServerException e) {
+        }
+        writer.close();
+        assertEquals(0, getRows().size());
+    }
+
+    private static void assertRow(String[] row,
+                                  String identifier,
+                                  String mdPrefix,
+                                  String sourceInfo,
+                                  char queueSource,
+                                  int priority) {
+        assertEquals(identifier, row[0]);
+        assertEquals(mdPrefix, row[1]);
+        assertEquals(sourceInfo, row[2]);
+        assertEquals(String.valueOf(queueSource), row[3]);
+        assertEquals(String.valueOf(priority), row[4]);
+    }
+
+    /**
+     * Get this test's rows from rcQueue, in queueKey order.
+     */
+    private List<String[]> getRows() throws Exception {
+        List<String[]> rows = new ArrayList<String[]>();
+        Statement stmt = m_conn.createStatement();
+        try {
+            ResultSet results = stmt.executeQuery("SELECT identifier, "
+                    + "mdPrefix, sourceInfo, queueSource, priority "
+                    + "FROM rcQueue WHERE identifier LIKE '" + ID_PREFIX + "%' "
+                    + "ORDER BY queueKey ASC");
+            while (results.next()) {
+                rows.add(new String[]{results.getString(1),
+                        results.getString(2),
+                        results.getString(3),
+                        results.getString(4),
+                        String.valueOf(results.getInt(5))});
+            }
+            results.close();
+        } finally {
+            stmt.close();
+        }
+        return rows;
+    }
+
+    private void deleteRows() throws Exception {
+        Statement stmt = m_conn.createStatement();
+        try {
+            stmt.executeUpdate("DELETE FROM rcQueue "
+                    + "WHERE identifier LIKE '" + ID_PREFIX + "%'");
+        } finally {
+            stmt.close();
+        }
+    }
+
+    /**
+     * Wrap the given connection so its driver appears not to support
+     * batch updates.
+     */
+    private static Connection withoutBatchUpdates(final Connection conn) throws Exception {
+        final DatabaseMetaData metaData = (DatabaseMetaData) Proxy.newProxyInstance(
+                DatabaseMetaData.class.getClassLoader(),
+                new Class[]{DatabaseMetaData.class},
+                new InvocationHandler() {
+                    public Object invoke(Object proxy, Method method, Object[] args)
+                            throws Throwable {
+                        if (method.getName().equals("supportsBatchUpdates")) {
+                            return Boolean.FALSE;
+                        }
+                        return invokeOn(conn.getMetaData(), method, args);
+                    }
+                });
+        return (Connection) Proxy.newProxyInstance(
+                Connection.class.getClassLoader(),
+                new Class[]{Connection.class},
+                new InvocationHandler() {
+                    public Object invoke(Object proxy, Method method, Object[] args)
+                            throws Throwable {
+                        if (method.getName().equals("getMetaData")) {
+                            return metaData;
+                        }
+                        if (method.getName().equals("prepareStatement")) {
+                            fail("Statement was prepared without batch updates");
+                        }
+                        return invokeOn(conn, method, args);
+                    }
+                });
+    }
+
+    private static Object invokeOn(Object target, Method method, Object[] args)
+            throws Throwable {
+        try {
+            return method.invoke(target, args);
+        } catch (InvocationTargetException e) {
+            throw e.getCause();
+        }
+    }
+
+}
@@ -0,0 +1,74 @@
+package proai.cache;
+
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+public class RetryScheduleTest {
+
+    private static final long NOW = 1000000000000L;
+
+    @Test
+    public void testDelayDoublesPerFailure() {
+        RetrySchedule schedule = new RetrySchedule(60, 1000000);
+        assertEquals(60000, schedule.getDelay(0));
+        assertEquals(120000, schedule.getDelay(1));
+        assertEquals(240000, schedule.getDelay(2));
+        assertEquals(480000, schedule.getDelay(3));
+        assertEquals(60000L << 10, schedule.getDelay(10));
+    }
+
+    @Test
+    public void testDelayIsClampedAtMax() {
+        RetrySchedule schedule = new RetrySchedule(60, 300);
+        assertEquals(240000, schedule.getDelay(2));
+        assertEquals(300000, schedule.getDelay(3));
+        assertEquals(300000, schedule.getDelay(4));
+        assertEquals(300000, schedule.getDelay(100));
+    }
+
+    @Test
+    public void testMaxBelowBaseUsesBase() {
+        RetrySchedule schedule = new RetrySchedule(600, 60);
+        assertEquals(600000, schedule.getDelay(0));
+        assertEquals(600000, schedule.getDelay(5));
+    }
+
+    @Test
+    public void testJitterStaysWithinBounds() {
+        RetrySchedule schedule = new RetrySchedule(60, 3600);
+        for (int failCount = 0; failCount < 10; failCount++) {
+            long delay = schedule.getDelay(failCount);
+            long min = Long.MAX_VALUE;
+            long max = Long.MIN_VALUE;
+            for (int i = 0; i < 1000; i++) {
+                long next = schedule.getNextAttemptDate(failCount, NOW) - NOW;
+                assertTrue(next + " < half of " + delay, next >= delay / 2);
+                assertTrue(next + " > " + delay, next <= delay);
+                if (next < min) min = next;
+                if (next > max) max = next;
+            }
+            // and it actually varies
+            assertTrue(max > min);
+        }
+    }
+
+    @Test
+    public void testNoOverflowAtHighFailCounts() {
+        RetrySchedule schedule = new RetrySchedule(Integer.MAX_VALUE / 2,
+                Integer.MAX_VALUE);
+        long max = Integer.MAX_VALUE * 1000L;
+        int[] failCounts = {30, 62, 63, 64, 1000, Integer.MAX_VALUE};
+        for (int i = 0; i < failCounts.length; i++) {
+            assertEquals(max, schedule.getDelay(failCounts[i]));
+            long next = schedule.getNextAttemptDate(failCounts[i], NOW);
+            assertTrue(next >= NOW + max / 2);
+            assertTrue(next <= NOW + max);
+        }
+
+        schedule = new RetrySchedule(1, 86400);
+        assertEquals(86400000, schedule.getDelay(Integer.MAX_VALUE));
+    }
+
+}
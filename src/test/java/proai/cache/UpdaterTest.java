@@ -0,0 +1,116 @@
+package proai.cache;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import proai.util.McKoiDDLConverter;
+import proai.util.StreamUtil;
+
+import java.sql.Connection;
+import java.sql.DriverManager;
+import java.sql.ResultSet;
+import java.sql.Statement;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.TimeZone;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Runs against the test database.
+ */
+public class UpdaterTest {
+
+    private static final String DB_URL =
+            "jdbc:mckoi:local://target/test-classes/mckoi.conf?create_or_boot=true";
+
+    // not used by any real item
+    private static final int ITEM_KEY = -4242;
+
+    private Connection m_conn;
+    private RCDatabase m_db;
+    private TimeZone m_timeZone;
+
+    @Before
+    public void setUp() throws Exception {
+        Class.forName("com.mckoi.JDBCDriver");
+        m_conn = DriverManager.getConnection(DB_URL, "proai", "proai");
+        m_db = new RCDatabase(m_conn, new McKoiDDLConverter(), false, true,
+                true, 100, 100, null);
+        deleteRows();
+        m_timeZone = TimeZone.getDefault();
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        TimeZone.setDefault(m_timeZone);
+        try {
+            deleteRows();
+        } finally {
+            m_conn.close();
+        }
+    }
+
+    @Test
+    public void testUndatedRecordsGetUTCDate() throws Exception {
+        // west of UTC, so a local date would be hours off
+        TimeZone.setDefault(TimeZone.getTimeZone("America/New_York"));
+        execute("INSERT INTO rcRecord (itemKey, formatKey, modDate, xmlPath) "
+                + "VALUES (" + ITEM_KEY + ", 1, NULL, 'undated1')");
+        execute("INSERT INTO rcRecord (itemKey, formatKey, modDate, xmlPath) "
+                + "VALUES (" + ITEM_KEY + ", 2, NULL, 'undated2')");
+        execute("INSERT INTO rcRecord (itemKey, formatKey, modDate, xmlPath) "
+                + "VALUES (" + ITEM_KEY + ", 3, 1000, 'dated')");
+
+        long before = StreamUtil.nowUTC().getTime();
+        int count = Updater.dateUncommittedRecords(m_db, m_conn);
+        long after = StreamUtil.nowUTC().getTime();
+
+        assertTrue(count >= 2);
+        List<Long> dates = getModDates();
+        assertEquals(3, dates.size());
+        assertEquals(1000, dates.get(2).longValue());
+        for (int i = 0; i < 2; i++) {
+            long date = dates.get(i).longValue();
+            assertTrue(date + " < " + before, date >= before);
+            assertTrue(date + " > " + after, date <= after);
+        }
+
+        // and only once
+        assertEquals(0, Updater.dateUncommittedRecords(m_db, m_conn));
+    }
+
+    /**
+     * Get the modDates of this test's records, in formatKey order.
+     */
+    private List<Long> getModDates() throws Exception {
+        List<Long> dates = new ArrayList<Long>();
+        Statement stmt = m_conn.createStatement();
+        try {
+            ResultSet results = stmt.executeQuery("SELECT modDate FROM rcRecord "
+                    + "WHERE itemKey = " + ITEM_KEY + " ORDER BY formatKey ASC");
+            while (results.next()) {
+                dates.add(new Long(results.getLong(1)));
+            }
+            results.close();
+        } finally {
+            stmt.close();
+        }
+        return dates;
+    }
+
+    private void deleteRows() throws Exception {
+        execute("DELETE FROM rcRecord WHERE itemKey = " + ITEM_KEY);
+    }
+
+    private void execute(String sql) throws Exception {
+        Statement stmt = m_conn.createStatement();
+        try {
+            stmt.executeUpdate(sql);
+        } finally {
+            stmt.close();
+        }
+    }
+
+}
@@ -0,0 +1,134 @@
+package proai.service;
+
+import org.apache.commons.codec.binary.Base64;
+import org.junit.Test;
+import proai.error.BadResumptionTokenException;
+
+import java.util.Date;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+public class RecordListTokenTest {
+
+    private static final byte[] SECRET = "secret".getBytes();
+
+    @Test
+    public void testRoundTripWithSetAndFrom() throws Exception {
+        Date from = new Date(1104566400000L);
+        Date until = new Date(1111363200000L);
+        String encoded = new RecordListToken(false, "oai_dc", "abovetwo:odd",
+                from, until, 1111000000123L, 42, 500).encode(SECRET);
+        RecordListToken token = RecordListToken.decode(encoded, SECRET);
+        assertFalse(token.isIdentifiers());
+        assertEquals("oai_dc", token.getPrefix());
+        assertEquals("abovetwo:odd", token.getSet());
+        assertEquals(from, token.getFrom());
+        assertEquals(until, token.getUntil());
+        assertEquals(1111000000123L, token.getLastModDate());
+        assertEquals(42, token.getLastRecordKey());
+        assertEquals(500, token.getCursor());
+    }
+
+    @Test
+    public void testRoundTripWithoutSetOrFrom() throws Exception {
+        Date until = new Date(1111363200000L);
+        String encoded = new RecordListToken(true, "test_format", null,
+                null, until, 0, -1, 0).encode(SECRET);
+        RecordListToken token = RecordListToken.decode(encoded, SECRET);
+        assertTrue(token.isIdentifiers());
+        assertEquals("test_format", token.getPrefix());
+        assertNull(token.getSet());
+        assertNull(token.getFrom());
+        assertEquals(until, token.getUntil());
+        assertEquals(0, token.getLastModDate());
+        assertEquals(-1, token.getLastRecordKey());
+        assertEquals(0, token.getCursor());
+    }
+
+    @Test
+    public void testEncodingIsUrlSafe() throws Exception {
+        for (int i = 0; i < 50; i++) {
+            String encoded = newToken(i % 2 == 0, i).encode(SECRET);
+            assertTrue(encoded, encoded.matches("[A-Za-z0-9_-]+"));
+        }
+    }
+
+    @Test
+    public void testRejectsFlippedByte() throws Exception {
+        String encoded = newToken(false, 7).encode(SECRET);
+        byte[] bytes = decodeBase64(encoded);
+        for (int i = 0; i < bytes.length; i++) {
+            byte[] tampered = bytes.clone();
+            tampered[i] ^= 0x01;
+            assertRejected(encodeBase64(tampered), SECRET);
+        }
+    }
+
+    @Test
+    public void testRejectsOtherSecret() throws Exception {
+        String encoded = newToken(false, 7).encode("other".getBytes());
+        assertRejected(encoded, SECRET);
+    }
+
+    @Test
+    public void testRejectsJunk() throws Exception {
+        assertRejected("", SECRET);
+        assertRejected("abc", SECRET);
+        assertRejected("not*base64!", SECRET);
+    }
+
+    @Test
+    public void testRejectsTokenForOtherVerb() throws Exception {
+        // the verb is checked before the cache is used
+        RecordPager pager = new RecordPager(null, SECRET);
+        String identifiersToken = newToken(true, 7).encode(SECRET);
+        try {
+            pager.resume(identifiersToken, false, 10);
+            fail("ListIdentifiers token was accepted for ListRecords");
+        } catch (BadResumptionTokenException e) {
+        }
+        String recordsToken = newToken(false, 7).encode(SECRET);
+        try {
+            pager.resume(recordsToken, true, 10);
+            fail("ListRecords token was accepted for ListIdentifiers");
+        } catch (BadResumptionTokenException e) {
+        }
+    }
+
+    @Test
+    public void testIsRecordListToken() throws Exception {
+        assertTrue(RecordListToken.isRecordListToken(newToken(false, 7).encode(SECRET)));
+        assertFalse(RecordListToken.isRecordListToken("X12345/1"));
+        assertFalse(RecordListToken.isRecordListToken("Z12345/0"));
+    }
+
+    private static RecordListToken newToken(boolean identifiers, int n) {
+        return new RecordListToken(identifiers, "oai_dc", "set" + n,
+                new Date(n * 1000L), new Date(1111363200000L + n),
+                1111000000000L + n, n, n * 10);
+    }
+
+    private static void assertRejected(String token, byte[] secret) throws Exception {
+        try {
+            RecordListToken.decode(token, secret);
+            fail("Token was accepted: " + token);
+        } catch (BadResumptionTokenException e) {
+        }
+    }
+
+    private static byte[] decodeBase64(String token) throws Exception {
+        String base64 = token.replace('-', '+').replace('_', '/');
+        while (base64.length() % 4 != 0) base64 = base64 + "=";
+        return Base64.decodeBase64(base64.getBytes("US-ASCII"));
+    }
+
+    private static String encodeBase64(byte[] bytes) throws Exception {
+        String base64 = new String(Base64.encodeBase64(bytes), "US-ASCII");
+        return base64.replaceAll("=", "").replace('+', '-').replace('/', '_');
+    }
+
+}
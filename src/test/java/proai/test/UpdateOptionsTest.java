@@ -0,0 +1,155 @@
+package proai.test;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import proai.error.ServerException;
+import proai.service.Responder;
+import proai.service.ResponseData;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.Properties;
+
+import static org.junit.Assert.fail;
+
+/**
+ * Runs the initial update with the optional update settings turned on,
+ * each time against a new database and cache, and checks that every
+ * record ends up in the cache.
+ */
+public class UpdateOptionsTest {
+
+    private static final String[][] RECORDS = {
+            {"oai:example.org:item1", "oai_dc"},
+            {"oai:example.org:item1", "test_format"},
+            {"oai:example.org:item2", "oai_dc"},
+            {"oai:example.org:item2", "test_format"},
+            {"oai:example.org:item3", "oai_dc"},
+            {"oai:example.org:item3", "test_format"},
+            {"oai:example.org:item4", "oai_dc"},
+            {"oai:example.org:item5", "oai_dc"}};
+
+    private static final long TIMEOUT_MILLIS = 60000;
+
+    private File m_dir;
+    private Responder m_responder;
+
+    @Before
+    public void setUp() throws IOException {
+        m_dir = File.createTempFile("updateoptions", "");
+        m_dir.delete();
+        m_dir.mkdirs();
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        try {
+            if (m_responder != null) m_responder.close();
+        } finally {
+            delete(m_dir);
+        }
+    }
+
+    @Test
+    public void testParallelChunkedPolling() throws Exception {
+        Properties properties = getProperties();
+        properties.setProperty("proai.parallelFormatPolling", "true");
+        properties.setProperty("proai.pollChunkSize", "2");
+        m_responder = new Responder(properties);
+        waitForRecords();
+    }
+
+    @Test
+    public void testAdaptiveConcurrencyWithParallelCommits() throws Exception {
+        Properties properties = getProperties();
+        properties.setProperty("proai.adaptiveConcurrency", "true");
+        properties.setProperty("proai.committerThreads", "3");
+        properties.setProperty("proai.maxWorkBatchSize", "1");
+        properties.setProperty("proai.maxRecordsPerTransaction", "2");
+        m_responder = new Responder(properties);
+        waitForRecords();
+    }
+
+    /**
+     * Get the test properties, using a database and directories of this
+     * test's own.
+     */
+    private Properties getProperties() throws IOException {
+        Properties properties = new Properties();
+        properties.load(getClass().getResourceAsStream("/proai.properties"));
+
+        File baseDir = new File(getClass().getResource("/").getFile());
+        copy(new File(baseDir, "mckoi.conf"), new File(m_dir, "mckoi.conf"));
+
+        properties.setProperty("proai.db.url", "jdbc:mckoi:local://"
+                + m_dir.getAbsolutePath() + "/mckoi.conf?create_or_boot=true");
+        properties.setProperty("proai.driver.simple.baseDir", baseDir.getAbsolutePath());
+        properties.setProperty("proai.cacheBaseDir", new File(m_dir, "cache").getAbsolutePath());
+        properties.setProperty("proai.schemaDir", new File(m_dir, "schemaCache").getAbsolutePath());
+        properties.setProperty("proai.sessionBaseDir", new File(m_dir, "sessions").getAbsolutePath());
+        properties.setProperty("proai.validateUpdates", "false");
+        return properties;
+    }
+
+    private void waitForRecords() throws Exception {
+        long giveUp = System.currentTimeMillis() + TIMEOUT_MILLIS;
+        for (int i = 0; i < RECORDS.length; i++) {
+            while (!hasRecord(RECORDS[i][0], RECORDS[i][1])) {
+                if (System.currentTimeMillis() > giveUp) {
+                    fail("Timed out waiting for " + RECORDS[i][1]
+                            + " record of item: " + RECORDS[i][0]);
+                }
+                Thread.sleep(200);
+            }
+        }
+    }
+
+    private boolean hasRecord(String item, String prefix) {
+        ResponseData data = null;
+        try {
+            data = m_responder.getRecord(item, prefix);
+            return true;
+        } catch (Exception e) {
+            return false;
+        } finally {
+            if (data != null) try {
+                data.release();
+            } catch (ServerException e) {
+            }
+        }
+    }
+
+    private static void copy(File from, File to) throws IOException {
+        InputStream in = new FileInputStream(from);
+        try {
+            OutputStream out = new FileOutputStream(to);
+            try {
+                byte[] buf = new byte[4096];
+                int len;
+                while ((len = in.read(buf)) > 0) {
+                    out.write(buf, 0, len);
+                }
+            } finally {
+                out.close();
+            }
+        } finally {
+            in.close();
+        }
+    }
+
+    private static void delete(File file) {
+        File[] children = file.listFiles();
+        if (children != null) {
+            for (int i = 0; i < children.length; i++) {
+                delete(children[i]);
+            }
+        }
+        file.delete();
+    }
+
+}